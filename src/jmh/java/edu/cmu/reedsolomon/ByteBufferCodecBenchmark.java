@@ -0,0 +1,84 @@
+package edu.cmu.reedsolomon;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encodes parity of shards that arrive in direct buffers (network or memory
+ * mapped files), either by copying them into byte arrays first, as the array
+ * API needs, or in place with the ByteBuffer API.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g", "--add-modules=jdk.incubator.vector" })
+public class ByteBufferCodecBenchmark {
+
+    /** Bytes per shard */
+    @Param({ "65536", "1048576", "16777216" })
+    public int shardSize;
+
+    @Param({ "true", "false" })
+    public boolean vectorLoop;
+
+    private ReedSolomon codec;
+    private ByteBuffer[] directShards;
+    private ByteBuffer[] heapShards;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        codec = ReedSolomon.create(4, 2, vectorLoop);
+        final Random random = new Random(42);
+        final byte[] bytes = new byte[shardSize];
+        directShards = new ByteBuffer[codec.getTotalShardCount()];
+        heapShards = new ByteBuffer[codec.getTotalShardCount()];
+        for (int i = 0; i < directShards.length; i++) {
+            random.nextBytes(bytes);
+            directShards[i] = ByteBuffer.allocateDirect(shardSize);
+            directShards[i].put(bytes).clear();
+            heapShards[i] = ByteBuffer.allocate(shardSize);
+            heapShards[i].put(bytes).clear();
+        }
+    }
+
+    @Benchmark
+    public byte[][] copyToArraysAndEncode() {
+        final byte[][] shards = new byte[directShards.length][shardSize];
+        for (int i = 0; i < codec.getDataShardCount(); i++) {
+            directShards[i].duplicate().get(shards[i]);
+        }
+        codec.encodeParity(shards, 0, shardSize);
+        for (int i = codec.getDataShardCount(); i < directShards.length; i++) {
+            directShards[i].duplicate().put(shards[i]);
+        }
+        return shards;
+    }
+
+    @Benchmark
+    public ByteBuffer[] encodeDirectBuffers() {
+        codec.encodeParity(directShards, 0, shardSize);
+        return directShards;
+    }
+
+    @Benchmark
+    public ByteBuffer[] encodeHeapBuffers() {
+        codec.encodeParity(heapShards, 0, shardSize);
+        return heapShards;
+    }
+}
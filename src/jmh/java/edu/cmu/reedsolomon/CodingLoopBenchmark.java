@@ -0,0 +1,118 @@
+package edu.cmu.reedsolomon;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Sweeps every coding loop over shard sizes, shard counts and operations.
+ *
+ * The full sweep takes a long time; narrow it with JMH options, e.g.
+ * mvn -Pjmh compile exec:exec -Djmh.args="CodingLoopBenchmark.encodeParity -p shardSize=1048576"
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g", "--add-modules=jdk.incubator.vector" })
+public class CodingLoopBenchmark {
+
+    @Param({
+            "ByteInputOutputExpCodingLoop",
+            "ByteInputOutputTableCodingLoop",
+            "ByteOutputInputExpCodingLoop",
+            "ByteOutputInputTableCodingLoop",
+            "InputByteOutputExpCodingLoop",
+            "InputByteOutputTableCodingLoop",
+            "InputOutputByteExpCodingLoop",
+            "InputOutputByteTableCodingLoop",
+            "OutputByteInputExpCodingLoop",
+            "OutputByteInputTableCodingLoop",
+            "OutputInputByteExpCodingLoop",
+            "OutputInputByteTableCodingLoop",
+            "ByteOutputInputVectorCodingLoop",
+    })
+    public String codingLoop;
+
+    /** Bytes per shard, 1 KB to 64 MB */
+    @Param({ "1024", "65536", "1048576", "16777216", "67108864" })
+    public int shardSize;
+
+    /** Data shards + parity shards */
+    @Param({ "4+2", "6+3", "10+4" })
+    public String shardCounts;
+
+    private ReedSolomon codec;
+    private byte[][] shards;
+    private byte[] tempBuffer;
+    private boolean[] oneErasure;
+    private boolean[] twoErasures;
+
+    @Setup(Level.Trial)
+    public void setup() throws ReflectiveOperationException {
+        final String[] counts = shardCounts.split("\\+");
+        final int dataShardCount = Integer.parseInt(counts[0]);
+        final int parityShardCount = Integer.parseInt(counts[1]);
+        final CodingLoop loop = (CodingLoop) Class.forName(CodingLoop.class.getPackage().getName() + "." + codingLoop)
+                .getDeclaredConstructor().newInstance();
+        codec = new ReedSolomon(dataShardCount, parityShardCount, loop);
+
+        final Random random = new Random(42);
+        shards = new byte[codec.getTotalShardCount()][shardSize];
+        for (int i = 0; i < dataShardCount; i++) {
+            random.nextBytes(shards[i]);
+        }
+        codec.encodeParity(shards, 0, shardSize);
+        tempBuffer = new byte[shardSize];
+
+        // decodeMissing rewrites the missing shards in place with the same
+        // content, so the shards stay valid across invocations.
+        oneErasure = new boolean[codec.getTotalShardCount()];
+        Arrays.fill(oneErasure, true);
+        oneErasure[0] = false;
+        twoErasures = oneErasure.clone();
+        twoErasures[dataShardCount] = false;
+    }
+
+    @Benchmark
+    public byte[][] encodeParity() {
+        codec.encodeParity(shards, 0, shardSize);
+        return shards;
+    }
+
+    @Benchmark
+    public byte[][] decodeMissingOneErasure() {
+        codec.decodeMissing(shards, oneErasure, 0, shardSize);
+        return shards;
+    }
+
+    @Benchmark
+    public byte[][] decodeMissingTwoErasures() {
+        codec.decodeMissing(shards, twoErasures, 0, shardSize);
+        return shards;
+    }
+
+    @Benchmark
+    public boolean isParityCorrect() {
+        return codec.isParityCorrect(shards, 0, shardSize);
+    }
+
+    @Benchmark
+    public boolean isParityCorrectTempBuffer() {
+        return codec.isParityCorrect(shards, 0, shardSize, tempBuffer);
+    }
+}
@@ -0,0 +1,67 @@
+package edu.cmu.reedsolomon;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per-stripe cost of decodeMissing on 1000-byte blocks of a 4+2 codec, the
+ * way the master recovers one chunk group at a time, with and without the
+ * decode matrix cache.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class DecodeMatrixCacheBenchmark {
+
+    private static final int BLOCK_SIZE = 1000;
+
+    @Param({ "true", "false" })
+    public boolean cacheDecodeMatrices;
+
+    /** Indexes of the missing shards, separated by - */
+    @Param({ "0", "0-1", "0-4" })
+    public String missingShards;
+
+    private ReedSolomon codec;
+    private byte[][] shards;
+    private boolean[] shardPresent;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        codec = new ReedSolomon(4, 2, new InputOutputByteTableCodingLoop(), cacheDecodeMatrices);
+        final Random random = new Random(42);
+        shards = new byte[codec.getTotalShardCount()][BLOCK_SIZE];
+        for (int i = 0; i < codec.getDataShardCount(); i++) {
+            random.nextBytes(shards[i]);
+        }
+        codec.encodeParity(shards, 0, BLOCK_SIZE);
+        shardPresent = new boolean[codec.getTotalShardCount()];
+        Arrays.fill(shardPresent, true);
+        for (String missing : missingShards.split("-")) {
+            shardPresent[Integer.parseInt(missing)] = false;
+        }
+    }
+
+    @Benchmark
+    public byte[][] decodeStripe() {
+        codec.decodeMissing(shards, shardPresent, 0, BLOCK_SIZE);
+        return shards;
+    }
+}
@@ -0,0 +1,98 @@
+package edu.cmu.reedsolomon;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * How encode and decode throughput of ParallelCodingLoop scales with the
+ * number of threads.  Scores are calls per second, each coding a file of
+ * 4 * shardSize bytes, so the ratio to parallelism=1 is the speed up.
+ * Parallelism above the host's core count fails setup and is skipped.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g", "--add-modules=jdk.incubator.vector" })
+public class ParallelCodingBenchmark {
+
+    @Param({ "1", "2", "4", "8", "16" })
+    public int parallelism;
+
+    /** Bytes per shard; 50 MB is a 200 MB file with 4 data shards */
+    @Param({ "1048576", "52428800" })
+    public int shardSize;
+
+    @Param({ "65536", "262144" })
+    public int minStripeSize;
+
+    @Param({ "true", "false" })
+    public boolean vectorLoop;
+
+    private ForkJoinPool pool;
+    private ReedSolomon codec;
+    private byte[][] shards;
+    private boolean[] twoErasures;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        if (parallelism > Runtime.getRuntime().availableProcessors()) {
+            throw new IllegalStateException("parallelism " + parallelism + " is above the core count, skipped");
+        }
+        pool = new ForkJoinPool(parallelism);
+        final CodingLoop loop = vectorLoop && ReedSolomon.isVectorCodingLoopAvailable()
+                ? new ByteOutputInputVectorCodingLoop()
+                : new InputOutputByteTableCodingLoop();
+        codec = new ReedSolomon(4, 2, new ParallelCodingLoop(loop, pool, minStripeSize));
+
+        final Random random = new Random(42);
+        shards = new byte[codec.getTotalShardCount()][shardSize];
+        for (int i = 0; i < codec.getDataShardCount(); i++) {
+            random.nextBytes(shards[i]);
+        }
+        codec.encodeParity(shards, 0, shardSize);
+
+        // decodeMissing rewrites the missing shards in place with the same
+        // content, so the shards stay valid across invocations.
+        twoErasures = new boolean[codec.getTotalShardCount()];
+        Arrays.fill(twoErasures, true);
+        twoErasures[0] = false;
+        twoErasures[codec.getDataShardCount()] = false;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    @Benchmark
+    public byte[][] encodeParity() {
+        codec.encodeParity(shards, 0, shardSize);
+        return shards;
+    }
+
+    @Benchmark
+    public byte[][] decodeMissingTwoErasures() {
+        codec.decodeMissing(shards, twoErasures, 0, shardSize);
+        return shards;
+    }
+}
@@ -0,0 +1,117 @@
+package edu.cmu.reedsolomonfs.client;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.cmu.reedsolomonfs.ConfigVariables;
+
+/**
+ * Replays a zipfian workload of one-stripe reads over a file against the
+ * stripe cache. A miss decodes the stripe from its shards with a data shard
+ * missing, the work a degraded read does on top of the network round trip
+ * the cache also saves. The hits and misses counters give the hit rate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class StripeCacheBenchmark {
+
+    private static final int WORKLOAD_LENGTH = 1 << 16;
+
+    /** Stripes in the file */
+    @Param({ "100000" })
+    public int stripeCnt;
+
+    /** Cache size as a share of the file */
+    @Param({ "0", "0.01", "0.1" })
+    public double cacheShare;
+
+    /** Zipf exponent; around 1 for file block popularity */
+    @Param({ "0.8", "1.0" })
+    public double skew;
+
+    private StripeCache cache;
+    private int[] workload;
+    private int next;
+    private byte[][] shards;
+    private boolean[] shardPresent;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long hits;
+        public long misses;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        cache = new StripeCache((long) (cacheShare * stripeCnt) * ConfigVariables.FILE_SIZE_MULTIPLE);
+
+        // inverse CDF sampling of stripe ranks, hot ranks spread over the file
+        final double[] cdf = new double[stripeCnt];
+        double sum = 0;
+        for (int rank = 0; rank < stripeCnt; rank++) {
+            sum += 1 / Math.pow(rank + 1, skew);
+            cdf[rank] = sum;
+        }
+        final Random random = new Random(42);
+        final int[] stripeOfRank = new int[stripeCnt];
+        for (int rank = 0; rank < stripeCnt; rank++) {
+            stripeOfRank[rank] = rank;
+        }
+        for (int rank = stripeCnt - 1; rank > 0; rank--) {
+            final int other = random.nextInt(rank + 1);
+            final int stripe = stripeOfRank[rank];
+            stripeOfRank[rank] = stripeOfRank[other];
+            stripeOfRank[other] = stripe;
+        }
+        workload = new int[WORKLOAD_LENGTH];
+        for (int i = 0; i < WORKLOAD_LENGTH; i++) {
+            int rank = Arrays.binarySearch(cdf, random.nextDouble() * sum);
+            rank = rank < 0 ? -rank - 1 : rank;
+            workload[i] = stripeOfRank[Math.min(rank, stripeCnt - 1)];
+        }
+
+        final byte[] stripeData = new byte[ConfigVariables.FILE_SIZE_MULTIPLE];
+        random.nextBytes(stripeData);
+        final ReedSolomonEncoder encoder = new ReedSolomonEncoder(stripeData);
+        encoder.encode();
+        shards = encoder.getShards();
+        shardPresent = new boolean[ConfigVariables.TOTAL_SHARD_COUNT];
+        Arrays.fill(shardPresent, true);
+        shardPresent[0] = false;
+    }
+
+    @Benchmark
+    public byte[] readStripe(Counters counters) {
+        final int stripeIdx = workload[next];
+        next = (next + 1) % WORKLOAD_LENGTH;
+        byte[] stripe = cache.get("file", 1, stripeIdx);
+        if (stripe != null) {
+            counters.hits++;
+            return stripe;
+        }
+        counters.misses++;
+        stripe = ReedSolomonDecoder.decodeRange(shards, shardPresent, 0, ConfigVariables.FILE_SIZE_MULTIPLE);
+        cache.put("file", 1, stripeIdx, stripe);
+        return stripe;
+    }
+}
@@ -0,0 +1,89 @@
+package edu.cmu.reedsolomonfs.server.Chunkserver;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.alipay.remoting.exception.CodecException;
+import com.alipay.remoting.serialization.Serializer;
+import com.alipay.remoting.serialization.SerializerManager;
+
+import edu.cmu.reedsolomonfs.ConfigVariables;
+import edu.cmu.reedsolomonfs.datatype.FileMetadataHelper;
+
+/**
+ * Compares the binary log entry codec with the Hessian2 serialization it
+ * replaced, for a WRITE_BYTES operation carrying all shards of a file.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-opens=java.base/java.lang=ALL-UNNAMED")
+public class ChunkserverOperationCodecBenchmark {
+
+    /** Size of the written file in bytes */
+    @Param({ "16000", "1000000", "16000000" })
+    public int fileSize;
+
+    private final Serializer hessian2 = SerializerManager.getSerializer(SerializerManager.Hessian2);
+
+    private ChunkserverOperation op;
+    private ByteBuffer codecEntry;
+    private ByteBuffer hessian2Entry;
+
+    @Setup(Level.Trial)
+    public void setup() throws CodecException {
+        final int stripeSize = ConfigVariables.FILE_SIZE_MULTIPLE;
+        final int shardSize = (fileSize + stripeSize - 1) / stripeSize * stripeSize / ConfigVariables.DATA_SHARD_COUNT;
+        final Random random = new Random(42);
+        final byte[][] shards = new byte[ConfigVariables.TOTAL_SHARD_COUNT][shardSize];
+        for (byte[] shard : shards) {
+            random.nextBytes(shard);
+        }
+        op = ChunkserverOperation.createWrite(shards,
+                FileMetadataHelper.createFileMetadata("/bench/file", fileSize));
+        codecEntry = ChunkserverOperationCodec.encode(op);
+        hessian2Entry = ByteBuffer.wrap(hessian2.serialize(op));
+    }
+
+    @Benchmark
+    public ByteBuffer encodeCodec() {
+        return ChunkserverOperationCodec.encode(op);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeHessian2() throws CodecException {
+        return ByteBuffer.wrap(hessian2.serialize(op));
+    }
+
+    @Benchmark
+    public void decodeCodec(Blackhole bh) throws CodecException {
+        final ChunkserverOperation decoded = ChunkserverOperationCodec.decode(codecEntry);
+        bh.consume(decoded.getShard(0));
+        bh.consume(decoded.getMetadata());
+    }
+
+    @Benchmark
+    public void decodeHessian2(Blackhole bh) throws CodecException {
+        final ChunkserverOperation decoded = hessian2.deserialize(hessian2Entry.array(),
+                ChunkserverOperation.class.getName());
+        bh.consume(decoded.getShard(0));
+        bh.consume(decoded.getMetadata());
+    }
+}
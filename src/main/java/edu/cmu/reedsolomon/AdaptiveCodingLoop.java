@@ -0,0 +1,334 @@
+package edu.cmu.reedsolomon;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Coding loop that dispatches to the loop found fastest on this host for
+ * the size of the call.
+ *
+ * Which nesting of the loops is fastest depends on the CPU caches and on
+ * how many bytes are coded per call, so byteCount is split into bands and
+ * a short calibration picks one loop per band.  Calibration runs once per
+ * codec shape the first time it is asked for, is bounded by
+ * CALIBRATION_BUDGET_NANOS, and its result is stored in a properties file
+ * (system property reedsolomon.calibration.file, by default in
+ * java.io.tmpdir) so later starts on the same host skip it.  The file is
+ * written to a temporary file next to it and moved into place, so a start
+ * racing another never reads half of it.  Bands the budget did not cover
+ * use ByteOutputInputVectorCodingLoop when the vector loop is in use, and
+ * InputOutputByteTableCodingLoop otherwise.
+ */
+public class AdaptiveCodingLoop implements CodingLoop, BufferCodingLoop {
+
+    /**
+     * Upper bound (exclusive) of byteCount for each band.
+     */
+    private static final int [] BAND_LIMITS = { 4 * 1024, 64 * 1024, Integer.MAX_VALUE };
+
+    /**
+     * byteCount timed for each band.  The last band is timed at a size
+     * where the shards no longer fit in L1/L2, which is what sets the
+     * order of the loops from there on.
+     */
+    private static final int [] BAND_SAMPLE_SIZES = { 1024, 16 * 1024, 128 * 1024 };
+
+    private static final long CALIBRATION_BUDGET_NANOS = 300_000_000L;
+
+    private static final String CALIBRATION_FILE_PROPERTY = "reedsolomon.calibration.file";
+
+    private static final Map<String, AdaptiveCodingLoop> LOOPS = new ConcurrentHashMap<>();
+
+    private static final BufferCodingLoop TABLE_BUFFER_LOOP = new TableBufferCodingLoop();
+
+    private final CodingLoop [] bandLoops;
+
+    private AdaptiveCodingLoop(CodingLoop [] bandLoops) {
+        this.bandLoops = bandLoops;
+    }
+
+    /**
+     * Returns the adaptive loop for a codec shape, calibrating it (or
+     * loading an earlier calibration) on first use.
+     */
+    public static AdaptiveCodingLoop forShape(int dataShardCount, int parityShardCount, boolean useVectorLoop) {
+        final boolean vector = useVectorLoop && ReedSolomon.isVectorCodingLoopAvailable();
+        final String key = dataShardCount + "+" + parityShardCount + (vector ? ".vector" : ".scalar");
+        return LOOPS.computeIfAbsent(key, k -> load(k, dataShardCount, parityShardCount, vector));
+    }
+
+    /**
+     * Returns the loop used for each band, for logging.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("AdaptiveCodingLoop[");
+        for (int band = 0; band < bandLoops.length; band++) {
+            if (band > 0) {
+                sb.append(", ");
+            }
+            sb.append(band == 0 ? 0 : BAND_LIMITS[band - 1]).append("+: ")
+                    .append(bandLoops[band].getClass().getSimpleName());
+        }
+        return sb.append(']').toString();
+    }
+
+    @Override
+    public void codeSomeShards(
+            byte[][] matrixRows,
+            byte[][] inputs, int inputCount,
+            byte[][] outputs, int outputCount,
+            int offset, int byteCount) {
+        loopFor(byteCount).codeSomeShards(
+                matrixRows, inputs, inputCount, outputs, outputCount, offset, byteCount);
+    }
+
+    @Override
+    public boolean checkSomeShards(
+            byte[][] matrixRows,
+            byte[][] inputs, int inputCount,
+            byte[][] toCheck, int checkCount,
+            int offset, int byteCount,
+            byte[] tempBuffer) {
+        return loopFor(byteCount).checkSomeShards(
+                matrixRows, inputs, inputCount, toCheck, checkCount, offset, byteCount, tempBuffer);
+    }
+
+    /**
+     * ByteBuffer shards go to the band's loop if it handles buffers, and
+     * to TableBufferCodingLoop otherwise.
+     */
+    @Override
+    public void codeSomeShards(
+            byte[][] matrixRows,
+            ByteBuffer[] inputs, int inputCount,
+            ByteBuffer[] outputs, int outputCount,
+            int offset, int byteCount) {
+        bufferLoop(byteCount).codeSomeShards(
+                matrixRows, inputs, inputCount, outputs, outputCount, offset, byteCount);
+    }
+
+    @Override
+    public boolean checkSomeShards(
+            byte[][] matrixRows,
+            ByteBuffer[] inputs, int inputCount,
+            ByteBuffer[] toCheck, int checkCount,
+            int offset, int byteCount) {
+        return bufferLoop(byteCount).checkSomeShards(
+                matrixRows, inputs, inputCount, toCheck, checkCount, offset, byteCount);
+    }
+
+    private BufferCodingLoop bufferLoop(int byteCount) {
+        CodingLoop loop = loopFor(byteCount);
+        return loop instanceof BufferCodingLoop ? (BufferCodingLoop) loop : TABLE_BUFFER_LOOP;
+    }
+
+    /**
+     * Returns the loop of the band byteCount falls in.
+     */
+    CodingLoop loopFor(int byteCount) {
+        return bandLoops[band(byteCount)];
+    }
+
+    static int band(int byteCount) {
+        int band = 0;
+        while (band < BAND_LIMITS.length - 1 && BAND_LIMITS[band] <= byteCount) {
+            band++;
+        }
+        return band;
+    }
+
+    private static List<CodingLoop> candidates(boolean vector) {
+        List<CodingLoop> candidates = new ArrayList<>(List.of(ALL_CODING_LOOPS));
+        if (vector) {
+            candidates.add(new ByteOutputInputVectorCodingLoop());
+        }
+        return candidates;
+    }
+
+    /**
+     * Identifies the host and JVM a stored calibration was made on.
+     */
+    static String fingerprint() {
+        return System.getProperty("os.arch") + "/" + Runtime.getRuntime().availableProcessors()
+                + "/" + System.getProperty("java.vm.name") + "/" + System.getProperty("java.version");
+    }
+
+    private static Path calibrationFile() {
+        String file = System.getProperty(CALIBRATION_FILE_PROPERTY);
+        if (file == null) {
+            file = Paths.get(System.getProperty("java.io.tmpdir"), "reedsolomon-coding-loops.properties").toString();
+        }
+        return Paths.get(file);
+    }
+
+    /**
+     * Returns the loop stored in the calibration file for a codec shape,
+     * calibrating and storing it if the file has none for this host.
+     */
+    static AdaptiveCodingLoop load(String key, int dataShardCount, int parityShardCount, boolean vector) {
+        final List<CodingLoop> candidates = candidates(vector);
+        final Path file = calibrationFile();
+        final Properties properties = new Properties();
+        synchronized (AdaptiveCodingLoop.class) {
+            if (Files.exists(file)) {
+                try (InputStream in = Files.newInputStream(file)) {
+                    properties.load(in);
+                } catch (IOException | IllegalArgumentException e) {
+                    properties.clear();
+                }
+            }
+            if (!fingerprint().equals(properties.getProperty("fingerprint"))) {
+                properties.clear();
+                properties.setProperty("fingerprint", fingerprint());
+            }
+
+            CodingLoop [] bandLoops = new CodingLoop [BAND_LIMITS.length];
+            boolean cached = true;
+            for (int band = 0; band < bandLoops.length && cached; band++) {
+                String name = properties.getProperty(key + ".band." + band);
+                for (CodingLoop candidate : candidates) {
+                    if (candidate.getClass().getSimpleName().equals(name)) {
+                        bandLoops[band] = candidate;
+                    }
+                }
+                cached = bandLoops[band] != null;
+            }
+            if (cached) {
+                return new AdaptiveCodingLoop(bandLoops);
+            }
+
+            // A calibration cut short by the budget is used for this run
+            // only, with the default loop for the bands it did not reach.
+            bandLoops = calibrate(dataShardCount, parityShardCount, candidates);
+            boolean complete = true;
+            for (int band = 0; band < bandLoops.length; band++) {
+                if (bandLoops[band] == null) {
+                    bandLoops[band] = vector ? new ByteOutputInputVectorCodingLoop() : new InputOutputByteTableCodingLoop();
+                    complete = false;
+                }
+                properties.setProperty(key + ".band." + band, bandLoops[band].getClass().getSimpleName());
+            }
+            if (!complete) {
+                return new AdaptiveCodingLoop(bandLoops);
+            }
+            store(file, properties);
+            return new AdaptiveCodingLoop(bandLoops);
+        }
+    }
+
+    /**
+     * Writes the calibration to a temporary file in the same directory and
+     * moves it over the file, so readers see the old file or the new one.
+     */
+    private static void store(Path file, Properties properties) {
+        Path temp = null;
+        try {
+            Path directory = file.toAbsolutePath().getParent();
+            Files.createDirectories(directory);
+            temp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                properties.store(out, "Fastest CodingLoop per byteCount band, see AdaptiveCodingLoop");
+            }
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            // Not fatal, the next start calibrates again.
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException ignored) {
+                    // Left in the temporary directory.
+                }
+            }
+        }
+    }
+
+    /**
+     * Times the candidates encoding parity of random shards at each band's
+     * sample size, and picks the fastest.  Bands are timed from small to
+     * large, and each band only times the faster half of the previous
+     * one, since the larger samples are the expensive ones.  Each timing
+     * gets an equal slice of what is left of the budget and keeps its best
+     * run; the first run is a warm up, and a candidate whose warm up uses
+     * up its slice is not picked.  Bands that could not time every
+     * contender before the budget ran out are left null.
+     */
+    private static CodingLoop [] calibrate(int dataShardCount, int parityShardCount, List<CodingLoop> candidates) {
+        // Build the multiplication tables outside of the budget.
+        Galois.multiply((byte) 2, (byte) 3);
+        final long deadline = System.nanoTime() + CALIBRATION_BUDGET_NANOS;
+
+        int maxSampleSize = 0;
+        for (int sampleSize : BAND_SAMPLE_SIZES) {
+            maxSampleSize = Math.max(maxSampleSize, sampleSize);
+        }
+        final Random random = new Random(0);
+        final byte [] [] inputs = new byte [dataShardCount] [maxSampleSize];
+        for (byte [] input : inputs) {
+            random.nextBytes(input);
+        }
+        final byte [] [] outputs = new byte [parityShardCount] [maxSampleSize];
+        final byte [] [] matrixRows = new byte [parityShardCount] [dataShardCount];
+        for (byte [] row : matrixRows) {
+            for (int i = 0; i < row.length; i++) {
+                row[i] = (byte) (1 + random.nextInt(255));
+            }
+        }
+
+        final CodingLoop [] bandLoops = new CodingLoop [BAND_LIMITS.length];
+        List<CodingLoop> contenders = candidates;
+        for (int band = 0; band < BAND_LIMITS.length; band++) {
+            final int byteCount = BAND_SAMPLE_SIZES[band];
+            final long [] bestNanos = new long [contenders.size()];
+            Arrays.fill(bestNanos, Long.MAX_VALUE);
+            for (int i = 0; i < contenders.size(); i++) {
+                final long now = System.nanoTime();
+                if (now >= deadline) {
+                    return bandLoops;
+                }
+                final int timingsLeft = contenders.size() - i + (BAND_LIMITS.length - band - 1) * (contenders.size() / 2);
+                final long sliceEnd = now + (deadline - now) / timingsLeft;
+                final CodingLoop candidate = contenders.get(i);
+                for (int run = 0; run == 0 || System.nanoTime() < sliceEnd; run++) {
+                    final long start = System.nanoTime();
+                    candidate.codeSomeShards(matrixRows, inputs, dataShardCount,
+                            outputs, parityShardCount, 0, byteCount);
+                    final long nanos = System.nanoTime() - start;
+                    if (run > 0) {
+                        bestNanos[i] = Math.min(bestNanos[i], nanos);
+                    }
+                }
+            }
+
+            // Rank by best run, and only time the faster half in the next band.
+            final Integer [] order = new Integer [contenders.size()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, Comparator.comparingLong(i -> bestNanos[i]));
+            if (bestNanos[order[0]] != Long.MAX_VALUE) {
+                bandLoops[band] = contenders.get(order[0]);
+            }
+            final List<CodingLoop> faster = new ArrayList<>();
+            for (int i = 0; i < Math.max(2, order.length / 2) && i < order.length; i++) {
+                faster.add(contenders.get(order[i]));
+            }
+            contenders = faster;
+        }
+        return bandLoops;
+    }
+}
@@ -0,0 +1,62 @@
+package edu.cmu.reedsolomon;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Interface for a method of looping over inputs held in ByteBuffers and
+ * encoding them.
+ *
+ * This is the ByteBuffer counterpart of CodingLoop, so shards in direct
+ * buffers, memory mapped files or received network buffers can be coded
+ * without first copying them into byte arrays.  Buffers are addressed
+ * with absolute indexes; their positions and limits are not changed.
+ */
+public interface BufferCodingLoop {
+
+    /**
+     * Multiplies a subset of rows from a coding matrix by a full set of
+     * input shards to produce some output shards.
+     *
+     * @param matrixRows The rows from the matrix to use.
+     * @param inputs An array of buffers, each of which is one input shard.
+     *               The number of inputs used is determined by the length
+     *               of each matrix row.
+     * @param inputCount The number of input buffers.
+     * @param outputs Buffers where the computed shards are stored.  The
+     *                number of outputs computed, and the number of matrix
+     *                rows used, is determined by outputCount.
+     * @param outputCount The number of outputs to compute.
+     * @param offset The index in the inputs and output of the first byte
+     *               to process.
+     * @param byteCount The number of bytes to process.
+     */
+    void codeSomeShards(final byte [] [] matrixRows,
+                        final ByteBuffer [] inputs,
+                        final int inputCount,
+                        final ByteBuffer [] outputs,
+                        final int outputCount,
+                        final int offset,
+                        final int byteCount);
+
+    /**
+     * Multiplies a subset of rows from a coding matrix by a full set of
+     * input shards to produce some output shards, and checks that the
+     * the data is those shards matches what's expected.
+     *
+     * @param matrixRows The rows from the matrix to use.
+     * @param inputs An array of buffers, each of which is one input shard.
+     * @param inputCount The number of input buffers.
+     * @param toCheck Buffers holding the shards to check.
+     * @param checkCount The number of outputs to check.
+     * @param offset The index in the inputs and output of the first byte
+     *               to process.
+     * @param byteCount The number of bytes to process.
+     */
+    boolean checkSomeShards(final byte [] [] matrixRows,
+                            final ByteBuffer [] inputs,
+                            final int inputCount,
+                            final ByteBuffer [] toCheck,
+                            final int checkCount,
+                            final int offset,
+                            final int byteCount);
+}
@@ -0,0 +1,228 @@
+package edu.cmu.reedsolomon;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Coding loop that multiplies with SIMD table lookups.
+ *
+ * Multiplying by a constant c in GF(2^8) distributes over XOR, so
+ * c * x == c * (x & 0x0F) ^ c * (x & 0xF0).  Each half only has 16
+ * possible values, so the two products are looked up in two 16 entry
+ * tables with a vector shuffle, which handles a whole vector of bytes
+ * at a time (PSHUFB on x86, TBL on ARM).
+ *
+ * The loops are nested byte/output/input so every output vector is
+ * accumulated in a register and stored once.  Bytes that do not fill a
+ * whole vector are done with the multiplication table.
+ *
+ * Shards can be byte arrays or ByteBuffers, heap or direct.
+ *
+ * Needs the jdk.incubator.vector module; use
+ * ReedSolomon.isVectorCodingLoopAvailable() before creating one.
+ */
+public class ByteOutputInputVectorCodingLoop extends CodingLoopBase implements BufferCodingLoop {
+
+    private static final VectorSpecies<Byte> SPECIES = pickSpecies();
+
+    /**
+     * The shuffle indexes lanes of the whole vector, so the vector must
+     * have at least 16 lanes to hold a nibble table.
+     */
+    private static VectorSpecies<Byte> pickSpecies() {
+        VectorSpecies<Byte> preferred = ByteVector.SPECIES_PREFERRED;
+        return preferred.length() >= 16 ? preferred : ByteVector.SPECIES_128;
+    }
+
+    @Override
+    public void codeSomeShards(
+            byte[][] matrixRows,
+            byte[][] inputs, int inputCount,
+            byte[][] outputs, int outputCount,
+            int offset, int byteCount) {
+
+        final ByteVector [] [] lowTables = new ByteVector [outputCount] [inputCount];
+        final ByteVector [] [] highTables = new ByteVector [outputCount] [inputCount];
+        buildTables(matrixRows, inputCount, outputCount, lowTables, highTables);
+
+        final int vectorEnd = offset + SPECIES.loopBound(byteCount);
+        for (int iByte = offset; iByte < vectorEnd; iByte += SPECIES.length()) {
+            for (int iOutput = 0; iOutput < outputCount; iOutput++) {
+                multiplyAdd(lowTables[iOutput], highTables[iOutput], inputs, inputCount, iByte)
+                        .intoArray(outputs[iOutput], iByte);
+            }
+        }
+
+        final byte [] [] table = Galois.MULTIPLICATION_TABLE;
+        for (int iByte = vectorEnd; iByte < offset + byteCount; iByte++) {
+            for (int iOutput = 0; iOutput < outputCount; iOutput++) {
+                final byte [] matrixRow = matrixRows[iOutput];
+                int value = 0;
+                for (int iInput = 0; iInput < inputCount; iInput++) {
+                    value ^= table[matrixRow[iInput] & 0xFF][inputs[iInput][iByte] & 0xFF];
+                }
+                outputs[iOutput][iByte] = (byte) value;
+            }
+        }
+    }
+
+    @Override
+    public boolean checkSomeShards(
+            byte[][] matrixRows,
+            byte[][] inputs, int inputCount,
+            byte[][] toCheck, int checkCount,
+            int offset, int byteCount,
+            byte[] tempBuffer) {
+
+        final ByteVector [] [] lowTables = new ByteVector [checkCount] [inputCount];
+        final ByteVector [] [] highTables = new ByteVector [checkCount] [inputCount];
+        buildTables(matrixRows, inputCount, checkCount, lowTables, highTables);
+
+        final int vectorEnd = offset + SPECIES.loopBound(byteCount);
+        for (int iByte = offset; iByte < vectorEnd; iByte += SPECIES.length()) {
+            for (int iOutput = 0; iOutput < checkCount; iOutput++) {
+                final ByteVector computed =
+                        multiplyAdd(lowTables[iOutput], highTables[iOutput], inputs, inputCount, iByte);
+                final ByteVector expected = ByteVector.fromArray(SPECIES, toCheck[iOutput], iByte);
+                if (computed.compare(VectorOperators.NE, expected).anyTrue()) {
+                    return false;
+                }
+            }
+        }
+
+        return super.checkSomeShards(
+                matrixRows,
+                inputs, inputCount,
+                toCheck, checkCount,
+                vectorEnd, offset + byteCount - vectorEnd,
+                tempBuffer);
+    }
+
+    @Override
+    public void codeSomeShards(
+            byte[][] matrixRows,
+            ByteBuffer[] inputs, int inputCount,
+            ByteBuffer[] outputs, int outputCount,
+            int offset, int byteCount) {
+
+        final ByteVector [] [] lowTables = new ByteVector [outputCount] [inputCount];
+        final ByteVector [] [] highTables = new ByteVector [outputCount] [inputCount];
+        buildTables(matrixRows, inputCount, outputCount, lowTables, highTables);
+
+        final int vectorEnd = offset + SPECIES.loopBound(byteCount);
+        for (int iByte = offset; iByte < vectorEnd; iByte += SPECIES.length()) {
+            for (int iOutput = 0; iOutput < outputCount; iOutput++) {
+                multiplyAdd(lowTables[iOutput], highTables[iOutput], inputs, inputCount, iByte)
+                        .intoByteBuffer(outputs[iOutput], iByte, ByteOrder.nativeOrder());
+            }
+        }
+
+        final byte [] [] table = Galois.MULTIPLICATION_TABLE;
+        for (int iByte = vectorEnd; iByte < offset + byteCount; iByte++) {
+            for (int iOutput = 0; iOutput < outputCount; iOutput++) {
+                final byte [] matrixRow = matrixRows[iOutput];
+                int value = 0;
+                for (int iInput = 0; iInput < inputCount; iInput++) {
+                    value ^= table[matrixRow[iInput] & 0xFF][inputs[iInput].get(iByte) & 0xFF];
+                }
+                outputs[iOutput].put(iByte, (byte) value);
+            }
+        }
+    }
+
+    @Override
+    public boolean checkSomeShards(
+            byte[][] matrixRows,
+            ByteBuffer[] inputs, int inputCount,
+            ByteBuffer[] toCheck, int checkCount,
+            int offset, int byteCount) {
+
+        final ByteVector [] [] lowTables = new ByteVector [checkCount] [inputCount];
+        final ByteVector [] [] highTables = new ByteVector [checkCount] [inputCount];
+        buildTables(matrixRows, inputCount, checkCount, lowTables, highTables);
+
+        final int vectorEnd = offset + SPECIES.loopBound(byteCount);
+        for (int iByte = offset; iByte < vectorEnd; iByte += SPECIES.length()) {
+            for (int iOutput = 0; iOutput < checkCount; iOutput++) {
+                final ByteVector computed =
+                        multiplyAdd(lowTables[iOutput], highTables[iOutput], inputs, inputCount, iByte);
+                final ByteVector expected =
+                        ByteVector.fromByteBuffer(SPECIES, toCheck[iOutput], iByte, ByteOrder.nativeOrder());
+                if (computed.compare(VectorOperators.NE, expected).anyTrue()) {
+                    return false;
+                }
+            }
+        }
+
+        final byte [] [] table = Galois.MULTIPLICATION_TABLE;
+        for (int iByte = vectorEnd; iByte < offset + byteCount; iByte++) {
+            for (int iOutput = 0; iOutput < checkCount; iOutput++) {
+                final byte [] matrixRow = matrixRows[iOutput];
+                int value = 0;
+                for (int iInput = 0; iInput < inputCount; iInput++) {
+                    value ^= table[matrixRow[iInput] & 0xFF][inputs[iInput].get(iByte) & 0xFF];
+                }
+                if (toCheck[iOutput].get(iByte) != (byte) value) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Computes the XOR over all inputs of matrix coefficient times input,
+     * for one vector of bytes starting at iByte.
+     */
+    private static ByteVector multiplyAdd(ByteVector [] lowTables, ByteVector [] highTables,
+                                          byte [] [] inputs, int inputCount, int iByte) {
+        ByteVector value = ByteVector.zero(SPECIES);
+        for (int iInput = 0; iInput < inputCount; iInput++) {
+            final ByteVector input = ByteVector.fromArray(SPECIES, inputs[iInput], iByte);
+            value = value.lanewise(VectorOperators.XOR, multiply(lowTables[iInput], highTables[iInput], input));
+        }
+        return value;
+    }
+
+    private static ByteVector multiplyAdd(ByteVector [] lowTables, ByteVector [] highTables,
+                                          ByteBuffer [] inputs, int inputCount, int iByte) {
+        ByteVector value = ByteVector.zero(SPECIES);
+        for (int iInput = 0; iInput < inputCount; iInput++) {
+            final ByteVector input = ByteVector.fromByteBuffer(SPECIES, inputs[iInput], iByte, ByteOrder.nativeOrder());
+            value = value.lanewise(VectorOperators.XOR, multiply(lowTables[iInput], highTables[iInput], input));
+        }
+        return value;
+    }
+
+    private static ByteVector multiply(ByteVector lowTable, ByteVector highTable, ByteVector input) {
+        final ByteVector low = input.and((byte) 0x0F);
+        final ByteVector high = input.lanewise(VectorOperators.LSHR, 4).and((byte) 0x0F);
+        return low.selectFrom(lowTable).lanewise(VectorOperators.XOR, high.selectFrom(highTable));
+    }
+
+    /**
+     * Builds the low and high nibble tables for every matrix coefficient.
+     * Lanes past the first 16 repeat the table, they are never selected.
+     */
+    private static void buildTables(byte [] [] matrixRows, int inputCount, int outputCount,
+                                    ByteVector [] [] lowTables, ByteVector [] [] highTables) {
+        final byte [] [] table = Galois.MULTIPLICATION_TABLE;
+        final byte [] low = new byte [SPECIES.length()];
+        final byte [] high = new byte [SPECIES.length()];
+        for (int iOutput = 0; iOutput < outputCount; iOutput++) {
+            for (int iInput = 0; iInput < inputCount; iInput++) {
+                final byte [] multTableRow = table[matrixRows[iOutput][iInput] & 0xFF];
+                for (int i = 0; i < low.length; i++) {
+                    low[i] = multTableRow[i & 0x0F];
+                    high[i] = multTableRow[(i & 0x0F) << 4];
+                }
+                lowTables[iOutput][iInput] = ByteVector.fromArray(SPECIES, low, 0);
+                highTables[iOutput][iInput] = ByteVector.fromArray(SPECIES, high, 0);
+            }
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package edu.cmu.reedsolomon;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Coding loop that splits [offset, offset + byteCount) into stripes and
+ * codes them in parallel on a ForkJoinPool, each with another loop.
+ *
+ * Every byte of the outputs only depends on the same byte of the inputs,
+ * so stripes can be coded independently.  The range is halved while both
+ * halves are at least minStripeSize bytes, which should be about what
+ * keeps one stripe of every shard in the per-core cache.  Split points are
+ * kept on multiples of SPLIT_ALIGNMENT so vector loops only get a scalar
+ * tail at the end of the whole range.  Calls smaller than two stripes are
+ * coded on the calling thread.
+ */
+public class ParallelCodingLoop implements CodingLoop, BufferCodingLoop {
+
+    /**
+     * Default for minStripeSize, in bytes per shard.
+     */
+    public static final int DEFAULT_MIN_STRIPE_SIZE = 64 * 1024;
+
+    private static final int SPLIT_ALIGNMENT = 64;
+
+    private static final Map<Integer, ForkJoinPool> SHARED_POOLS = new ConcurrentHashMap<>();
+
+    private final CodingLoop codingLoop;
+    private final BufferCodingLoop bufferCodingLoop;
+    private final ForkJoinPool pool;
+    private final int minStripeSize;
+
+    /**
+     * @param codingLoop The loop that codes each stripe.
+     * @param pool The pool the stripes run on.
+     * @param minStripeSize Stripes are split no further than this many
+     *                      bytes per shard.
+     */
+    public ParallelCodingLoop(CodingLoop codingLoop, ForkJoinPool pool, int minStripeSize) {
+        if (minStripeSize < SPLIT_ALIGNMENT) {
+            throw new IllegalArgumentException("minStripeSize must be at least " + SPLIT_ALIGNMENT);
+        }
+        this.codingLoop = codingLoop;
+        this.bufferCodingLoop = codingLoop instanceof BufferCodingLoop
+                ? (BufferCodingLoop) codingLoop
+                : new TableBufferCodingLoop();
+        this.pool = pool;
+        this.minStripeSize = minStripeSize;
+    }
+
+    /**
+     * Returns a pool of the given parallelism shared by all codecs that
+     * ask for it, so several codecs don't each start a thread per core.
+     * Its threads are daemon threads.
+     */
+    public static ForkJoinPool sharedPool(int parallelism) {
+        return SHARED_POOLS.computeIfAbsent(parallelism, ForkJoinPool::new);
+    }
+
+    public ForkJoinPool getPool() {
+        return pool;
+    }
+
+    public int getMinStripeSize() {
+        return minStripeSize;
+    }
+
+    @Override
+    public String toString() {
+        return "ParallelCodingLoop[" + codingLoop + ", parallelism " + pool.getParallelism()
+                + ", minStripeSize " + minStripeSize + "]";
+    }
+
+    @Override
+    public void codeSomeShards(
+            final byte[][] matrixRows,
+            final byte[][] inputs, final int inputCount,
+            final byte[][] outputs, final int outputCount,
+            int offset, int byteCount) {
+        if (byteCount < 2 * minStripeSize) {
+            codingLoop.codeSomeShards(matrixRows, inputs, inputCount, outputs, outputCount, offset, byteCount);
+            return;
+        }
+        pool.invoke(new Stripe((stripeOffset, stripeByteCount) -> codingLoop.codeSomeShards(
+                matrixRows, inputs, inputCount, outputs, outputCount, stripeOffset, stripeByteCount),
+                offset, byteCount));
+    }
+
+    /**
+     * A tempBuffer, if given, is shared by all stripes; the loops only use
+     * the bytes of it in the range they check, which don't overlap.
+     */
+    @Override
+    public boolean checkSomeShards(
+            final byte[][] matrixRows,
+            final byte[][] inputs, final int inputCount,
+            final byte[][] toCheck, final int checkCount,
+            int offset, int byteCount,
+            final byte[] tempBuffer) {
+        if (byteCount < 2 * minStripeSize) {
+            return codingLoop.checkSomeShards(matrixRows, inputs, inputCount, toCheck, checkCount,
+                    offset, byteCount, tempBuffer);
+        }
+        return pool.invoke(new CheckStripe((stripeOffset, stripeByteCount) -> codingLoop.checkSomeShards(
+                matrixRows, inputs, inputCount, toCheck, checkCount, stripeOffset, stripeByteCount, tempBuffer),
+                offset, byteCount));
+    }
+
+    @Override
+    public void codeSomeShards(
+            final byte[][] matrixRows,
+            final ByteBuffer[] inputs, final int inputCount,
+            final ByteBuffer[] outputs, final int outputCount,
+            int offset, int byteCount) {
+        if (byteCount < 2 * minStripeSize) {
+            bufferCodingLoop.codeSomeShards(matrixRows, inputs, inputCount, outputs, outputCount, offset, byteCount);
+            return;
+        }
+        pool.invoke(new Stripe((stripeOffset, stripeByteCount) -> bufferCodingLoop.codeSomeShards(
+                matrixRows, inputs, inputCount, outputs, outputCount, stripeOffset, stripeByteCount),
+                offset, byteCount));
+    }
+
+    @Override
+    public boolean checkSomeShards(
+            final byte[][] matrixRows,
+            final ByteBuffer[] inputs, final int inputCount,
+            final ByteBuffer[] toCheck, final int checkCount,
+            int offset, int byteCount) {
+        if (byteCount < 2 * minStripeSize) {
+            return bufferCodingLoop.checkSomeShards(matrixRows, inputs, inputCount, toCheck, checkCount,
+                    offset, byteCount);
+        }
+        return pool.invoke(new CheckStripe((stripeOffset, stripeByteCount) -> bufferCodingLoop.checkSomeShards(
+                matrixRows, inputs, inputCount, toCheck, checkCount, stripeOffset, stripeByteCount),
+                offset, byteCount));
+    }
+
+    /**
+     * Returns where to split a range of at least two stripes in two, rounded down to SPLIT_ALIGNMENT bytes from the start.
+     */
+    private int splitPoint(int offset, int byteCount) {
+        int half = byteCount / 2 / SPLIT_ALIGNMENT * SPLIT_ALIGNMENT;
+        return offset + Math.max(half, SPLIT_ALIGNMENT);
+    }
+
+    private interface StripeCoder {
+        void code(int offset, int byteCount);
+    }
+
+    private interface StripeChecker {
+        boolean check(int offset, int byteCount);
+    }
+
+    /**
+     * Codes a range, splitting it in two until it fits in one stripe.
+     */
+    private final class Stripe extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final StripeCoder coder;
+        private final int offset;
+        private final int byteCount;
+
+        Stripe(StripeCoder coder, int offset, int byteCount) {
+            this.coder = coder;
+            this.offset = offset;
+            this.byteCount = byteCount;
+        }
+
+        @Override
+        protected void compute() {
+            if (byteCount < 2 * minStripeSize) {
+                coder.code(offset, byteCount);
+                return;
+            }
+            final int split = splitPoint(offset, byteCount);
+            invokeAll(new Stripe(coder, offset, split - offset),
+                    new Stripe(coder, split, offset + byteCount - split));
+        }
+    }
+
+    /**
+     * Checks a range, splitting it in two until it fits in one stripe.
+     */
+    private final class CheckStripe extends RecursiveTask<Boolean> {
+        private static final long serialVersionUID = 1L;
+
+        private final StripeChecker checker;
+        private final int offset;
+        private final int byteCount;
+
+        CheckStripe(StripeChecker checker, int offset, int byteCount) {
+            this.checker = checker;
+            this.offset = offset;
+            this.byteCount = byteCount;
+        }
+
+        @Override
+        protected Boolean compute() {
+            if (byteCount < 2 * minStripeSize) {
+                return checker.check(offset, byteCount);
+            }
+            final int split = splitPoint(offset, byteCount);
+            final CheckStripe right = new CheckStripe(checker, split, offset + byteCount - split);
+            right.fork();
+            final boolean leftCorrect = new CheckStripe(checker, offset, split - offset).compute();
+            return right.join() && leftCorrect;
+        }
+    }
+}
@@ -7,16 +7,29 @@ package edu.cmu.reedsolomon;
  */
 
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * Reed-Solomon Coding over 8-bit values.
  */
 public class ReedSolomon {
 
+    /**
+     * Codecs with at most this many decode matrices build them all up
+     * front.  Larger ones fill the cache as erasure patterns show up.
+     */
+    private static final int MAX_PRECOMPUTED_DECODE_MATRICES = 4096;
+
     private final int dataShardCount;
     private final int parityShardCount;
     private final int totalShardCount;
     private final Matrix matrix;
     private final CodingLoop codingLoop;
+    private final BufferCodingLoop bufferCodingLoop;
 
     /**
      * Rows from the matrix for encoding parity, each one as its own
@@ -24,6 +37,16 @@ public class ReedSolomon {
      */
     private final byte [] [] parityRows;
 
+    /**
+     * Rows of the inverted decode matrices, keyed by the bitmask of the
+     * shards the matrix decodes from (the first dataShardCount present
+     * shards).  Null when caching is disabled or there are more than 64
+     * shards.
+     */
+    private final Map<Long, byte [] []> decodeMatrixCache;
+    private final AtomicLong decodeMatrixCacheHits = new AtomicLong();
+    private final AtomicLong decodeMatrixCacheMisses = new AtomicLong();
+
     /**
      * Creates a ReedSolomon codec with the default coding loop.
      */
@@ -31,10 +54,69 @@ public class ReedSolomon {
         return new ReedSolomon(dataShardCount, parityShardCount, new InputOutputByteTableCodingLoop());
     }
 
+    /**
+     * Creates a ReedSolomon codec that uses the SIMD coding loop when
+     * useVectorLoop is set and the JVM was started with
+     * --add-modules jdk.incubator.vector, and the default coding loop
+     * otherwise.
+     */
+    public static ReedSolomon create(int dataShardCount, int parityShardCount, boolean useVectorLoop) {
+        if (useVectorLoop && isVectorCodingLoopAvailable()) {
+            return new ReedSolomon(dataShardCount, parityShardCount, new ByteOutputInputVectorCodingLoop());
+        }
+        return create(dataShardCount, parityShardCount);
+    }
+
+    /**
+     * Creates a ReedSolomon codec whose coding loop is picked per call
+     * from the loops that calibrated fastest on this host for that
+     * byteCount.  See AdaptiveCodingLoop.
+     */
+    public static ReedSolomon createAdaptive(int dataShardCount, int parityShardCount, boolean useVectorLoop) {
+        return new ReedSolomon(dataShardCount, parityShardCount,
+                AdaptiveCodingLoop.forShape(dataShardCount, parityShardCount, useVectorLoop));
+    }
+
+    /**
+     * Creates an adaptive codec that codes calls of at least two stripes
+     * in parallel on the shared pool of the given parallelism.  See
+     * ParallelCodingLoop.
+     */
+    public static ReedSolomon createParallel(int dataShardCount, int parityShardCount, boolean useVectorLoop,
+                                             int parallelism, int minStripeSize) {
+        return new ReedSolomon(dataShardCount, parityShardCount,
+                new ParallelCodingLoop(AdaptiveCodingLoop.forShape(dataShardCount, parityShardCount, useVectorLoop),
+                        ParallelCodingLoop.sharedPool(parallelism), minStripeSize));
+    }
+
+    /**
+     * Returns true if the jdk.incubator.vector module is loaded, so that
+     * ByteOutputInputVectorCodingLoop can be used.
+     */
+    public static boolean isVectorCodingLoopAvailable() {
+        return VectorSupport.AVAILABLE;
+    }
+
+    /**
+     * Holder so that the module lookup only happens once.
+     */
+    private static final class VectorSupport {
+        private static final boolean AVAILABLE = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+    }
+
     /**
      * Initializes a new encoder/decoder, with a chosen coding loop.
      */
     public ReedSolomon(int dataShardCount, int parityShardCount, CodingLoop codingLoop) {
+        this(dataShardCount, parityShardCount, codingLoop, true);
+    }
+
+    /**
+     * Initializes a new encoder/decoder, with a chosen coding loop, and
+     * the decode matrix cache turned off for comparison if
+     * cacheDecodeMatrices is false.
+     */
+    ReedSolomon(int dataShardCount, int parityShardCount, CodingLoop codingLoop, boolean cacheDecodeMatrices) {
 
         // We can have at most 256 shards total, as any more would
         // lead to duplicate rows in the Vandermonde matrix, which
@@ -48,12 +130,46 @@ public class ReedSolomon {
         this.dataShardCount = dataShardCount;
         this.parityShardCount = parityShardCount;
         this.codingLoop = codingLoop;
+        this.bufferCodingLoop = codingLoop instanceof BufferCodingLoop
+                ? (BufferCodingLoop) codingLoop
+                : new TableBufferCodingLoop();
         this.totalShardCount = dataShardCount + parityShardCount;
         matrix = buildMatrix(dataShardCount, this.totalShardCount);
         parityRows = new byte [parityShardCount] [];
         for (int i = 0; i < parityShardCount; i++) {
             parityRows[i] = matrix.getRow(dataShardCount + i);
         }
+
+        if (cacheDecodeMatrices && totalShardCount <= 64) {
+            decodeMatrixCache = new ConcurrentHashMap<>();
+            precomputeDecodeMatrices();
+        } else {
+            decodeMatrixCache = null;
+        }
+    }
+
+    /**
+     * Returns how many decodes found their decode matrix in the cache.
+     */
+    public long getDecodeMatrixCacheHits() {
+        return decodeMatrixCacheHits.get();
+    }
+
+    /**
+     * Returns how many decodes had to invert a matrix.
+     */
+    public long getDecodeMatrixCacheMisses() {
+        return decodeMatrixCacheMisses.get();
+    }
+
+    /**
+     * Returns the fraction of decodes that found their decode matrix in
+     * the cache, or 0 before the first decode.
+     */
+    public double getDecodeMatrixCacheHitRate() {
+        long hits = decodeMatrixCacheHits.get();
+        long total = hits + decodeMatrixCacheMisses.get();
+        return total == 0 ? 0 : (double) hits / total;
     }
 
     /**
@@ -207,16 +323,14 @@ public class ReedSolomon {
         // correspond to the rows of the submatrix.  These shards
         // will be the input to the decoding process that re-creates
         // the missing data shards.
-        Matrix subMatrix = new Matrix(dataShardCount, dataShardCount);
         byte [] [] subShards = new byte [dataShardCount] [];
+        long subShardMask = 0;
         {
             int subMatrixRow = 0;
             for (int matrixRow = 0; matrixRow < totalShardCount && subMatrixRow < dataShardCount; matrixRow++) {
                 if (shardPresent[matrixRow]) {
-                    for (int c = 0; c < dataShardCount; c++) {
-                        subMatrix.set(subMatrixRow, c, matrix.get(matrixRow, c));
-                    }
                     subShards[subMatrixRow] = shards[matrixRow];
+                    subShardMask |= 1L << matrixRow;
                     subMatrixRow += 1;
                 }
             }
@@ -227,7 +341,7 @@ public class ReedSolomon {
         // generates the shard that we want to decode.  Note that
         // since this matrix maps back to the orginal data, it can
         // be used to create a data shard, but not a parity shard.
-        Matrix dataDecodeMatrix = subMatrix.invert();
+        byte [] [] dataDecodeRows = getDecodeRows(shardPresent, subShardMask);
 
         // Re-create any data shards that were missing.
         //
@@ -240,7 +354,7 @@ public class ReedSolomon {
         for (int iShard = 0; iShard < dataShardCount; iShard++) {
             if (!shardPresent[iShard]) {
                 outputs[outputCount] = shards[iShard];
-                matrixRows[outputCount] = dataDecodeMatrix.getRow(iShard);
+                matrixRows[outputCount] = dataDecodeRows[iShard];
                 outputCount += 1;
             }
         }
@@ -271,6 +385,441 @@ public class ReedSolomon {
                 offset, byteCount);
     }
 
+    /**
+     * Encodes parity for a set of data shards held in ByteBuffers, heap or
+     * direct, without copying them.
+     *
+     * @param shards An array containing data shards followed by parity shards.
+     *               Every buffer must have the same limit, and the parity
+     *               buffers must be writable.  Positions and limits are
+     *               not changed.
+     * @param offset The index of the first byte in each shard to encode.
+     * @param byteCount The number of bytes to encode in each shard.
+     */
+    public void encodeParity(ByteBuffer[] shards, int offset, int byteCount) {
+        // Check arguments.
+        checkBuffersAndSizes(shards, offset, byteCount);
+
+        // Build the array of output buffers.
+        ByteBuffer [] outputs = new ByteBuffer [parityShardCount];
+        System.arraycopy(shards, dataShardCount, outputs, 0, parityShardCount);
+        checkWritable(outputs, parityShardCount);
+
+        // Do the coding.
+        bufferCodingLoop.codeSomeShards(
+                parityRows,
+                shards, dataShardCount,
+                outputs, parityShardCount,
+                offset, byteCount);
+    }
+
+    /**
+     * Returns true if the parity shards, held in ByteBuffers, contain the
+     * right data.
+     *
+     * @param shards An array containing data shards followed by parity shards.
+     *               Every buffer must have the same limit.
+     * @param firstByte The index of the first byte in each shard to check.
+     * @param byteCount The number of bytes to check in each shard.
+     */
+    public boolean isParityCorrect(ByteBuffer[] shards, int firstByte, int byteCount) {
+        // Check arguments.
+        checkBuffersAndSizes(shards, firstByte, byteCount);
+
+        // Build the array of buffers being checked.
+        ByteBuffer [] toCheck = new ByteBuffer [parityShardCount];
+        System.arraycopy(shards, dataShardCount, toCheck, 0, parityShardCount);
+
+        // Do the checking.
+        return bufferCodingLoop.checkSomeShards(
+                parityRows,
+                shards, dataShardCount,
+                toCheck, parityShardCount,
+                firstByte, byteCount);
+    }
+
+    /**
+     * Given a list of shards held in ByteBuffers, some of which contain
+     * data, fills in the ones that don't have data.  Present shards are
+     * only read, so they can be read-only views of received or memory
+     * mapped data; the missing ones must be writable.
+     *
+     * Quickly does nothing if all of the shards are present.
+     */
+    public void decodeMissing(ByteBuffer [] shards,
+                              boolean [] shardPresent,
+                              final int offset,
+                              final int byteCount) {
+        // Check arguments.
+        checkBuffersAndSizes(shards, offset, byteCount);
+
+        // Quick check: are all of the shards present?  If so, there's
+        // nothing to do.
+        int numberPresent = 0;
+        for (int i = 0; i < totalShardCount; i++) {
+            if (shardPresent[i]) {
+                numberPresent += 1;
+            }
+        }
+        if (numberPresent == totalShardCount) {
+            return;
+        }
+        if (numberPresent < dataShardCount) {
+            throw new IllegalArgumentException("Not enough shards present");
+        }
+
+        // Same steps as the byte array version, see there.
+        ByteBuffer [] subShards = new ByteBuffer [dataShardCount];
+        long subShardMask = 0;
+        {
+            int subMatrixRow = 0;
+            for (int matrixRow = 0; matrixRow < totalShardCount && subMatrixRow < dataShardCount; matrixRow++) {
+                if (shardPresent[matrixRow]) {
+                    subShards[subMatrixRow] = shards[matrixRow];
+                    subShardMask |= 1L << matrixRow;
+                    subMatrixRow += 1;
+                }
+            }
+        }
+        byte [] [] dataDecodeRows = getDecodeRows(shardPresent, subShardMask);
+
+        ByteBuffer [] outputs = new ByteBuffer [parityShardCount];
+        byte [] [] matrixRows = new byte [parityShardCount] [];
+        int outputCount = 0;
+        for (int iShard = 0; iShard < dataShardCount; iShard++) {
+            if (!shardPresent[iShard]) {
+                outputs[outputCount] = shards[iShard];
+                matrixRows[outputCount] = dataDecodeRows[iShard];
+                outputCount += 1;
+            }
+        }
+        checkWritable(outputs, outputCount);
+        bufferCodingLoop.codeSomeShards(
+                matrixRows,
+                subShards, dataShardCount,
+                outputs, outputCount,
+                offset, byteCount);
+
+        outputCount = 0;
+        for (int iShard = dataShardCount; iShard < totalShardCount; iShard++) {
+            if (!shardPresent[iShard]) {
+                outputs[outputCount] = shards[iShard];
+                matrixRows[outputCount] = parityRows[iShard - dataShardCount];
+                outputCount += 1;
+            }
+        }
+        checkWritable(outputs, outputCount);
+        bufferCodingLoop.codeSomeShards(
+                matrixRows,
+                shards, dataShardCount,
+                outputs, outputCount,
+                offset, byteCount);
+    }
+
+    /**
+     * Like decodeMissing, but only fills in the missing shards that are
+     * wanted, e.g. just the data shards for a read, or just the shard of
+     * the server being rebuilt.  Other missing shards are left as they
+     * are.
+     *
+     * Every wanted shard, parity included, is computed straight from the
+     * first dataShardCount present shards in one pass; a wanted parity
+     * shard uses its parity row multiplied by the decode matrix, so the
+     * missing data shards don't have to be rebuilt first.
+     *
+     * @param shards All of the shards; the wanted missing ones are filled in.
+     * @param shardPresent Which shards hold data.
+     * @param shardWanted Which shards the caller needs.
+     * @param offset The index of the first byte in each shard to decode.
+     * @param byteCount The number of bytes to decode in each shard.
+     */
+    public void decodeSome(byte [] [] shards,
+                           boolean [] shardPresent,
+                           boolean [] shardWanted,
+                           final int offset,
+                           final int byteCount) {
+        // Check arguments.
+        checkBuffersAndSizes(shards, offset, byteCount);
+        if (!checkEnoughPresent(shardPresent, shardWanted)) {
+            return;
+        }
+
+        // Same inputs as decodeMissing.
+        byte [] [] subShards = new byte [dataShardCount] [];
+        long subShardMask = 0;
+        {
+            int subMatrixRow = 0;
+            for (int matrixRow = 0; matrixRow < totalShardCount && subMatrixRow < dataShardCount; matrixRow++) {
+                if (shardPresent[matrixRow]) {
+                    subShards[subMatrixRow] = shards[matrixRow];
+                    subShardMask |= 1L << matrixRow;
+                    subMatrixRow += 1;
+                }
+            }
+        }
+
+        int [] wantedShards = new int [totalShardCount];
+        byte [] [] matrixRows = getWantedRows(shardPresent, shardWanted, subShardMask, wantedShards);
+        byte [] [] outputs = new byte [matrixRows.length] [];
+        for (int i = 0; i < outputs.length; i++) {
+            outputs[i] = shards[wantedShards[i]];
+        }
+        codingLoop.codeSomeShards(
+                matrixRows,
+                subShards, dataShardCount,
+                outputs, outputs.length,
+                offset, byteCount);
+    }
+
+    /**
+     * ByteBuffer version of decodeSome.  Present shards are only read;
+     * the wanted missing ones must be writable.
+     */
+    public void decodeSome(ByteBuffer [] shards,
+                           boolean [] shardPresent,
+                           boolean [] shardWanted,
+                           final int offset,
+                           final int byteCount) {
+        // Check arguments.
+        checkBuffersAndSizes(shards, offset, byteCount);
+        if (!checkEnoughPresent(shardPresent, shardWanted)) {
+            return;
+        }
+
+        ByteBuffer [] subShards = new ByteBuffer [dataShardCount];
+        long subShardMask = 0;
+        {
+            int subMatrixRow = 0;
+            for (int matrixRow = 0; matrixRow < totalShardCount && subMatrixRow < dataShardCount; matrixRow++) {
+                if (shardPresent[matrixRow]) {
+                    subShards[subMatrixRow] = shards[matrixRow];
+                    subShardMask |= 1L << matrixRow;
+                    subMatrixRow += 1;
+                }
+            }
+        }
+
+        int [] wantedShards = new int [totalShardCount];
+        byte [] [] matrixRows = getWantedRows(shardPresent, shardWanted, subShardMask, wantedShards);
+        ByteBuffer [] outputs = new ByteBuffer [matrixRows.length];
+        for (int i = 0; i < outputs.length; i++) {
+            outputs[i] = shards[wantedShards[i]];
+        }
+        checkWritable(outputs, outputs.length);
+        bufferCodingLoop.codeSomeShards(
+                matrixRows,
+                subShards, dataShardCount,
+                outputs, outputs.length,
+                offset, byteCount);
+    }
+
+    /**
+     * Returns false if no wanted shard is missing, so there is nothing to
+     * decode, and throws if there are not enough shards to decode from.
+     */
+    private boolean checkEnoughPresent(boolean [] shardPresent, boolean [] shardWanted) {
+        int numberPresent = 0;
+        boolean wantedMissing = false;
+        for (int i = 0; i < totalShardCount; i++) {
+            if (shardPresent[i]) {
+                numberPresent += 1;
+            } else if (shardWanted[i]) {
+                wantedMissing = true;
+            }
+        }
+        if (!wantedMissing) {
+            return false;
+        }
+        if (numberPresent < dataShardCount) {
+            throw new IllegalArgumentException("Not enough shards present");
+        }
+        return true;
+    }
+
+    /**
+     * Returns the matrix rows that compute each wanted missing shard from
+     * the sub shards, and stores the index of each of those shards in
+     * wantedShards.
+     */
+    private byte [] [] getWantedRows(boolean [] shardPresent, boolean [] shardWanted, long subShardMask,
+                                     int [] wantedShards) {
+        byte [] [] dataDecodeRows = getDecodeRows(shardPresent, subShardMask);
+        byte [] [] rows = new byte [totalShardCount] [];
+        int rowCount = 0;
+        for (int iShard = 0; iShard < totalShardCount; iShard++) {
+            if (shardPresent[iShard] || !shardWanted[iShard]) {
+                continue;
+            }
+            if (iShard < dataShardCount) {
+                rows[rowCount] = dataDecodeRows[iShard];
+            } else {
+                // parity = parityRow * data = parityRow * (dataDecodeRows * subShards)
+                byte [] parityRow = parityRows[iShard - dataShardCount];
+                byte [] row = new byte [dataShardCount];
+                for (int iData = 0; iData < dataShardCount; iData++) {
+                    for (int c = 0; c < dataShardCount; c++) {
+                        row[c] ^= Galois.multiply(parityRow[iData], dataDecodeRows[iData][c]);
+                    }
+                }
+                rows[rowCount] = row;
+            }
+            wantedShards[rowCount] = iShard;
+            rowCount += 1;
+        }
+        return Arrays.copyOf(rows, rowCount);
+    }
+
+    /**
+     * Computes how every parity shard changes when bytes of one data shard
+     * are overwritten, without needing the other data shards.
+     *
+     * Parity is linear in the data, so each parity shard changes by its
+     * coefficient for the data shard times (oldData XOR newData).  XORing
+     * the deltas into the old parity shards (see applyParityDelta) gives
+     * the same parity as encoding the updated data shards from scratch.
+     *
+     * @param dataShardIndex The index of the data shard being overwritten.
+     * @param oldData The data shard, or the part of it, before the write.
+     * @param newData The same bytes after the write.
+     * @param parityDeltas parityShardCount buffers of at least byteCount
+     *                     bytes where the deltas are stored, from index 0.
+     * @param offset The index of the first byte in oldData and newData to process.
+     * @param byteCount The number of bytes to process.
+     */
+    public void encodeParityDelta(int dataShardIndex, byte[] oldData, byte[] newData, byte[][] parityDeltas,
+                                  int offset, int byteCount) {
+        // Check arguments.
+        if (dataShardIndex < 0 || dataShardIndex >= dataShardCount) {
+            throw new IllegalArgumentException("not a data shard: " + dataShardIndex);
+        }
+        if (parityDeltas.length != parityShardCount) {
+            throw new IllegalArgumentException("wrong number of parity deltas: " + parityDeltas.length);
+        }
+        if (offset < 0) {
+            throw new IllegalArgumentException("offset is negative: " + offset);
+        }
+        if (byteCount < 0) {
+            throw new IllegalArgumentException("byteCount is negative: " + byteCount);
+        }
+        final int end = offset + byteCount;
+        if (oldData.length < end || newData.length < end) {
+            throw new IllegalArgumentException("buffers to small: " + byteCount + offset);
+        }
+        for (byte [] parityDelta : parityDeltas) {
+            if (parityDelta.length < byteCount) {
+                throw new IllegalArgumentException("buffers to small: " + byteCount + offset);
+            }
+        }
+
+        // The one input is the change to the data shard, and each output
+        // only uses the coefficient of that shard.
+        final byte [] dataDelta = new byte [byteCount];
+        for (int i = 0; i < byteCount; i++) {
+            dataDelta[i] = (byte) (oldData[offset + i] ^ newData[offset + i]);
+        }
+        final byte [] [] matrixRows = new byte [parityShardCount] [];
+        for (int iParity = 0; iParity < parityShardCount; iParity++) {
+            matrixRows[iParity] = new byte [] { parityRows[iParity][dataShardIndex] };
+        }
+
+        // Do the coding.
+        codingLoop.codeSomeShards(
+                matrixRows,
+                new byte [] [] { dataDelta }, 1,
+                parityDeltas, parityShardCount,
+                0, byteCount);
+    }
+
+    /**
+     * XORs a delta from encodeParityDelta into a parity shard.
+     *
+     * @param parityShard The parity shard, or the part of it, to patch.
+     * @param parityDelta The delta, from index 0.
+     * @param offset The index of the first byte in parityShard to patch.
+     * @param byteCount The number of bytes to patch.
+     */
+    public static void applyParityDelta(byte[] parityShard, byte[] parityDelta, int offset, int byteCount) {
+        for (int i = 0; i < byteCount; i++) {
+            parityShard[offset + i] ^= parityDelta[i];
+        }
+    }
+
+    /**
+     * Returns the rows of the inverted decode matrix for the given present
+     * shards, from the cache if there is one.
+     */
+    private byte [] [] getDecodeRows(boolean [] shardPresent, long subShardMask) {
+        if (decodeMatrixCache == null) {
+            return invertSubMatrix(shardPresent);
+        }
+        byte [] [] rows = decodeMatrixCache.get(subShardMask);
+        if (rows != null) {
+            decodeMatrixCacheHits.incrementAndGet();
+            return rows;
+        }
+        decodeMatrixCacheMisses.incrementAndGet();
+        rows = invertSubMatrix(shardPresent);
+        decodeMatrixCache.putIfAbsent(subShardMask, rows);
+        return rows;
+    }
+
+    /**
+     * Pulls out the rows of the matrix that correspond to the first
+     * dataShardCount present shards, and inverts that square matrix.
+     */
+    private byte [] [] invertSubMatrix(boolean [] shardPresent) {
+        Matrix subMatrix = new Matrix(dataShardCount, dataShardCount);
+        int subMatrixRow = 0;
+        for (int matrixRow = 0; matrixRow < totalShardCount && subMatrixRow < dataShardCount; matrixRow++) {
+            if (shardPresent[matrixRow]) {
+                for (int c = 0; c < dataShardCount; c++) {
+                    subMatrix.set(subMatrixRow, c, matrix.get(matrixRow, c));
+                }
+                subMatrixRow += 1;
+            }
+        }
+        Matrix dataDecodeMatrix = subMatrix.invert();
+        byte [] [] rows = new byte [dataShardCount] [];
+        for (int r = 0; r < dataShardCount; r++) {
+            rows[r] = dataDecodeMatrix.getRow(r);
+        }
+        return rows;
+    }
+
+    /**
+     * Fills the decode matrix cache with every choice of dataShardCount
+     * shards out of totalShardCount, if there are few enough of them.
+     */
+    private void precomputeDecodeMatrices() {
+        long patterns = 1;
+        for (int i = 0; i < Math.min(dataShardCount, parityShardCount); i++) {
+            patterns = patterns * (totalShardCount - i) / (i + 1);
+            if (MAX_PRECOMPUTED_DECODE_MATRICES < patterns) {
+                return;
+            }
+        }
+        if (dataShardCount == 0) {
+            return;
+        }
+
+        // Walk all masks with dataShardCount bits set, in increasing order.
+        final long last = ((1L << dataShardCount) - 1) << parityShardCount;
+        long mask = (1L << dataShardCount) - 1;
+        boolean [] shardPresent = new boolean [totalShardCount];
+        while (true) {
+            for (int i = 0; i < totalShardCount; i++) {
+                shardPresent[i] = (mask & (1L << i)) != 0;
+            }
+            decodeMatrixCache.put(mask, invertSubMatrix(shardPresent));
+            if (mask == last) {
+                break;
+            }
+            long lowest = mask & -mask;
+            long ripple = mask + lowest;
+            mask = ripple | (((mask ^ ripple) >>> 2) / lowest);
+        }
+    }
+
     /**
      * Checks the consistency of arguments passed to public methods.
      */
@@ -301,6 +850,38 @@ public class ReedSolomon {
         }
     }
 
+    /**
+     * Checks the consistency of arguments passed to the ByteBuffer methods.
+     */
+    private void checkBuffersAndSizes(ByteBuffer [] shards, int offset, int byteCount) {
+        if (shards.length != totalShardCount) {
+            throw new IllegalArgumentException("wrong number of shards: " + shards.length);
+        }
+        int shardLength = shards[0].limit();
+        for (int i = 1; i < shards.length; i++) {
+            if (shards[i].limit() != shardLength) {
+                throw new IllegalArgumentException("Shards are different sizes");
+            }
+        }
+        if (offset < 0) {
+            throw new IllegalArgumentException("offset is negative: " + offset);
+        }
+        if (byteCount < 0) {
+            throw new IllegalArgumentException("byteCount is negative: " + byteCount);
+        }
+        if (shardLength < offset + byteCount) {
+            throw new IllegalArgumentException("buffers to small: " + byteCount + offset);
+        }
+    }
+
+    private static void checkWritable(ByteBuffer [] outputs, int outputCount) {
+        for (int i = 0; i < outputCount; i++) {
+            if (outputs[i].isReadOnly()) {
+                throw new IllegalArgumentException("output shard buffer is read-only");
+            }
+        }
+    }
+
     /**
      * Create the matrix to use for encoding, given the number of
      * data shards and the number of total shards.
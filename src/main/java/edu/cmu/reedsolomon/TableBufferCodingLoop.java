@@ -0,0 +1,68 @@
+package edu.cmu.reedsolomon;
+
+import java.nio.ByteBuffer;
+
+/**
+ * ByteBuffer coding loop that works with any buffer, heap or direct,
+ * using the multiplication table.
+ *
+ * Reading a direct buffer one byte at a time is much slower than indexing
+ * an array, so the shards are coded BLOCK_SIZE bytes at a time: each block
+ * is bulk copied into small scratch arrays that stay in L1, coded with
+ * InputOutputByteTableCodingLoop, and the outputs bulk copied back.
+ */
+public class TableBufferCodingLoop implements BufferCodingLoop {
+
+    private static final int BLOCK_SIZE = 4096;
+
+    private final CodingLoop arrayLoop = new InputOutputByteTableCodingLoop();
+
+    @Override
+    public void codeSomeShards(
+            byte[][] matrixRows,
+            ByteBuffer[] inputs, int inputCount,
+            ByteBuffer[] outputs, int outputCount,
+            int offset, int byteCount) {
+
+        final int blockSize = Math.min(BLOCK_SIZE, byteCount);
+        final byte [] [] inputBlocks = new byte [inputCount] [blockSize];
+        final byte [] [] outputBlocks = new byte [outputCount] [blockSize];
+        for (int start = offset; start < offset + byteCount; start += blockSize) {
+            final int length = Math.min(blockSize, offset + byteCount - start);
+            for (int iInput = 0; iInput < inputCount; iInput++) {
+                inputs[iInput].get(start, inputBlocks[iInput], 0, length);
+            }
+            arrayLoop.codeSomeShards(matrixRows, inputBlocks, inputCount, outputBlocks, outputCount, 0, length);
+            for (int iOutput = 0; iOutput < outputCount; iOutput++) {
+                outputs[iOutput].put(start, outputBlocks[iOutput], 0, length);
+            }
+        }
+    }
+
+    @Override
+    public boolean checkSomeShards(
+            byte[][] matrixRows,
+            ByteBuffer[] inputs, int inputCount,
+            ByteBuffer[] toCheck, int checkCount,
+            int offset, int byteCount) {
+
+        final int blockSize = Math.min(BLOCK_SIZE, byteCount);
+        final byte [] [] inputBlocks = new byte [inputCount] [blockSize];
+        final byte [] [] checkBlocks = new byte [checkCount] [blockSize];
+        final byte [] tempBuffer = new byte [blockSize];
+        for (int start = offset; start < offset + byteCount; start += blockSize) {
+            final int length = Math.min(blockSize, offset + byteCount - start);
+            for (int iInput = 0; iInput < inputCount; iInput++) {
+                inputs[iInput].get(start, inputBlocks[iInput], 0, length);
+            }
+            for (int iCheck = 0; iCheck < checkCount; iCheck++) {
+                toCheck[iCheck].get(start, checkBlocks[iCheck], 0, length);
+            }
+            if (!arrayLoop.checkSomeShards(matrixRows, inputBlocks, inputCount, checkBlocks, checkCount,
+                    0, length, tempBuffer)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
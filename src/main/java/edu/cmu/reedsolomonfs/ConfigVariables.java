@@ -7,4 +7,30 @@ public class ConfigVariables {
     public static final int PARITY_SHARD_COUNT = 2; // number of parity disks in RSFS
     public static final int TOTAL_SHARD_COUNT = DATA_SHARD_COUNT + PARITY_SHARD_COUNT; // total number of disks in RSFS
     public static final int FILE_SIZE_MULTIPLE = DATA_SHARD_COUNT * BLOCK_SIZE;
+    public static final boolean STAGED_WRITE = true; // send each shard only to its chunkserver, Raft only logs a commit record
+    public static final long STAGED_SHARD_TIMEOUT = 600; // seconds a staged shard waits for its commit before the chunkserver drops it
+    public static final long CHUNK_STORE_SEGMENT_SIZE = 64L * MB; // bytes of chunk records per segment file of a chunkserver's chunk store
+    public static final double CHUNK_STORE_COMPACTION_THRESHOLD = 0.5; // share of a full segment's bytes that are dead before it is compacted
+    public static final long CHUNK_STORE_CHECKPOINT_INTERVAL = 64L * MB; // bytes appended to a chunk store between checkpoints of its index
+    public static final boolean CHUNK_METADATA_ROCKSDB = false; // keep a chunkserver's chunk metadata in RocksDB instead of rebuilding it in memory on start
+    public static final int CHUNK_IO_QUEUE_CAPACITY = 1024; // chunk writes waiting for a chunkserver's disk before applying the log blocks
+    public static final int CHUNK_IO_METRICS_REPORT_INTERVAL = 60; // seconds between logged reports of a chunkserver's disk metrics
+    public static final String CHUNK_SYNC_MODE = "GROUP_COMMIT"; // when a chunkserver fsyncs chunk writes: NONE, PER_WRITE or GROUP_COMMIT, once per window
+    public static final long CHUNK_SYNC_WINDOW_MILLIS = 5; // milliseconds a chunk write waits at most for the group commit making it durable
+    public static final long CHUNK_SYNC_WINDOW_BYTES = MB; // bytes of chunk writes that start a group commit before the window is over
+    public static final int WRITE_BATCH_SIZE = MB; // bytes of a file encoded and staged together by a streaming write, a multiple of FILE_SIZE_MULTIPLE
+    public static final int WRITE_PIPELINE_DEPTH = 4; // batches a streaming write keeps staging while it encodes the next one
+    public static final boolean VECTOR_CODING_LOOP = true; // use the SIMD coding loop when jdk.incubator.vector is loaded
+    public static final int CODING_PARALLELISM = Runtime.getRuntime().availableProcessors(); // threads coding one large encode/decode call
+    public static final int READAHEAD_REQUEST_SIZE = MB; // bytes of a file fetched and decoded per request of a sequential stream, a multiple of FILE_SIZE_MULTIPLE
+    public static final int READAHEAD_MAX_WINDOW = 8; // requests a sequential stream keeps in flight ahead of the reader at most
+    public static final long STRIPE_CACHE_SIZE = 64L * MB; // bytes of decoded stripes a client keeps for repeated reads
+    public static final long METADATA_MAX_AGE = 1000; // milliseconds a client lists and looks up files from its cached metadata before asking the master for changes
+    public static final int DELETED_FILE_HISTORY = 10000; // deleted files the master remembers for clients asking for changes, clients from before the oldest one get every file's metadata
+    public static final long SECRET_KEY_ROTATION_INTERVAL = 600; // seconds between rotations of the key the master signs tokens with, chunkservers also take tokens of the key before theirs
+    public static final long TOKEN_TTL = 60; // seconds a token is valid for, a write is committed with it at most once and must be committed before it expires
+    public static final int ASYNC_MAX_IN_FLIGHT = 64; // operations an asynchronous client runs at a time before callers block
+    public static final boolean HEDGED_READ = true; // read the data servers first, parity servers only in place of stragglers
+    public static final double HEDGED_READ_PERCENTILE = 0.95; // a data server slower than this percentile of recent reads is a straggler
+    public static final int CODING_MIN_STRIPE_SIZE = 64 * 1024; // bytes per shard below which a coding call is not split further
 }
@@ -17,7 +17,6 @@ import org.apache.commons.cli.Options;
 
 import edu.cmu.reedsolomonfs.cli.DirectoryTree.Node;
 import edu.cmu.reedsolomonfs.client.Client;
-import edu.cmu.reedsolomonfs.server.MasterserverOutter.GRPCMetadata;
 import edu.cmu.reedsolomonfs.server.MasterserverOutter.TokenResponse;
 import java.nio.file.Paths;
 
@@ -58,9 +57,8 @@ public class ClientCLI implements KeyListener {
 
         TokenResponse tResponse = client.requestToken("read", "/A/B/C");
         String token = tResponse.getToken();
-        List<GRPCMetadata> m = tResponse.getMetadataList();
-        for (GRPCMetadata data : m) {
-            tree.addPath(data.getFilePath());
+        for (String filePath : Client.getMetadata().getFilePaths()) {
+            tree.addPath(filePath);
         }
 
         root = tree.getRoot();
@@ -106,11 +104,9 @@ public class ClientCLI implements KeyListener {
                 System.out.println(localPath);
             } else if (words[0].equals("ls")) {
                 tree = new DirectoryTree();
-                TokenResponse tResponse1 = client.requestToken("read", "/A/B/C");
-                token = tResponse1.getToken();
-                List<GRPCMetadata> m1 = tResponse1.getMetadataList();
-                for (GRPCMetadata data : m1) {
-                    tree.addPath(data.getFilePath());
+                // cached metadata, refreshed with the changes since the last ls
+                for (String filePath : Client.getMetadata().getFilePaths()) {
+                    tree.addPath(filePath);
                 }
                 root = tree.getRoot();
 
@@ -157,6 +153,8 @@ public class ClientCLI implements KeyListener {
                         } else {
                             wholePath = localPath + '/' + words[1];
                         }
+                        // a token is good for one write
+                        token = client.requestToken("write", wholePath).getToken();
                         client.create(client.cliClientService, wholePath, fileData, client.groupId, token);
                         tree.addPath(wholePath);
                     } catch (IOException e) {
@@ -174,6 +172,10 @@ public class ClientCLI implements KeyListener {
                     wholePath = localPath + '/' + words[1];
                 }
 
+                if (Client.getMetadata().get(wholePath) == null) {
+                    System.out.println("File read does not exist?");
+                    continue;
+                }
                 byte[] fileDataRead = client.read(client.cliClientService, "read", wholePath, 724, client.groupId);
                 if (fileDataRead == null) {
                     System.out.println("File read does not exist?");
@@ -192,6 +194,7 @@ public class ClientCLI implements KeyListener {
                     wholePath = localPath + '/' + words[1];
                 }
 
+                token = client.requestToken("delete", wholePath).getToken();
                 client.delete(client.cliClientService, wholePath, client.groupId, token);
                 // System.out.println(wholePath);
                 // tree.delete(wholePath);
@@ -0,0 +1,153 @@
+package edu.cmu.reedsolomonfs.client;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import edu.cmu.reedsolomonfs.ConfigVariables;
+import edu.cmu.reedsolomonfs.server.MasterserverOutter.GRPCMetadata;
+
+/**
+ * Non-blocking front of a Client: every operation returns a future at once
+ * and runs concurrently with the others.
+ *
+ * At most maxInFlight operations run at a time, each on one of at most
+ * maxInFlight threads, which exit when idle. Starting another one blocks the
+ * caller until one finishes, so a caller issuing operations faster than the
+ * cluster completes them is slowed down instead of queueing without bound.
+ *
+ * Each write asks the master for a token of its own right before it runs,
+ * as a token is good for one write and only for TOKEN_TTL. The master
+ * rotates the key tokens are signed with on a timer, and the chunkservers
+ * take tokens of the key before theirs too, so writes running concurrently
+ * do not invalidate each other's tokens. A write the
+ * chunkservers reject or do not apply completes its future exceptionally.
+ */
+public class AsyncClient implements AutoCloseable {
+
+    private final Client client;
+    private final int maxInFlight;
+    private final Semaphore inFlight;
+    private final ThreadPoolExecutor executor;
+
+    public AsyncClient(Client client) {
+        this(client, ConfigVariables.ASYNC_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * @param maxInFlight operations running at a time at most
+     */
+    public AsyncClient(Client client, int maxInFlight) {
+        if (maxInFlight < 1)
+            throw new IllegalArgumentException("maxInFlight must be at least 1, not " + maxInFlight);
+        this.client = client;
+        this.maxInFlight = maxInFlight;
+        inFlight = new Semaphore(maxInFlight);
+        executor = new ThreadPoolExecutor(maxInFlight, maxInFlight, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread thread = new Thread(r, "rsfs-async-client");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Create a file, completing once it is committed
+     */
+    public CompletableFuture<Void> create(String filePath, byte[] fileData) {
+        return submit(() -> {
+            String token = client.requestToken("write", filePath).getToken();
+            client.create(client.cliClientService, filePath, fileData, client.groupId, token);
+            return null;
+        });
+    }
+
+    /**
+     * Read a whole file
+     *
+     * @return a future of the file's bytes, or of null if it does not exist
+     */
+    public CompletableFuture<byte[]> read(String filePath, int fileSize) {
+        return submit(() -> Client.read(client.cliClientService, "read", filePath, fileSize, client.groupId));
+    }
+
+    /**
+     * Read length bytes at offset of a file
+     *
+     * @return a future of the bytes, or of null if the file does not exist
+     */
+    public CompletableFuture<byte[]> readRange(String filePath, int fileSize, int offset, int length) {
+        return submit(() -> Client.readRange(client.cliClientService, filePath, fileSize, offset, length,
+                client.groupId));
+    }
+
+    /**
+     * Delete a file, completing once the delete is applied
+     */
+    public CompletableFuture<Void> delete(String filePath) {
+        return submit(() -> {
+            String token = client.requestToken("delete", filePath).getToken();
+            client.delete(client.cliClientService, filePath, client.groupId, token);
+            return null;
+        });
+    }
+
+    /**
+     * Look a file up in the client's metadata, refreshed from the master if it
+     * is older than METADATA_MAX_AGE
+     *
+     * @return a future of the file's metadata, or of null if it does not exist
+     */
+    public CompletableFuture<GRPCMetadata> stat(String filePath) {
+        return submit(() -> Client.getMetadata().get(filePath));
+    }
+
+    /**
+     * @return operations currently running
+     */
+    public int getInFlight() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    /**
+     * Stop taking operations; the ones running still complete
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+
+    private <T> CompletableFuture<T> submit(Operation<T> operation) {
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return CompletableFuture.failedFuture(e);
+        }
+        CompletableFuture<T> result = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    result.complete(operation.run());
+                } catch (Throwable e) {
+                    result.completeExceptionally(e);
+                } finally {
+                    inFlight.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.release();
+            result.completeExceptionally(new IllegalStateException("AsyncClient is closed", e));
+        }
+        return result;
+    }
+
+    @FunctionalInterface
+    private interface Operation<T> {
+        T run() throws Exception;
+    }
+}
@@ -23,35 +23,58 @@ import com.alipay.sofa.jraft.error.RemotingException;
 
 import edu.cmu.reedsolomonfs.server.MasterServiceGrpc;
 import edu.cmu.reedsolomonfs.server.Chunkserver.rpc.ChunkserverGrpcHelper;
-import edu.cmu.reedsolomonfs.server.ChunkserverOutter.ValueResponse;
 import com.alipay.sofa.jraft.option.CliOptions;
 import com.alipay.sofa.jraft.rpc.InvokeCallback;
 import com.alipay.sofa.jraft.rpc.impl.cli.CliClientServiceImpl;
-import com.google.common.primitives.Bytes;
 import com.google.protobuf.ByteString;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.lang.reflect.InaccessibleObjectException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.CRC32;
+import edu.cmu.reedsolomon.ReedSolomon;
 import edu.cmu.reedsolomonfs.client.Reedsolomonfs.WriteRequest;
-import edu.cmu.reedsolomonfs.datatype.FileMetadata;
+import edu.cmu.reedsolomonfs.datatype.FileMetadataHelper;
 import edu.cmu.reedsolomonfs.cli.ClientCLI;
 import edu.cmu.reedsolomonfs.ConfigVariables;
 import edu.cmu.reedsolomonfs.client.Reedsolomonfs.ReadRequest;
+import edu.cmu.reedsolomonfs.server.ChunkserverOutter.ValueResponse;
+import edu.cmu.reedsolomonfs.server.MasterserverOutter.MetadataChangesRequest;
 import edu.cmu.reedsolomonfs.server.MasterserverOutter.TokenRequest;
 import edu.cmu.reedsolomonfs.server.MasterserverOutter.TokenResponse;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class Client {
 
+    private static final Logger LOG = LoggerFactory.getLogger(Client.class);
+
     static ClientCLI cli = new ClientCLI();
+    // only codes single blocks, for parity deltas of overwrites
+    private static final ReedSolomon REED_SOLOMON = ReedSolomon.create(ConfigVariables.DATA_SHARD_COUNT,
+            ConfigVariables.PARITY_SHARD_COUNT, ConfigVariables.VECTOR_CODING_LOOP);
+    // decoded stripes of recent reads, and the master's metadata holding the
+    // version of each file they are keyed by; files without a known version
+    // are not cached
+    private static final StripeCache STRIPE_CACHE = new StripeCache(ConfigVariables.STRIPE_CACHE_SIZE);
+    private static final MetadataCache METADATA_CACHE = new MetadataCache();
+    // channel the shared metadata is refreshed through, that of the client
+    // connected last
+    private static volatile ManagedChannel metadataChannel;
+    // time each chunkserver took to answer the last read, -1 where it did not
+    private static volatile long[] readLatencyNanos = new long[0];
     public ManagedChannel channel;
     public CliClientServiceImpl cliClientService;
     public String groupId;
@@ -99,12 +122,10 @@ public class Client {
         channel = ManagedChannelBuilder.forAddress("master", 8080)
                 .usePlaintext() // Use insecure connection, for testing only
                 .build();
+        metadataChannel = channel;
     }
 
     public void test(final String[] args) throws Exception {
-        // Cache file metadata
-        Map<String, FileMetadata> cache = new HashMap<>();
-
         TokenResponse tResponse = requestToken("read", "/A/B/C");
         System.out.println("Token received: " + tResponse.getToken());
 
@@ -160,85 +181,212 @@ public class Client {
             final String groupId)
             throws RemotingException,
             InterruptedException {
-        ReadRequest request = ReadRequest.newBuilder()
-                .setOperationType("read")
-                .setFilePath(filePath)
-                .build();
+        ByteArrayOutputStream fileData = new ByteArrayOutputStream(fileSize);
+        try {
+            if (!readTo(cliClientService, filePath, fileSize, fileData, groupId))
+                return null;
+        } catch (IOException e) {
+            // writing to memory does not fail, reading the chunks did
+            throw new IllegalStateException(e);
+        }
+        return fileData.toByteArray();
+    }
 
-        // send the request to all the peers in the cluster
-        // get the ip addresses of the cluster
-        final Configuration conf = RouteTable.getInstance().getConfiguration(groupId);
+    /**
+     * Stream a file into a sink through an RsfsInputStream, so the next
+     * stripes are fetched while the current ones are decoded and written out,
+     * and neither the client nor the chunkservers hold more than the readahead
+     * window of chunks however large the file is.
+     *
+     * @param fileSize size of the file
+     * @param sink     where the file is written, in order
+     * @return false if the file does not exist
+     */
+    public static boolean readTo(final CliClientServiceImpl cliClientService, String filePath, int fileSize,
+            OutputStream sink, final String groupId) throws IOException {
+        try (RsfsInputStream in = new RsfsInputStream(cliClientService, filePath, fileSize, groupId)) {
+            try {
+                in.transferTo(sink);
+            } catch (FileNotFoundException e) {
+                if (in.getPosition() == 0)
+                    return false;
+                throw new IOException(filePath + " disappeared after " + in.getPosition() + " bytes were read", e);
+            }
+        }
+        return true;
+    }
 
-        int serverCnt = 0;
-        int byteCntInShards = 0;
-        byte[][] shards = new byte[ConfigVariables.TOTAL_SHARD_COUNT][];
-        boolean[] shardsPresent = new boolean[ConfigVariables.TOTAL_SHARD_COUNT];
-        
-        for (PeerId peer : conf) {
+    /**
+     * Read length bytes at offset of a file. Only the chunks of the stripes
+     * covering the range are read, and only those stripes are decoded when a
+     * data server is missing. Decoded stripes are kept in the stripe cache
+     * under the file's version, refreshed from the master if the metadata is
+     * over METADATA_MAX_AGE old, and served from it until the master reports
+     * a newer one. readTo, RsfsInputStream and AsyncClient all read through
+     * here. If the metadata cannot be refreshed the stripe cache is not used.
+     *
+     * @param fileSize size of the file, to check the range against
+     * @return the bytes of the range, or null if the file does not exist
+     */
+    public static byte[] readRange(final CliClientServiceImpl cliClientService, String filePath, int fileSize,
+            int offset, int length, final String groupId) throws RemotingException, InterruptedException {
+        if (offset < 0 || length < 0 || offset + length > fileSize)
+            throw new IllegalArgumentException("Read of " + length + " bytes at " + offset
+                    + " does not fit in " + filePath + " of " + fileSize + " bytes");
+        if (length == 0)
+            return new byte[0];
+        Long fileVersion = currentFileVersion(filePath);
+        if (fileVersion == null) {
+            boolean[] shardsPresent = new boolean[ConfigVariables.TOTAL_SHARD_COUNT];
+            byte[][] shards = readShards(cliClientService, filePath, offset, length, groupId, shardsPresent);
+            if (shards == null)
+                return null;
+            return ReedSolomonDecoder.decodeRange(shards, shardsPresent, offset, length);
+        }
 
-            ValueResponse response = null;
-            try {
-                // invokeSync and print the result
-                response = (ValueResponse) cliClientService.getRpcClient().invokeSync(peer.getEndpoint(),
-                        request, 1500);
-            } catch (com.alipay.sofa.jraft.error.RemotingException e) {
-                // Handle the exception. For now, just print the error.
-                System.err.println("Failed to invoke RPC on " + peer.getEndpoint() + ": " + e.getMessage());
-                serverCnt++;
-                // Skip to the next iteration since this peer failed
-                continue;
+        int firstStripeIdx = FileMetadataHelper.stripeIdx(offset);
+        int lastStripeIdx = FileMetadataHelper.stripeIdx(offset + length - 1);
+        byte[][] stripes = new byte[lastStripeIdx - firstStripeIdx + 1][];
+        int firstMissingIdx = -1;
+        int lastMissingIdx = -1;
+        for (int stripeIdx = firstStripeIdx; stripeIdx <= lastStripeIdx; stripeIdx++) {
+            stripes[stripeIdx - firstStripeIdx] = STRIPE_CACHE.get(filePath, fileVersion, stripeIdx);
+            if (stripes[stripeIdx - firstStripeIdx] == null) {
+                if (firstMissingIdx < 0)
+                    firstMissingIdx = stripeIdx;
+                lastMissingIdx = stripeIdx;
             }
-            // System.out.println("peer:" + peer.getEndpoint());
-            // invokeSync and print the result
-            // ValueResponse response = (ValueResponse)
-            // cliClientService.getRpcClient().invokeSync(peer.getEndpoint(),
-            // request, 15000);
-
-            // System.out.println("Chunk Data:" + response.getChunkDataMapMap());
-            // System.out.println("Chunk Data Size:" +
-            // response.getChunkDataMapMap().size());
-
-            // save the chunk data in a map
-            Map<String, ByteString> chunkDataMap = new HashMap<>();
-            chunkDataMap.putAll(response.getChunkDataMapMap());
-
-            // get the sorted map key
-            Object[] sortedKeys = chunkDataMap.keySet().toArray();
-            // sort the map key by the int of substring from last index of ('-')
-            Arrays.sort(sortedKeys, (o1, o2) -> {
-                int o1Idx = ((String) o1).lastIndexOf('-');
-                int o2Idx = ((String) o2).lastIndexOf('-');
-                return Integer.valueOf(((String) o1).substring(o1Idx + 1)).compareTo(
-                        Integer.valueOf(((String) o2).substring(o2Idx + 1)));
-            });
-
-            // concate the sorted map value by key to byte[]
-            byte[] shardBytes = new byte[0];
-            for (Object key : sortedKeys) {
-                // System.out.println("key:" + key);
-                shardBytes = Bytes.concat(shardBytes, chunkDataMap.get(key).toByteArray());
+        }
+        if (firstMissingIdx >= 0) {
+            // one read for the missing stripes, cached ones between them are read again
+            int missingOffset = firstMissingIdx * ConfigVariables.FILE_SIZE_MULTIPLE;
+            int missingLength = (lastMissingIdx - firstMissingIdx + 1) * ConfigVariables.FILE_SIZE_MULTIPLE;
+            boolean[] shardsPresent = new boolean[ConfigVariables.TOTAL_SHARD_COUNT];
+            byte[][] shards = readShards(cliClientService, filePath, missingOffset, missingLength, groupId,
+                    shardsPresent);
+            if (shards == null)
+                return null;
+            byte[] missingData = ReedSolomonDecoder.decodeRange(shards, shardsPresent, missingOffset, missingLength);
+            for (int stripeIdx = firstMissingIdx; stripeIdx <= lastMissingIdx; stripeIdx++) {
+                int from = (stripeIdx - firstMissingIdx) * ConfigVariables.FILE_SIZE_MULTIPLE;
+                byte[] stripe = Arrays.copyOfRange(missingData, from, from + ConfigVariables.FILE_SIZE_MULTIPLE);
+                STRIPE_CACHE.put(filePath, fileVersion, stripeIdx, stripe);
+                stripes[stripeIdx - firstStripeIdx] = stripe;
             }
+        }
 
-            System.out.println("shardBytes Size:" + shardBytes.length);
+        byte[] rangeData = new byte[length];
+        for (int stripeIdx = firstStripeIdx; stripeIdx <= lastStripeIdx; stripeIdx++) {
+            int stripeStart = stripeIdx * ConfigVariables.FILE_SIZE_MULTIPLE;
+            int from = Math.max(offset, stripeStart);
+            int to = Math.min(offset + length, stripeStart + ConfigVariables.FILE_SIZE_MULTIPLE);
+            System.arraycopy(stripes[stripeIdx - firstStripeIdx], from - stripeStart, rangeData, from - offset,
+                    to - from);
+        }
+        return rangeData;
+    }
+
+    public static StripeCache getStripeCache() {
+        return STRIPE_CACHE;
+    }
+
+    /**
+     * @return the time each chunkserver took to answer the last read of this
+     *         client, in nanoseconds and by server index, -1 where it did not
+     */
+    public static long[] getLatencyNanos() {
+        return readLatencyNanos.clone();
+    }
+
+    /**
+     * The master's file metadata, shared by the clients of this process,
+     * asking the master for the files changed since the cached copy was
+     * refreshed if that was over METADATA_MAX_AGE ago. Listing and looking up
+     * files needs no round trip to the master in between, and a refresh only
+     * carries the files that changed.
+     */
+    public static MetadataCache getMetadata() {
+        if (METADATA_CACHE.isStale(ConfigVariables.METADATA_MAX_AGE))
+            refreshMetadata();
+        return METADATA_CACHE;
+    }
 
-            if (response.getChunkDataMapMap() != null && response.getChunkDataMapMap().size() != 0) {
-                shardsPresent[serverCnt] = true;
-                shards[serverCnt] = shardBytes;
-                byteCntInShards = shards[serverCnt].length;
+    /**
+     * Apply the files changed since the cached metadata's epoch, so cached
+     * stripes of files written since are not used
+     *
+     * @throws IllegalStateException if no client has connected to the master
+     */
+    public static void refreshMetadata() {
+        ManagedChannel channel = metadataChannel;
+        if (channel == null)
+            throw new IllegalStateException("No client is connected to the master");
+        MasterServiceGrpc.MasterServiceBlockingStub stub = MasterServiceGrpc.newBlockingStub(channel);
+        MetadataChangesRequest request = MetadataChangesRequest.newBuilder()
+                .setSinceEpoch(METADATA_CACHE.getEpoch())
+                .build();
+        METADATA_CACHE.applyChanges(stub.getMetadataChanges(request));
+    }
+
+    /**
+     * The version of a file to cache its stripes under, refreshing the
+     * metadata first if it is over METADATA_MAX_AGE old, as getMetadata does
+     *
+     * @return the version, or null if the file has none or the metadata could
+     *         not be refreshed, so the stripe cache is not used
+     */
+    private static Long currentFileVersion(String filePath) {
+        if (METADATA_CACHE.isStale(ConfigVariables.METADATA_MAX_AGE)) {
+            try {
+                refreshMetadata();
+            } catch (RuntimeException e) {
+                LOG.warn("Fail to refresh the file metadata, reading {} without the stripe cache", filePath, e);
+                return null;
             }
-            serverCnt++;
         }
-        if (byteCntInShards == 0) {
+        return METADATA_CACHE.getFileVersion(filePath, ConfigVariables.METADATA_MAX_AGE);
+    }
+
+    /**
+     * Drop what is cached of a file this client writes; it is cached again
+     * once the master reports its new version
+     */
+    private static void invalidateCache(String filePath) {
+        METADATA_CACHE.invalidate(filePath);
+        STRIPE_CACHE.invalidate(filePath);
+    }
+
+    /**
+     * Read the shards of a file from the chunkservers concurrently, returning as
+     * soon as there are enough of them to decode; parity servers are only asked
+     * in place of data servers that fail or, for hedged reads, are slow
+     *
+     * @param offset        first byte of the file to read
+     * @param length        bytes to read, 0 for the whole file; the shards hold
+     *                      the whole stripes covering them
+     * @param shardsPresent set for every shard that was read
+     * @return all data and parity shards, zero filled where missing, or null if
+     *         the file does not exist
+     */
+    private static byte[][] readShards(final CliClientServiceImpl cliClientService, String filePath, int offset,
+            int length, final String groupId, boolean[] shardsPresent)
+            throws RemotingException,
+            InterruptedException {
+        ReadRequest request = ShardFetcher.readRequest(filePath, offset, length);
+        ShardFetcher fetcher = ConfigVariables.HEDGED_READ
+                ? ShardFetcher.fetchHedged(cliClientService, request, groupId, 1500)
+                : ShardFetcher.fetchDataShards(cliClientService, request, groupId, 1500);
+        if (!fetcher.await(1500))
+            System.err.println("Not enough shards of " + filePath + " arrived in time");
+        byte[][] shards = fetcher.getShards(shardsPresent);
+        readLatencyNanos = fetcher.getLatencyNanos();
+        if (LOG.isDebugEnabled())
+            LOG.debug("Read latency per chunkserver of {}:\n{}", filePath, fetcher.latencyReport());
+        if (shards == null) {
             System.out.println("File does not exist");
             return null;
         }
-        for (int i = 0; i < ConfigVariables.TOTAL_SHARD_COUNT; i++) {
-            if (shards[i] == null)
-                shards[i] = new byte[byteCntInShards];
-        }
-
-        ReedSolomonDecoder decoder = new ReedSolomonDecoder(shards, shardsPresent, byteCntInShards, fileSize);
-        return decoder.getFileData();
+        return shards;
     }
 
     public TokenResponse requestToken(String requestType, String filePath) {
@@ -260,6 +408,8 @@ public class Client {
         // request);
         // Make the RPC call and receive the response
         TokenResponse response = stub.getToken(request);
+        // the response carries the metadata of every file anyway
+        METADATA_CACHE.applySnapshot(response.getMetadataList(), response.getMetadataEpoch());
 
         // System.out.println("JWT token received at client is: " +
         // response.getToken());
@@ -269,18 +419,94 @@ public class Client {
 
     public void delete(final CliClientServiceImpl cliClientService, String filePath,
             final String groupId, String token) throws RemotingException, InterruptedException {
-        final int n = 10000;
-        final CountDownLatch latch = new CountDownLatch(n);
-
         // System.out.println("Client delete: " + filePath);
+        invalidateCache(filePath);
         WriteRequest request = packWriteRequest("delete", filePath, -1, 0, null, "delete",
                 -1, -1, token);
         final PeerId leader = RouteTable.getInstance().selectLeader(groupId);
-        writeRequest(cliClientService, leader, request, latch);
+        awaitWrite(cliClientService, leader, request, "Delete of " + filePath);
     }
 
-    public static void overwrite() {
+    /**
+     * Overwrite bytes of an existing file in place. Each touched block only
+     * rewrites its own data chunk and the parity chunks of its stripe: the data
+     * chunkserver gets the new block, and each parity chunkserver the parity
+     * delta to XOR into its chunk, so the other data blocks of the stripe are
+     * neither sent nor read by the chunkservers. The current shards are read
+     * first, only in the stripes of the touched blocks, to get the old block and the
+     * checksums of the patched chunks.
+     *
+     * @param fileSize size of the file, which does not change
+     * @param offset   byte offset in the file of the first overwritten byte
+     * @param data     the new bytes
+     * @param token    token of the first block, a token is good for one write
+     *                 so the other blocks ask the master for their own
+     * @throws IllegalStateException if the chunkservers did not apply a block;
+     *                               the blocks before it stay overwritten
+     */
+    public void overwrite(final CliClientServiceImpl cliClientService, String filePath, int fileSize, int offset,
+            byte[] data, final String groupId, String token) throws RemotingException, InterruptedException {
+        if (offset < 0 || offset + data.length > fileSize)
+            throw new IllegalArgumentException("Overwrite of " + data.length + " bytes at " + offset
+                    + " does not fit in " + filePath + " of " + fileSize + " bytes");
+        if (data.length == 0)
+            return;
+        invalidateCache(filePath);
+        // only the stripes of the overwritten blocks are read
+        boolean[] shardsPresent = new boolean[ConfigVariables.TOTAL_SHARD_COUNT];
+        byte[][] shards = readShards(cliClientService, filePath, offset, data.length, groupId, shardsPresent);
+        if (shards == null)
+            throw new IllegalArgumentException("File " + filePath + " does not exist");
+        int firstStripeIdx = FileMetadataHelper.stripeIdx(offset);
+        // old parity is needed too, for the checksums of the patched parity chunks
+        REED_SOLOMON.decodeMissing(shards, shardsPresent, 0, shards[0].length);
+
+        final PeerId leader = RouteTable.getInstance().selectLeader(groupId);
+        int firstBlockIdx = offset / ConfigVariables.BLOCK_SIZE;
+        int lastBlockIdx = (offset + data.length - 1) / ConfigVariables.BLOCK_SIZE;
+        for (int blockIdx = firstBlockIdx; blockIdx <= lastBlockIdx; blockIdx++) {
+            int blockStart = blockIdx * ConfigVariables.BLOCK_SIZE;
+            int dataShardIdx = blockIdx % ConfigVariables.DATA_SHARD_COUNT;
+            int byteIdxInShard = (blockIdx / ConfigVariables.DATA_SHARD_COUNT - firstStripeIdx)
+                    * ConfigVariables.BLOCK_SIZE;
+
+            byte[] oldBlock = Arrays.copyOfRange(shards[dataShardIdx], byteIdxInShard,
+                    byteIdxInShard + ConfigVariables.BLOCK_SIZE);
+            byte[] newBlock = oldBlock.clone();
+            int from = Math.max(offset, blockStart);
+            int to = Math.min(offset + data.length, blockStart + ConfigVariables.BLOCK_SIZE);
+            System.arraycopy(data, from - offset, newBlock, from - blockStart, to - from);
+
+            byte[][] parityDeltas = new byte[ConfigVariables.PARITY_SHARD_COUNT][ConfigVariables.BLOCK_SIZE];
+            REED_SOLOMON.encodeParityDelta(dataShardIdx, oldBlock, newBlock, parityDeltas, 0,
+                    ConfigVariables.BLOCK_SIZE);
+
+            // chunks indexed by server, and their checksums once patched; the
+            // local shards are patched too so later blocks of the same stripe
+            // start from the right parity
+            byte[][] chunks = new byte[ConfigVariables.TOTAL_SHARD_COUNT][];
+            long[] chunkChecksums = new long[ConfigVariables.TOTAL_SHARD_COUNT];
+            chunks[dataShardIdx] = newBlock;
+            System.arraycopy(newBlock, 0, shards[dataShardIdx], byteIdxInShard, ConfigVariables.BLOCK_SIZE);
+            chunkChecksums[dataShardIdx] = checksum(newBlock);
+            for (int i = 0; i < ConfigVariables.PARITY_SHARD_COUNT; i++) {
+                int parityShardIdx = ConfigVariables.DATA_SHARD_COUNT + i;
+                chunks[parityShardIdx] = parityDeltas[i];
+                byte[] parityBlock = Arrays.copyOfRange(shards[parityShardIdx], byteIdxInShard,
+                        byteIdxInShard + ConfigVariables.BLOCK_SIZE);
+                ReedSolomon.applyParityDelta(parityBlock, parityDeltas[i], 0, ConfigVariables.BLOCK_SIZE);
+                System.arraycopy(parityBlock, 0, shards[parityShardIdx], byteIdxInShard, ConfigVariables.BLOCK_SIZE);
+                chunkChecksums[parityShardIdx] = checksum(parityBlock);
+            }
 
+            // blocks of one stripe patch the same parity chunks, so they are
+            // applied one after another, and the first that fails stops the rest
+            if (blockIdx > firstBlockIdx)
+                token = requestToken("write", filePath).getToken();
+            WriteRequest request = packOverwriteRequest(filePath, fileSize, blockStart, chunks, chunkChecksums,
+                    token);
+            awaitWrite(cliClientService, leader, request, "Overwrite of block " + blockIdx + " of " + filePath);
+        }
     }
 
     public static void append() {
@@ -289,19 +515,82 @@ public class Client {
 
     public void create(final CliClientServiceImpl cliClientService, String filePath, byte[] fileData,
             final String groupId, String token) throws RemotingException, InterruptedException {
-        final int n = 10000;
-        final CountDownLatch latch = new CountDownLatch(n);
+        if (ConfigVariables.STAGED_WRITE) {
+            // ship every shard to its own chunkserver a batch at a time, then
+            // commit through Raft
+            try (RsfsOutputStream out = createStream(cliClientService, filePath, groupId, token)) {
+                out.write(fileData);
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to create " + filePath, e);
+            }
+            return;
+        }
 
         ReedSolomonEncoder encoder = new ReedSolomonEncoder(fileData);
         encoder.encode();
         byte[][] shards = encoder.getShards();
+        invalidateCache(filePath);
 
+        final PeerId leader = RouteTable.getInstance().selectLeader(groupId);
         // Pass padded file size
         // System.out.println("Client create: " + filePath);
         WriteRequest request = packWriteRequest("touch", filePath, encoder.getPaddedFileSize(), 0, shards, "create",
                 encoder.getLastChunkIdx(), encoder.getFileSize(), token);
-        final PeerId leader = RouteTable.getInstance().selectLeader(groupId);
-        writeRequest(cliClientService, leader, request, latch);
+        awaitWrite(cliClientService, leader, request, "Create of " + filePath);
+    }
+
+    /**
+     * Create a file from the bytes written to the returned stream. The file
+     * is encoded and staged on the chunkservers while it is written, and
+     * committed when the stream is closed, so it never has to fit in memory.
+     * Needs STAGED_WRITE.
+     */
+    public RsfsOutputStream createStream(final CliClientServiceImpl cliClientService, String filePath,
+            final String groupId, String token) {
+        invalidateCache(filePath);
+        return new RsfsOutputStream(cliClientService, filePath, groupId, token);
+    }
+
+    static WriteRequest packCommitRequest(String filePath, String writeId, int fileSize, long[] shardChecksums,
+            int lastChunkIdx, int originalFileSize, String token) {
+        WriteRequest.Builder requestBuilder = WriteRequest.newBuilder();
+        for (long shardChecksum : shardChecksums) {
+            requestBuilder.addShardChecksums(shardChecksum);
+        }
+        requestBuilder.setOperationType("touch");
+        requestBuilder.setFilePath(filePath);
+        requestBuilder.setFileSize(fileSize);
+        requestBuilder.setAppendAt(0);
+        requestBuilder.setWriteFlag("commit");
+        requestBuilder.setWriteId(writeId);
+        requestBuilder.setLastChunkIdx(lastChunkIdx);
+        requestBuilder.setOriginalFileSize(originalFileSize);
+        requestBuilder.setToken(token);
+        return requestBuilder.build();
+    }
+
+    private static WriteRequest packOverwriteRequest(String filePath, int fileSize, int blockStart, byte[][] chunks,
+            long[] chunkChecksums, String token) {
+        WriteRequest.Builder requestBuilder = WriteRequest.newBuilder();
+        for (byte[] chunk : chunks) {
+            requestBuilder.addPayload(chunk == null ? ByteString.EMPTY : ByteString.copyFrom(chunk));
+        }
+        for (long chunkChecksum : chunkChecksums) {
+            requestBuilder.addShardChecksums(chunkChecksum);
+        }
+        requestBuilder.setOperationType("overwrite");
+        requestBuilder.setFilePath(filePath);
+        requestBuilder.setFileSize(fileSize);
+        requestBuilder.setAppendAt(blockStart);
+        requestBuilder.setWriteFlag("overwrite");
+        requestBuilder.setToken(token);
+        return requestBuilder.build();
+    }
+
+    private static long checksum(byte[] chunk) {
+        CRC32 crc = new CRC32();
+        crc.update(chunk);
+        return crc.getValue();
     }
 
     private static WriteRequest packWriteRequest(String operationType, String filePath, int fileSize, int appendAt,
@@ -331,10 +620,35 @@ public class Client {
         return requestBuilder.build();
     }
 
-    private static void writeRequest(final CliClientServiceImpl cliClientService, final PeerId leader,
-            WriteRequest request, CountDownLatch latch) throws RemotingException,
-            InterruptedException {
+    /**
+     * Send a write to the leader and wait until the chunkservers applied it
+     *
+     * @param what what the write does, for the error messages
+     * @throws IllegalStateException if the write timed out or was not applied
+     */
+    static void awaitWrite(final CliClientServiceImpl cliClientService, final PeerId leader, WriteRequest request,
+            String what) throws RemotingException, InterruptedException {
+        ValueResponse response;
+        try {
+            response = writeRequest(cliClientService, leader, request).get(5000, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new IllegalStateException(what + " timed out");
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(what + " failed", e.getCause());
+        }
+        if (!response.getSuccess())
+            throw new IllegalStateException(what + " failed: " + response.getErrorMsg());
+    }
 
+    /**
+     * Send a write to the leader
+     *
+     * @return a future of the response, which says whether the chunkservers
+     *         applied the write; it fails if the leader did not respond
+     */
+    static CompletableFuture<ValueResponse> writeRequest(final CliClientServiceImpl cliClientService,
+            final PeerId leader, WriteRequest request) throws RemotingException, InterruptedException {
+        final CompletableFuture<ValueResponse> response = new CompletableFuture<>();
         try {
             // System.out.println("write request to leader:" + leader);
             cliClientService.getRpcClient().invokeAsync(leader.getEndpoint(), request, new InvokeCallback() {
@@ -342,11 +656,11 @@ public class Client {
                 @Override
                 public void complete(Object result, Throwable err) {
                     if (err == null) {
-                        latch.countDown();
+                        response.complete((ValueResponse) result);
                         // System.out.println("write request result:" + result);
                     } else {
                         err.printStackTrace();
-                        latch.countDown();
+                        response.completeExceptionally(err);
                     }
                 }
 
@@ -357,7 +671,9 @@ public class Client {
             }, 5000);
         } catch (InaccessibleObjectException e) {
             System.err.println("Caught InaccessibleObjectException: " + e.getMessage());
+            response.completeExceptionally(e);
         }
+        return response;
     }
 }
 
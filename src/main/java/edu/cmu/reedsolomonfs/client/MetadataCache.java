@@ -0,0 +1,130 @@
+package edu.cmu.reedsolomonfs.client;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import edu.cmu.reedsolomonfs.server.MasterserverOutter.GRPCMetadata;
+import edu.cmu.reedsolomonfs.server.MasterserverOutter.MetadataChangesResponse;
+
+/**
+ * The client's copy of the master's file metadata, the chunk nodes and
+ * version of every file, as of an epoch of the master.
+ *
+ * The copy is brought up to date by applying the files changed since its
+ * epoch, which the master sends in place of the metadata of every file. Files
+ * written by this client lose their version until the master reports the new
+ * one, so nothing is cached under the version they had before the write.
+ */
+public class MetadataCache {
+
+    private final TreeMap<String, GRPCMetadata> files = new TreeMap<>();
+    private final Set<String> unversionedFilePaths = new HashSet<>();
+    private long epoch = 0;
+    private long refreshedAtNanos = 0;
+
+    /**
+     * @return the epoch the metadata is up to date as of, 0 before the first
+     *         refresh
+     */
+    public synchronized long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * @return whether the last refresh was more than maxAgeMillis ago
+     */
+    public synchronized boolean isStale(long maxAgeMillis) {
+        return epoch == 0 || System.nanoTime() - refreshedAtNanos > TimeUnit.MILLISECONDS.toNanos(maxAgeMillis);
+    }
+
+    /**
+     * Replace the metadata with that of every file, as of epoch. Refreshes
+     * that cross on the way are applied in any order, so a snapshot older
+     * than the cache is ignored.
+     */
+    public synchronized void applySnapshot(List<GRPCMetadata> metadata, long epoch) {
+        if (epoch >= this.epoch)
+            replace(metadata, epoch);
+    }
+
+    private void replace(List<GRPCMetadata> metadata, long epoch) {
+        files.clear();
+        unversionedFilePaths.clear();
+        for (GRPCMetadata fileMetadata : metadata)
+            files.put(fileMetadata.getFilePath(), fileMetadata);
+        this.epoch = epoch;
+        refreshedAtNanos = System.nanoTime();
+    }
+
+    /**
+     * Apply the files changed since this cache's epoch
+     */
+    public synchronized void applyChanges(MetadataChangesResponse changes) {
+        if (changes.getFull()) {
+            // the master could not use this cache's epoch, it may have restarted
+            replace(changes.getChangedList(), changes.getEpoch());
+            return;
+        }
+        if (changes.getEpoch() < epoch)
+            return;
+        for (GRPCMetadata fileMetadata : changes.getChangedList()) {
+            files.put(fileMetadata.getFilePath(), fileMetadata);
+            unversionedFilePaths.remove(fileMetadata.getFilePath());
+        }
+        for (String filePath : changes.getDeletedFilePathsList()) {
+            files.remove(filePath);
+            unversionedFilePaths.remove(filePath);
+        }
+        epoch = changes.getEpoch();
+        refreshedAtNanos = System.nanoTime();
+    }
+
+    /**
+     * @return the metadata of a file, or null if it does not exist
+     */
+    public synchronized GRPCMetadata get(String filePath) {
+        return files.get(filePath);
+    }
+
+    /**
+     * @return the master's version of a file, or null if the file does not
+     *         exist or this client wrote it since
+     */
+    public synchronized Long getFileVersion(String filePath) {
+        GRPCMetadata fileMetadata = files.get(filePath);
+        if (fileMetadata == null || unversionedFilePaths.contains(filePath))
+            return null;
+        return fileMetadata.getFileVersion();
+    }
+
+    /**
+     * @return the master's version of a file, or null if the file does not
+     *         exist, this client wrote it since, or the metadata was last
+     *         refreshed more than maxAgeMillis ago and another client may have
+     *         written it since
+     */
+    public synchronized Long getFileVersion(String filePath, long maxAgeMillis) {
+        if (isStale(maxAgeMillis))
+            return null;
+        return getFileVersion(filePath);
+    }
+
+    /**
+     * @return the path of every file, in order
+     */
+    public synchronized List<String> getFilePaths() {
+        return new ArrayList<>(files.keySet());
+    }
+
+    /**
+     * Forget the version of a file this client is writing, until a refresh
+     * brings the version of the write
+     */
+    public synchronized void invalidate(String filePath) {
+        unversionedFilePaths.add(filePath);
+    }
+}
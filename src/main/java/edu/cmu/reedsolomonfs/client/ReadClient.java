@@ -22,11 +22,9 @@ import com.alipay.sofa.jraft.entity.PeerId;
 import com.alipay.sofa.jraft.error.RemotingException;
 import edu.cmu.reedsolomonfs.server.MasterServiceGrpc;
 import edu.cmu.reedsolomonfs.server.Chunkserver.rpc.ChunkserverGrpcHelper;
-import edu.cmu.reedsolomonfs.server.ChunkserverOutter.ValueResponse;
 import com.alipay.sofa.jraft.option.CliOptions;
 import com.alipay.sofa.jraft.rpc.InvokeCallback;
 import com.alipay.sofa.jraft.rpc.impl.cli.CliClientServiceImpl;
-import com.google.common.primitives.Bytes;
 import com.google.protobuf.ByteString;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -46,9 +44,13 @@ import edu.cmu.reedsolomonfs.server.MasterserverOutter.TokenRequest;
 import edu.cmu.reedsolomonfs.server.MasterserverOutter.TokenResponse;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class ReadClient {
 
+    private static final Logger LOG = LoggerFactory.getLogger(ReadClient.class);
+
     public static void main(final String[] args) throws Exception {
          /**
          * Reference
@@ -141,67 +143,21 @@ public class ReadClient {
             final String groupId)
             throws RemotingException,
             InterruptedException {
-        ReadRequest request = ReadRequest.newBuilder()
-                .setOperationType("read")
-                .setFilePath(filePath)
-                .build();
-
-        // send the request to all the peers in the cluster
-        // get the ip addresses of the cluster
-        final Configuration conf = RouteTable.getInstance().getConfiguration(groupId);
-
-        int serverCnt = 0;
-        int byteCntInShards = 0;
-        byte[][] shards = new byte[ConfigVariables.TOTAL_SHARD_COUNT][];
+        // send the request to the peers in the cluster concurrently
+        ReadRequest request = ShardFetcher.readRequest(filePath, 0, 0);
+        ShardFetcher fetcher = ConfigVariables.HEDGED_READ
+                ? ShardFetcher.fetchHedged(cliClientService, request, groupId, 15000)
+                : ShardFetcher.fetchDataShards(cliClientService, request, groupId, 15000);
+        if (!fetcher.await(15000))
+            System.err.println("Not enough shards of " + filePath + " arrived in time");
         boolean[] shardsPresent = new boolean[ConfigVariables.TOTAL_SHARD_COUNT];
-        for (PeerId peer : conf) {
-            //System.out.println("peer:" + peer.getEndpoint());
-
-            // invokeSync and print the result
-            ValueResponse response = (ValueResponse) cliClientService.getRpcClient().invokeSync(peer.getEndpoint(),
-                    request, 15000);
-
-            //System.out.println("Chunk Data:" + response.getChunkDataMapMap());
-            //System.out.println("Chunk Data Size:" + response.getChunkDataMapMap().size());
-
-            // save the chunk data in a map
-            Map<String, ByteString> chunkDataMap = new HashMap<>();
-            chunkDataMap.putAll(response.getChunkDataMapMap());
-
-            // get the sorted map key
-            Object[] sortedKeys = chunkDataMap.keySet().toArray();
-            // sort the map key by the int of substring from last index of ('-')
-            Arrays.sort(sortedKeys, (o1, o2) -> {
-                int o1Idx = ((String) o1).lastIndexOf('-');
-                int o2Idx = ((String) o2).lastIndexOf('-');
-                return Integer.valueOf(((String) o1).substring(o1Idx + 1)).compareTo(
-                        Integer.valueOf(((String) o2).substring(o2Idx + 1)));
-            });
-
-            // concate the sorted map value by key to byte[]
-            byte[] shardBytes = new byte[0];
-            for (Object key : sortedKeys) {
-                //System.out.println("key:" + key);
-                shardBytes = Bytes.concat(shardBytes, chunkDataMap.get(key).toByteArray());
-            }
-
-            System.out.println("shardBytes Size:" + shardBytes.length);
-
-            if (response.getChunkDataMapMap() != null && response.getChunkDataMapMap().size() != 0) {
-                shardsPresent[serverCnt] = true;
-                shards[serverCnt] = shardBytes;
-                byteCntInShards = shards[serverCnt].length;
-            }
-
-            serverCnt++;
-        }
+        byte[][] shards = fetcher.getShards(shardsPresent);
+        if (LOG.isDebugEnabled())
+            LOG.debug("Read latency per chunkserver of {}:\n{}", filePath, fetcher.latencyReport());
 
-        if (byteCntInShards == 0)
+        if (shards == null)
             throw new IllegalArgumentException("There is not enough data to decode");
-        for (int i = 0; i < ConfigVariables.TOTAL_SHARD_COUNT; i++) {
-            if (shards[i] == null)
-                shards[i] = new byte[byteCntInShards];
-        }
+        int byteCntInShards = shards[0].length;
 
         ReedSolomonDecoder decoder = new ReedSolomonDecoder(shards, shardsPresent, byteCntInShards, fileSize);
         return decoder.getFileData();
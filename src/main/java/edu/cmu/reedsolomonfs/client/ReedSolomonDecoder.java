@@ -7,6 +7,7 @@ import java.nio.file.Path;
 
 import edu.cmu.reedsolomon.ReedSolomon;
 import edu.cmu.reedsolomonfs.ConfigVariables;
+import edu.cmu.reedsolomonfs.datatype.FileMetadataHelper;
 
 // read data from disks
 // do recovery if any disks are missing
@@ -14,8 +15,15 @@ public class ReedSolomonDecoder {
 
     // line 17 calls function create at line 29 in ReedSolomon.java
     // https://github.com/Backblaze/JavaReedSolomon/blob/master/src/main/java/com/backblaze/erasure/ReedSolomon.java
-    private static final ReedSolomon REED_SOLOMON = ReedSolomon.create(ConfigVariables.DATA_SHARD_COUNT, ConfigVariables.PARITY_SHARD_COUNT);
-    
+    private static final ReedSolomon REED_SOLOMON = ReedSolomon.createParallel(ConfigVariables.DATA_SHARD_COUNT, ConfigVariables.PARITY_SHARD_COUNT,
+            ConfigVariables.VECTOR_CODING_LOOP, ConfigVariables.CODING_PARALLELISM, ConfigVariables.CODING_MIN_STRIPE_SIZE);
+    // only data shards are merged into the file, missing parity is not rebuilt
+    private static final boolean[] DATA_SHARDS_WANTED = new boolean[ConfigVariables.TOTAL_SHARD_COUNT];
+    static {
+        for (int i = 0; i < ConfigVariables.DATA_SHARD_COUNT; i++)
+            DATA_SHARDS_WANTED[i] = true;
+    }
+
     private String[] diskPaths;
     private byte[][] shards;
     private boolean[] shardPresent;
@@ -28,14 +36,14 @@ public class ReedSolomonDecoder {
         return fileData;
     }
 
-    // line 35 calls function decodeMissing at line 174 in ReedSolomon.java
+    // line 35 calls function decodeSome in ReedSolomon.java, based on decodeMissing at line 174 of
     // https://github.com/Backblaze/JavaReedSolomon/blob/master/src/main/java/com/backblaze/erasure/ReedSolomon.java
     public ReedSolomonDecoder(byte[][] shards, boolean[] shardPresent, int byteCntInShard, int fileSize) {
         this.fileSize = fileSize;
         // System.out.println("shardPresent: " + shardPresent);
-        REED_SOLOMON.decodeMissing(shards, shardPresent, 0, byteCntInShard);
-        fileData = mergeShardsToFile(shards);
-        trimPadding();
+        if (!allDataShardsPresent(shardPresent))
+            REED_SOLOMON.decodeSome(shards, shardPresent, DATA_SHARDS_WANTED, 0, byteCntInShard);
+        fileData = mergeShardsToFile(shards, fileSize);
     }
 
     public ReedSolomonDecoder(String filePath, String[] diskPaths, int fileSize) {
@@ -59,13 +67,7 @@ public class ReedSolomonDecoder {
         }
     }
 
-    public void trimPadding() {
-        byte[] trimmedFileData = new byte[fileSize];
-        System.arraycopy(fileData, 0, trimmedFileData, 0, fileSize);
-        fileData = trimmedFileData;
-    }
-
-    // line 75 calls function decodeMissing at line 174 in ReedSolomon.java
+    // line 75 calls function decodeSome in ReedSolomon.java, based on decodeMissing at line 174 of
     // https://github.com/Backblaze/JavaReedSolomon/blob/master/src/main/java/com/backblaze/erasure/ReedSolomon.java
     public void decode() {
         retrieveShards();
@@ -75,9 +77,9 @@ public class ReedSolomonDecoder {
             if (shards[i] == null)
                 shards[i] = new byte[byteCntInShard];
         }
-        REED_SOLOMON.decodeMissing(shards, shardPresent, 0, byteCntInShard);
-        fileData = mergeShardsToFile(shards);
-        trimPadding();
+        if (!allDataShardsPresent(shardPresent))
+            REED_SOLOMON.decodeSome(shards, shardPresent, DATA_SHARDS_WANTED, 0, byteCntInShard);
+        fileData = mergeShardsToFile(shards, fileSize);
     }
 
     public void store() {
@@ -89,15 +91,52 @@ public class ReedSolomonDecoder {
         }
     }
 
-    private byte[] mergeShardsToFile(byte[][] shards) {
-        byte[] fileData = new byte[shards[0].length * ConfigVariables.DATA_SHARD_COUNT];
-        int blockCnt = fileData.length / ConfigVariables.BLOCK_SIZE;
+    /**
+     * Decode length bytes at offset of a file from the shards of the stripes
+     * covering them
+     *
+     * @param shards       data and parity shards holding the stripes from the
+     *                     one with byte offset on, zero filled where missing
+     * @param shardPresent which shards were read
+     * @return the bytes of the range
+     */
+    public static byte[] decodeRange(byte[][] shards, boolean[] shardPresent, int offset, int length) {
+        if (!allDataShardsPresent(shardPresent))
+            REED_SOLOMON.decodeSome(shards, shardPresent, DATA_SHARDS_WANTED, 0, shards[0].length);
+        byte[] rangeData = new byte[length];
+        int firstBlockIdx = offset / ConfigVariables.BLOCK_SIZE;
+        int lastBlockIdx = (offset + length - 1) / ConfigVariables.BLOCK_SIZE;
+        int firstStripeIdx = FileMetadataHelper.stripeIdx(offset);
+        for (int blockIdx = firstBlockIdx; blockIdx <= lastBlockIdx; blockIdx++) {
+            int blockStart = blockIdx * ConfigVariables.BLOCK_SIZE;
+            int from = Math.max(offset, blockStart);
+            int to = Math.min(offset + length, blockStart + ConfigVariables.BLOCK_SIZE);
+            int shardIdx = blockIdx % ConfigVariables.DATA_SHARD_COUNT;
+            int byteIdxInShard = (blockIdx / ConfigVariables.DATA_SHARD_COUNT - firstStripeIdx)
+                    * ConfigVariables.BLOCK_SIZE + from - blockStart;
+            System.arraycopy(shards[shardIdx], byteIdxInShard, rangeData, from - offset, to - from);
+        }
+        return rangeData;
+    }
+
+    // when every data shard is read there is nothing to decode
+    private static boolean allDataShardsPresent(boolean[] shardPresent) {
+        for (int i = 0; i < ConfigVariables.DATA_SHARD_COUNT; i++)
+            if (!shardPresent[i])
+                return false;
+        return true;
+    }
+
+    // copies each block of the data shards to its offset in the file, dropping the padding
+    private static byte[] mergeShardsToFile(byte[][] shards, int fileSize) {
+        byte[] fileData = new byte[fileSize];
+        int blockCnt = (fileSize + ConfigVariables.BLOCK_SIZE - 1) / ConfigVariables.BLOCK_SIZE;
         for (int blockIdx = 0; blockIdx < blockCnt; blockIdx++) {
             int byteIdxInFile = blockIdx * ConfigVariables.BLOCK_SIZE;
             int shardIdx = blockIdx % ConfigVariables.DATA_SHARD_COUNT;
             int byteIdxInShard = blockIdx / ConfigVariables.DATA_SHARD_COUNT * ConfigVariables.BLOCK_SIZE;
-            for (int i = 0; i < ConfigVariables.BLOCK_SIZE; i++, byteIdxInFile++, byteIdxInShard++)
-                fileData[byteIdxInFile] = shards[shardIdx][byteIdxInShard];
+            System.arraycopy(shards[shardIdx], byteIdxInShard, fileData, byteIdxInFile,
+                    Math.min(ConfigVariables.BLOCK_SIZE, fileSize - byteIdxInFile));
         }
         return fileData;
     }
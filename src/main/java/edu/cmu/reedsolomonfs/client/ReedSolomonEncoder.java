@@ -14,7 +14,8 @@ public class ReedSolomonEncoder {
     
     // line 17 calls function create at line 29 in ReedSolomon.java
     // https://github.com/Backblaze/JavaReedSolomon/blob/master/src/main/java/com/backblaze/erasure/ReedSolomon.java
-    private static final ReedSolomon REED_SOLOMON = ReedSolomon.create(ConfigVariables.DATA_SHARD_COUNT, ConfigVariables.PARITY_SHARD_COUNT);
+    private static final ReedSolomon REED_SOLOMON = ReedSolomon.createParallel(ConfigVariables.DATA_SHARD_COUNT, ConfigVariables.PARITY_SHARD_COUNT,
+            ConfigVariables.VECTOR_CODING_LOOP, ConfigVariables.CODING_PARALLELISM, ConfigVariables.CODING_MIN_STRIPE_SIZE);
 
     private String filePath;
     private byte[] fileData;
@@ -0,0 +1,229 @@
+package edu.cmu.reedsolomonfs.client;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.alipay.sofa.jraft.error.RemotingException;
+import com.alipay.sofa.jraft.rpc.impl.cli.CliClientServiceImpl;
+
+import edu.cmu.reedsolomonfs.ConfigVariables;
+
+/**
+ * Reads an RSFS file in order, fetching and decoding the stripes ahead of
+ * the reader.
+ *
+ * The file is read in range requests of READAHEAD_REQUEST_SIZE bytes. While
+ * the reader keeps reading where the last request ended, the next requests
+ * are already in flight on a shared pool, each fetching its shards and
+ * decoding its stripes, so fetching the next stripes overlaps with decoding
+ * and consuming the current ones. The window of requests in flight starts at
+ * one and doubles, up to READAHEAD_MAX_WINDOW, every time the reader has to
+ * wait for the next request. Skipping elsewhere drops the requests in flight
+ * and starts over without readahead, so a random access costs one request.
+ *
+ * Use Channels.newChannel for a ReadableByteChannel over the stream.
+ */
+public class RsfsInputStream extends InputStream {
+
+    private static final ExecutorService READAHEAD_POOL = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "rsfs-readahead");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final CliClientServiceImpl cliClientService;
+    private final String filePath;
+    private final int fileSize;
+    private final String groupId;
+
+    // bytes [bufferStart, bufferStart + buffer.length) of the file
+    private byte[] buffer = new byte[0];
+    private int bufferStart = 0;
+    // next byte of the file the reader gets
+    private int position = 0;
+    // requests in flight, in file order, starting where the buffer ends
+    private final ArrayDeque<Request> inFlight = new ArrayDeque<>();
+    private int window = 0;
+    private boolean closed = false;
+
+    public RsfsInputStream(final CliClientServiceImpl cliClientService, String filePath, int fileSize,
+            final String groupId) {
+        this.cliClientService = cliClientService;
+        this.filePath = filePath;
+        this.fileSize = fileSize;
+        this.groupId = groupId;
+    }
+
+    @Override
+    public synchronized int read() throws IOException {
+        if (!ensureBuffered())
+            return -1;
+        return buffer[position++ - bufferStart] & 0xff;
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off)
+            throw new IndexOutOfBoundsException();
+        if (len == 0)
+            return 0;
+        if (!ensureBuffered())
+            return -1;
+        int n = Math.min(len, bufferStart + buffer.length - position);
+        System.arraycopy(buffer, position - bufferStart, b, off, n);
+        position += n;
+        return n;
+    }
+
+    /**
+     * Skipping into the buffer or the next request keeps the readahead,
+     * anything further is a random access
+     */
+    @Override
+    public synchronized long skip(long n) throws IOException {
+        checkOpen();
+        if (n <= 0)
+            return 0;
+        int skipped = (int) Math.min(n, fileSize - position);
+        position += skipped;
+        return skipped;
+    }
+
+    @Override
+    public synchronized int available() throws IOException {
+        checkOpen();
+        return Math.max(0, bufferStart + buffer.length - position);
+    }
+
+    /**
+     * @return the offset in the file of the next byte read
+     */
+    public synchronized int getPosition() {
+        return position;
+    }
+
+    /**
+     * @return the requests currently kept in flight ahead of the reader
+     */
+    public synchronized int getWindow() {
+        return window;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed)
+            return;
+        closed = true;
+        cancelInFlight();
+        buffer = new byte[0];
+    }
+
+    /**
+     * Make the buffer hold the byte at position, waiting for the request
+     * covering it and keeping the window of requests in flight after it
+     *
+     * @return false at the end of the file
+     */
+    private boolean ensureBuffered() throws IOException {
+        checkOpen();
+        if (position >= fileSize)
+            return false;
+        if (position < bufferStart + buffer.length && position >= bufferStart)
+            return true;
+
+        Request next = inFlight.peekFirst();
+        if (next == null || position < next.offset || position >= next.offset + next.length) {
+            // not where the readahead is: read this request alone
+            cancelInFlight();
+            window = 0;
+            next = request(alignedOffset(position));
+        } else {
+            inFlight.removeFirst();
+            if (!next.data.isDone())
+                window = Math.max(1, Math.min(2 * window, ConfigVariables.READAHEAD_MAX_WINDOW));
+        }
+        buffer = await(next);
+        bufferStart = next.offset;
+        if (window == 0)
+            window = 1;
+        int fetchOffset = inFlight.isEmpty() ? next.offset + next.length
+                : inFlight.peekLast().offset + inFlight.peekLast().length;
+        while (inFlight.size() < window && fetchOffset < fileSize) {
+            Request ahead = request(fetchOffset);
+            inFlight.addLast(ahead);
+            fetchOffset += ahead.length;
+        }
+        return true;
+    }
+
+    /**
+     * Start reading READAHEAD_REQUEST_SIZE bytes at offset, or up to the end
+     * of the file
+     */
+    private Request request(int offset) {
+        int length = Math.min(ConfigVariables.READAHEAD_REQUEST_SIZE, fileSize - offset);
+        CompletableFuture<byte[]> data = CompletableFuture.supplyAsync(() -> {
+            try {
+                return Client.readRange(cliClientService, filePath, fileSize, offset, length, groupId);
+            } catch (RemotingException | InterruptedException e) {
+                throw new CompletionException(e);
+            }
+        }, READAHEAD_POOL);
+        return new Request(offset, length, data);
+    }
+
+    private byte[] await(Request request) throws IOException {
+        byte[] data;
+        try {
+            data = request.data.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted reading " + filePath);
+        } catch (ExecutionException | CancellationException e) {
+            throw new IOException("Failed to read " + request.length + " bytes at " + request.offset + " of "
+                    + filePath, e.getCause() == null ? e : e.getCause());
+        }
+        if (data == null)
+            throw new FileNotFoundException(filePath);
+        return data;
+    }
+
+    private void cancelInFlight() {
+        for (Request request : inFlight)
+            request.data.cancel(false);
+        inFlight.clear();
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed)
+            throw new IOException("Stream of " + filePath + " is closed");
+    }
+
+    /**
+     * Requests start on a stripe, so no stripe is read by two of them
+     */
+    private static int alignedOffset(int offset) {
+        return offset / ConfigVariables.FILE_SIZE_MULTIPLE * ConfigVariables.FILE_SIZE_MULTIPLE;
+    }
+
+    private static final class Request {
+        private final int offset;
+        private final int length;
+        private final CompletableFuture<byte[]> data;
+
+        Request(int offset, int length, CompletableFuture<byte[]> data) {
+            this.offset = offset;
+            this.length = length;
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,305 @@
+package edu.cmu.reedsolomonfs.client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.CRC32;
+
+import com.alipay.sofa.jraft.RouteTable;
+import com.alipay.sofa.jraft.conf.Configuration;
+import com.alipay.sofa.jraft.entity.PeerId;
+import com.alipay.sofa.jraft.error.RemotingException;
+import com.alipay.sofa.jraft.rpc.InvokeCallback;
+import com.alipay.sofa.jraft.rpc.impl.cli.CliClientServiceImpl;
+import com.google.protobuf.ByteString;
+
+import edu.cmu.reedsolomonfs.ConfigVariables;
+import edu.cmu.reedsolomonfs.client.Reedsolomonfs.StageShardRequest;
+import edu.cmu.reedsolomonfs.client.Reedsolomonfs.WriteRequest;
+import edu.cmu.reedsolomonfs.server.ChunkserverOutter.ValueResponse;
+
+/**
+ * Creates an RSFS file from bytes written to it, encoding and staging the
+ * file a batch of stripes at a time.
+ *
+ * Bytes are collected into batches of WRITE_BATCH_SIZE. A full batch is
+ * encoded and each of its shards staged on its chunkserver at the shard's
+ * running offset, and the next batch is filled and encoded while those
+ * stage requests are in flight. At most WRITE_PIPELINE_DEPTH batches are in
+ * flight, so the memory used is bounded by the pipeline depth and not by
+ * the size of the file. Closing the stream pads and stages the last batch
+ * and commits the file through Raft, like a staged create. The shards are
+ * staged under an id of their own that the commit carries, so two writes of
+ * the same file never mix their staged shards.
+ *
+ * A chunkserver that fails to stage a batch gets none of the later ones.
+ * Its staged shard fails the checksum at commit, so it lists its chunks of
+ * the file as missing and the master rebuilds them from the other shards
+ * once its heartbeat reports them. Such a write is degraded: close still
+ * succeeds and logs it, and getMissingShardCount says how many shards are
+ * left to rebuild. Writing fails once more than PARITY_SHARD_COUNT
+ * chunkservers failed, and close fails if the commit is not applied. A
+ * write that would make the file larger than Integer.MAX_VALUE bytes, the
+ * largest size the metadata holds, is rejected.
+ */
+public class RsfsOutputStream extends OutputStream {
+
+    private static final int STAGE_TIMEOUT_MS = 5000;
+
+    private final CliClientServiceImpl cliClientService;
+    private final String filePath;
+    private final String groupId;
+    private final String token;
+    private final String writeId = UUID.randomUUID().toString();
+    private final PeerId[] peers = new PeerId[ConfigVariables.TOTAL_SHARD_COUNT];
+
+    private final byte[] batch = new byte[ConfigVariables.WRITE_BATCH_SIZE];
+    private int batchFilled = 0;
+    private final ArrayDeque<Batch> inFlight = new ArrayDeque<>();
+    private final CRC32[] shardCrcs = new CRC32[ConfigVariables.TOTAL_SHARD_COUNT];
+    private final boolean[] serverFailed = new boolean[ConfigVariables.TOTAL_SHARD_COUNT];
+    private long shardOffset = 0;
+    private int fileSize = 0;
+    private int paddedFileSize = 0;
+    private boolean closed = false;
+
+    /**
+     * Use Client.createStream, which also drops what is cached of the file
+     */
+    RsfsOutputStream(final CliClientServiceImpl cliClientService, String filePath, final String groupId,
+            String token) {
+        if (!ConfigVariables.STAGED_WRITE)
+            throw new IllegalStateException("Streaming writes stage shards, STAGED_WRITE is off");
+        this.cliClientService = cliClientService;
+        this.filePath = filePath;
+        this.groupId = groupId;
+        this.token = token;
+        // peer i stores shard i
+        final Configuration conf = RouteTable.getInstance().getConfiguration(groupId);
+        int shardIdx = 0;
+        for (PeerId peer : conf) {
+            if (shardIdx >= peers.length)
+                break;
+            peers[shardIdx++] = peer;
+        }
+        for (int i = 0; i < shardCrcs.length; i++) {
+            shardCrcs[i] = new CRC32();
+            // peers missing from the configuration never get their shard
+            serverFailed[i] = peers[i] == null;
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off)
+            throw new IndexOutOfBoundsException();
+        checkOpen();
+        // file sizes are ints in the metadata and the commit record
+        if (len > Integer.MAX_VALUE - fileSize)
+            throw new IOException("Writing " + len + " more bytes to " + filePath + " of " + fileSize
+                    + " bytes goes past the largest file of " + Integer.MAX_VALUE + " bytes");
+        while (len > 0) {
+            int n = Math.min(len, batch.length - batchFilled);
+            System.arraycopy(b, off, batch, batchFilled, n);
+            batchFilled += n;
+            fileSize += n;
+            off += n;
+            len -= n;
+            if (batchFilled == batch.length)
+                shipBatch(batch);
+        }
+    }
+
+    /**
+     * Stage the last batch, wait for every batch to be staged and commit the
+     * file
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed)
+            return;
+        // an empty file still stages empty shards to commit
+        if (batchFilled > 0 || shardOffset == 0)
+            shipBatch(Arrays.copyOf(batch, batchFilled));
+        while (!inFlight.isEmpty())
+            awaitOldest();
+        closed = true;
+
+        long[] shardChecksums = new long[shardCrcs.length];
+        for (int i = 0; i < shardCrcs.length; i++)
+            shardChecksums[i] = shardCrcs[i].getValue();
+        int lastChunkIdx = paddedFileSize / ConfigVariables.BLOCK_SIZE - 1;
+        WriteRequest request = Client.packCommitRequest(filePath, writeId, paddedFileSize, shardChecksums,
+                lastChunkIdx, fileSize, token);
+        ValueResponse response;
+        try {
+            response = Client.writeRequest(cliClientService, RouteTable.getInstance().selectLeader(groupId), request)
+                    .get(STAGE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new IOException("Commit of " + filePath + " timed out");
+        } catch (RemotingException e) {
+            throw new IOException("Failed to commit " + filePath, e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to commit " + filePath, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted committing " + filePath);
+        }
+        if (!response.getSuccess())
+            throw new IOException("Failed to commit " + filePath + ": " + response.getErrorMsg());
+        if (getMissingShardCount() > 0)
+            System.err.println("Committed " + filePath + " without " + getMissingShardCount()
+                    + " shards, which the master rebuilds");
+    }
+
+    /**
+     * @return shards of the file that did not reach their chunkserver, so far
+     *         or at close, which the master has to rebuild
+     */
+    public synchronized int getMissingShardCount() {
+        int missingCnt = 0;
+        for (boolean failed : serverFailed)
+            if (failed)
+                missingCnt++;
+        return missingCnt;
+    }
+
+    /**
+     * Encode a batch and send each shard to its chunkserver, after making room
+     * in the pipeline. The first batch starts the staged shards, so it is
+     * staged before any other is sent.
+     */
+    private void shipBatch(byte[] batchData) throws IOException {
+        ReedSolomonEncoder encoder = new ReedSolomonEncoder(batchData);
+        encoder.encode();
+        byte[][] shards = encoder.getShards();
+        batchFilled = 0;
+        if (encoder.getPaddedFileSize() > Integer.MAX_VALUE - paddedFileSize) {
+            closed = true;
+            throw new IOException("Padded size of " + filePath + " goes past " + Integer.MAX_VALUE + " bytes");
+        }
+        paddedFileSize += encoder.getPaddedFileSize();
+
+        while (inFlight.size() >= ConfigVariables.WRITE_PIPELINE_DEPTH)
+            awaitOldest();
+        Batch staging = new Batch(shardOffset);
+        for (int shardIdx = 0; shardIdx < shards.length; shardIdx++) {
+            shardCrcs[shardIdx].update(shards[shardIdx]);
+            if (serverFailed[shardIdx]) {
+                staging.latch.countDown();
+                continue;
+            }
+            stage(staging, shardIdx, shards[shardIdx]);
+        }
+        inFlight.addLast(staging);
+        if (shardOffset == 0)
+            awaitOldest();
+        shardOffset += shards[0].length;
+    }
+
+    private void stage(final Batch staging, final int shardIdx, byte[] shard) {
+        final PeerId peer = peers[shardIdx];
+        StageShardRequest request = StageShardRequest.newBuilder()
+                .setFilePath(filePath)
+                .setWriteId(writeId)
+                .setShardIdx(shardIdx)
+                .setShardOffset(staging.shardOffset)
+                .setPayload(ByteString.copyFrom(shard))
+                .setToken(token)
+                .build();
+        try {
+            cliClientService.getRpcClient().invokeAsync(peer.getEndpoint(), request, new InvokeCallback() {
+
+                @Override
+                public void complete(Object result, Throwable err) {
+                    if (err == null && ((ValueResponse) result).getSuccess()) {
+                        staging.staged(shardIdx);
+                    } else {
+                        System.err.println("Failed to stage shard on " + peer.getEndpoint() + ": "
+                                + (err != null ? err.getMessage() : ((ValueResponse) result).getErrorMsg()));
+                    }
+                    staging.latch.countDown();
+                }
+
+                @Override
+                public Executor executor() {
+                    return null;
+                }
+            }, STAGE_TIMEOUT_MS);
+        } catch (RemotingException e) {
+            System.err.println("Failed to invoke RPC on " + peer.getEndpoint() + ": " + e.getMessage());
+            staging.latch.countDown();
+        } catch (InterruptedException e) {
+            // awaiting the batch fails on the interrupt
+            Thread.currentThread().interrupt();
+            staging.latch.countDown();
+        }
+    }
+
+    /**
+     * Wait for the oldest batch in flight, and give up on the chunkservers
+     * that did not stage it
+     */
+    private void awaitOldest() throws IOException {
+        Batch staging = inFlight.removeFirst();
+        try {
+            staging.latch.await(STAGE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            closed = true;
+            throw new InterruptedIOException("Interrupted staging " + filePath);
+        }
+        int failedCnt = 0;
+        for (int shardIdx = 0; shardIdx < serverFailed.length; shardIdx++) {
+            if (!staging.isStaged(shardIdx))
+                serverFailed[shardIdx] = true;
+            if (serverFailed[shardIdx])
+                failedCnt++;
+        }
+        // shards missing on at most PARITY_SHARD_COUNT servers are recovered later
+        if (failedCnt > ConfigVariables.PARITY_SHARD_COUNT) {
+            closed = true;
+            throw new IOException("Only " + (serverFailed.length - failedCnt) + " shards of " + filePath
+                    + " are staged");
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed)
+            throw new IOException("Stream of " + filePath + " is closed");
+    }
+
+    /**
+     * Stage requests of one batch, one per chunkserver
+     */
+    private static final class Batch {
+        private final long shardOffset;
+        private final CountDownLatch latch = new CountDownLatch(ConfigVariables.TOTAL_SHARD_COUNT);
+        private final boolean[] staged = new boolean[ConfigVariables.TOTAL_SHARD_COUNT];
+
+        Batch(long shardOffset) {
+            this.shardOffset = shardOffset;
+        }
+
+        synchronized void staged(int shardIdx) {
+            staged[shardIdx] = true;
+        }
+
+        synchronized boolean isStaged(int shardIdx) {
+            return staged[shardIdx];
+        }
+    }
+}
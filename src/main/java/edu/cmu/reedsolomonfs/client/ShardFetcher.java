@@ -0,0 +1,395 @@
+package edu.cmu.reedsolomonfs.client;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.alipay.sofa.jraft.RouteTable;
+import com.alipay.sofa.jraft.conf.Configuration;
+import com.alipay.sofa.jraft.entity.PeerId;
+import com.alipay.sofa.jraft.error.RemotingException;
+import com.alipay.sofa.jraft.rpc.InvokeCallback;
+import com.alipay.sofa.jraft.rpc.impl.cli.CliClientServiceImpl;
+import com.google.protobuf.ByteString;
+
+import edu.cmu.reedsolomonfs.ConfigVariables;
+import edu.cmu.reedsolomonfs.client.Reedsolomonfs.ReadRequest;
+import edu.cmu.reedsolomonfs.server.ChunkserverOutter.ValueResponse;
+
+/**
+ * Reads the shards of a file from the chunkservers concurrently.
+ *
+ * Each request goes out with invokeAsync, and the response of peer i, the
+ * shard stored on server i, completes the future of shard i. Waiting stops
+ * as soon as DATA_SHARD_COUNT shards are in, which is all the decoder needs,
+ * so a slow or dead chunkserver no longer adds its whole timeout to the read.
+ *
+ * fetch asks every peer at once. fetchDataShards only asks the data servers,
+ * which need no decoding, and a parity server in place of each one that
+ * fails. fetchHedged also asks a parity server in place of each data server
+ * that has not answered once HEDGED_READ_PERCENTILE of recent response times
+ * has passed. Either way, once enough shards are in the rest of the read is
+ * cancelled: pending hedges are not sent and late shards are dropped.
+ *
+ * The time each peer took to answer is kept for the caller to report.
+ */
+public class ShardFetcher {
+
+    // samples of recent response times the hedge delay is taken from
+    private static final int LATENCY_WINDOW_SIZE = 256;
+    // hedge delay until the window has this many samples
+    private static final int MIN_LATENCY_SAMPLES = 16;
+    private static final long DEFAULT_HEDGE_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private static final long[] LATENCY_WINDOW = new long[LATENCY_WINDOW_SIZE];
+    private static int latencySampleCnt = 0;
+
+    private static final ScheduledExecutorService HEDGE_TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "shard-fetcher-hedge");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final CliClientServiceImpl cliClientService;
+    private final ReadRequest request;
+    private final long timeoutMs;
+    // null where the configuration has no peer for the shard
+    private final PeerId[] peers = new PeerId[ConfigVariables.TOTAL_SHARD_COUNT];
+    // null once complete if the peer failed or holds no chunks of the file,
+    // cancelled if it was not needed
+    private final CompletableFuture<byte[]>[] shardFutures;
+    private final long[] latencyNanos;
+    private final boolean[] requested = new boolean[ConfigVariables.TOTAL_SHARD_COUNT];
+    private int requestedCnt = 0;
+    private int respondedCnt = 0;
+    private int presentCnt = 0;
+    private long hedgeDelayNanos;
+    private ScheduledFuture<?> pendingHedge;
+    // completes once enough shards are present to decode, or there is no one left to ask
+    private final CompletableFuture<Void> enoughShards = new CompletableFuture<>();
+
+    private ShardFetcher(final CliClientServiceImpl cliClientService, ReadRequest request, final String groupId,
+            long timeoutMs) {
+        this.cliClientService = cliClientService;
+        this.request = request;
+        this.timeoutMs = timeoutMs;
+        final Configuration conf = RouteTable.getInstance().getConfiguration(groupId);
+        int serverCnt = 0;
+        for (PeerId peer : conf) {
+            if (serverCnt >= ConfigVariables.TOTAL_SHARD_COUNT)
+                break;
+            peers[serverCnt++] = peer;
+        }
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        CompletableFuture<byte[]>[] futures = new CompletableFuture[ConfigVariables.TOTAL_SHARD_COUNT];
+        shardFutures = futures;
+        latencyNanos = new long[ConfigVariables.TOTAL_SHARD_COUNT];
+        Arrays.fill(latencyNanos, -1);
+        for (int i = 0; i < shardFutures.length; i++)
+            shardFutures[i] = new CompletableFuture<>();
+    }
+
+    /**
+     * A read request for length bytes at offset of filePath; each server
+     * answers with its chunks of the stripes covering them
+     *
+     * @param length 0 reads the whole file
+     */
+    public static ReadRequest readRequest(String filePath, int offset, int length) {
+        return ReadRequest.newBuilder()
+                .setOperationType("read")
+                .setFilePath(filePath)
+                .setOffset(offset)
+                .setLength(length)
+                .build();
+    }
+
+    /**
+     * Send a read request to every peer of the group.
+     *
+     * @param timeoutMs timeout of each peer's request
+     */
+    public static ShardFetcher fetch(final CliClientServiceImpl cliClientService, ReadRequest request,
+            final String groupId, long timeoutMs) {
+        ShardFetcher fetcher = new ShardFetcher(cliClientService, request, groupId, timeoutMs);
+        fetcher.request(ConfigVariables.TOTAL_SHARD_COUNT);
+        return fetcher;
+    }
+
+    /**
+     * Send a read request to the data servers of the group, and
+     * to parity servers in place of the ones that fail.
+     *
+     * @param timeoutMs timeout of each peer's request
+     */
+    public static ShardFetcher fetchDataShards(final CliClientServiceImpl cliClientService, ReadRequest request,
+            final String groupId, long timeoutMs) {
+        ShardFetcher fetcher = new ShardFetcher(cliClientService, request, groupId, timeoutMs);
+        fetcher.request(ConfigVariables.DATA_SHARD_COUNT);
+        return fetcher;
+    }
+
+    /**
+     * Send a read request to the data servers of the group, and
+     * to parity servers in place of the ones that are slow or fail.
+     *
+     * @param timeoutMs timeout of each peer's request
+     */
+    public static ShardFetcher fetchHedged(final CliClientServiceImpl cliClientService, ReadRequest request,
+            final String groupId, long timeoutMs) {
+        ShardFetcher fetcher = new ShardFetcher(cliClientService, request, groupId, timeoutMs);
+        fetcher.hedgeDelayNanos = hedgeDelayNanos();
+        fetcher.request(ConfigVariables.DATA_SHARD_COUNT);
+        fetcher.scheduleHedge();
+        return fetcher;
+    }
+
+    /**
+     * Ask up to cnt more peers, in shard order, for their shard.
+     */
+    private void request(int cnt) {
+        int[] shardIndices = new int[cnt];
+        int shardCnt = 0;
+        synchronized (this) {
+            if (enoughShards.isDone())
+                return;
+            // mark them all first, so answers to the first requests do not
+            // look like the last ones
+            for (int i = 0; i < ConfigVariables.TOTAL_SHARD_COUNT && shardCnt < cnt; i++) {
+                if (requested[i])
+                    continue;
+                requested[i] = true;
+                requestedCnt++;
+                shardIndices[shardCnt++] = i;
+            }
+        }
+        for (int j = 0; j < shardCnt; j++)
+            send(shardIndices[j]);
+        if (shardCnt == 0)
+            completeIfNoOneLeft();
+    }
+
+    private void send(final int shardIdx) {
+        final PeerId peer = peers[shardIdx];
+        final long start = System.nanoTime();
+        if (peer == null) {
+            complete(shardIdx, null, -1);
+            return;
+        }
+        try {
+            cliClientService.getRpcClient().invokeAsync(peer.getEndpoint(), request, new InvokeCallback() {
+
+                @Override
+                public void complete(Object result, Throwable err) {
+                    long nanos = System.nanoTime() - start;
+                    if (err != null)
+                        System.err.println("Failed to read from " + peer.getEndpoint() + ": " + err.getMessage());
+                    else
+                        recordLatency(nanos);
+                    ShardFetcher.this.complete(shardIdx, err == null ? toShardBytes((ValueResponse) result) : null,
+                            nanos);
+                }
+
+                @Override
+                public Executor executor() {
+                    return null;
+                }
+            }, timeoutMs);
+        } catch (RemotingException e) {
+            System.err.println("Failed to invoke RPC on " + peer.getEndpoint() + ": " + e.getMessage());
+            complete(shardIdx, null, System.nanoTime() - start);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            complete(shardIdx, null, System.nanoTime() - start);
+        }
+    }
+
+    private void complete(int shardIdx, byte[] shardBytes, long nanos) {
+        boolean replace;
+        synchronized (this) {
+            latencyNanos[shardIdx] = nanos;
+            respondedCnt++;
+            // a late shard of a cancelled request is dropped
+            if (!shardFutures[shardIdx].complete(shardBytes))
+                return;
+            if (shardBytes != null && ++presentCnt >= ConfigVariables.DATA_SHARD_COUNT) {
+                cancelRest();
+                return;
+            }
+            replace = shardBytes == null && requestedCnt < ConfigVariables.TOTAL_SHARD_COUNT;
+        }
+        if (replace)
+            request(1);
+        else
+            completeIfNoOneLeft();
+    }
+
+    private synchronized void completeIfNoOneLeft() {
+        if (respondedCnt == requestedCnt && requestedCnt == ConfigVariables.TOTAL_SHARD_COUNT)
+            cancelRest();
+    }
+
+    private void cancelRest() {
+        enoughShards.complete(null);
+        if (pendingHedge != null)
+            pendingHedge.cancel(false);
+        for (CompletableFuture<byte[]> shardFuture : shardFutures)
+            shardFuture.cancel(false);
+    }
+
+    private synchronized void scheduleHedge() {
+        if (enoughShards.isDone() || requestedCnt == ConfigVariables.TOTAL_SHARD_COUNT)
+            return;
+        pendingHedge = HEDGE_TIMER.schedule(this::hedge, hedgeDelayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Ask a parity server for each asked server that has not answered yet,
+     * and check again after another hedge delay.
+     */
+    private void hedge() {
+        int stragglerCnt = 0;
+        synchronized (this) {
+            for (int i = 0; i < ConfigVariables.TOTAL_SHARD_COUNT; i++) {
+                if (requested[i] && !shardFutures[i].isDone())
+                    stragglerCnt++;
+            }
+        }
+        if (stragglerCnt > 0)
+            request(stragglerCnt);
+        scheduleHedge();
+    }
+
+    private static synchronized void recordLatency(long nanos) {
+        LATENCY_WINDOW[latencySampleCnt % LATENCY_WINDOW_SIZE] = nanos;
+        latencySampleCnt++;
+    }
+
+    /**
+     * HEDGED_READ_PERCENTILE of the recent response times of all peers.
+     */
+    private static synchronized long hedgeDelayNanos() {
+        int sampleCnt = Math.min(latencySampleCnt, LATENCY_WINDOW_SIZE);
+        if (sampleCnt < MIN_LATENCY_SAMPLES)
+            return DEFAULT_HEDGE_DELAY_NANOS;
+        long[] samples = Arrays.copyOf(LATENCY_WINDOW, sampleCnt);
+        Arrays.sort(samples);
+        int rank = (int) Math.ceil(ConfigVariables.HEDGED_READ_PERCENTILE * sampleCnt) - 1;
+        return samples[Math.max(0, Math.min(rank, sampleCnt - 1))];
+    }
+
+    /**
+     * Wait until enough shards to decode are in, or there is no one left to
+     * ask.
+     *
+     * @return false if timeoutMs passed first
+     */
+    public boolean await(long timeoutMs) throws InterruptedException {
+        try {
+            enoughShards.get(timeoutMs, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * The shards read so far. Shards arriving later are not included.
+     *
+     * @param shardsPresent set for every shard that was read
+     * @return all data and parity shards, zero filled where missing, or null if
+     *         no shard was read
+     */
+    public byte[][] getShards(boolean[] shardsPresent) {
+        byte[][] shards = new byte[ConfigVariables.TOTAL_SHARD_COUNT][];
+        int byteCntInShards = 0;
+        for (int i = 0; i < shards.length; i++) {
+            byte[] shardBytes = shardNow(i);
+            if (shardBytes != null) {
+                shardsPresent[i] = true;
+                shards[i] = shardBytes;
+                byteCntInShards = shardBytes.length;
+            }
+        }
+        if (byteCntInShards == 0)
+            return null;
+        for (int i = 0; i < shards.length; i++) {
+            if (shards[i] == null)
+                shards[i] = new byte[byteCntInShards];
+        }
+        return shards;
+    }
+
+    private byte[] shardNow(int shardIdx) {
+        CompletableFuture<byte[]> shardFuture = shardFutures[shardIdx];
+        return shardFuture.isDone() && !shardFuture.isCompletedExceptionally() ? shardFuture.getNow(null) : null;
+    }
+
+    /**
+     * Time each peer took to answer, in nanoseconds, or -1 if it has not.
+     */
+    public long[] getLatencyNanos() {
+        synchronized (this) {
+            return latencyNanos.clone();
+        }
+    }
+
+    /**
+     * One line per peer with how long it took to answer.
+     */
+    public synchronized String latencyReport() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < ConfigVariables.TOTAL_SHARD_COUNT; i++) {
+            if (peers[i] == null)
+                continue;
+            sb.append(peers[i].getEndpoint()).append(" shard ").append(i).append(": ");
+            if (!requested[i])
+                sb.append("not asked");
+            else if (latencyNanos[i] < 0)
+                sb.append("no response");
+            else
+                sb.append(TimeUnit.NANOSECONDS.toMicros(latencyNanos[i]) / 1000.0).append(" ms")
+                        .append(shardNow(i) == null ? " (not used)" : "");
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Concatenate the chunks of a response in chunk index order, the index being
+     * the number after the last '-' of the chunk file name.
+     *
+     * @return the shard, or null if the server holds no chunks of the file
+     */
+    static byte[] toShardBytes(ValueResponse response) {
+        Map<String, ByteString> chunkDataMap = response.getChunkDataMapMap();
+        if (chunkDataMap == null || chunkDataMap.isEmpty())
+            return null;
+        String[] sortedKeys = chunkDataMap.keySet().toArray(new String[0]);
+        Arrays.sort(sortedKeys, (o1, o2) -> Integer.compare(chunkIdx(o1), chunkIdx(o2)));
+        int shardSize = 0;
+        for (String key : sortedKeys)
+            shardSize += chunkDataMap.get(key).size();
+        byte[] shardBytes = new byte[shardSize];
+        int pos = 0;
+        for (String key : sortedKeys) {
+            ByteString chunk = chunkDataMap.get(key);
+            chunk.copyTo(shardBytes, pos);
+            pos += chunk.size();
+        }
+        return shardBytes;
+    }
+
+    private static int chunkIdx(String chunkFileName) {
+        return Integer.parseInt(chunkFileName.substring(chunkFileName.lastIndexOf('-') + 1));
+    }
+}
@@ -0,0 +1,131 @@
+package edu.cmu.reedsolomonfs.client;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import edu.cmu.reedsolomonfs.ConfigVariables;
+
+/**
+ * Size-bounded LRU cache of decoded data stripes, the FILE_SIZE_MULTIPLE
+ * bytes of a file held by the data nodes of one stripe.
+ *
+ * Stripes are keyed by file, file version and stripe index. The version is
+ * the one the master reports for the file, which changes with every write,
+ * so a read at a newer version misses and the stale stripes age out. Writes
+ * made by this client drop the file's stripes right away.
+ */
+public class StripeCache {
+
+    private final int maxStripeCnt;
+    private final LinkedHashMap<Key, byte[]> stripes;
+    private long hitCnt = 0;
+    private long missCnt = 0;
+    private long evictionCnt = 0;
+
+    /**
+     * @param capacityBytes bytes of decoded stripes to hold at most
+     */
+    public StripeCache(long capacityBytes) {
+        maxStripeCnt = (int) Math.min(Integer.MAX_VALUE, capacityBytes / ConfigVariables.FILE_SIZE_MULTIPLE);
+        // access order makes iteration start at the least recently used stripe
+        stripes = new LinkedHashMap<Key, byte[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, byte[]> eldest) {
+                if (size() <= maxStripeCnt)
+                    return false;
+                evictionCnt++;
+                return true;
+            }
+        };
+    }
+
+    /**
+     * @return the decoded stripe, or null if it is not cached
+     */
+    public synchronized byte[] get(String filePath, long fileVersion, int stripeIdx) {
+        byte[] stripe = stripes.get(new Key(filePath, fileVersion, stripeIdx));
+        if (stripe == null)
+            missCnt++;
+        else
+            hitCnt++;
+        return stripe;
+    }
+
+    /**
+     * Cache a decoded stripe. The array is kept, not copied, and must not be
+     * changed afterwards.
+     */
+    public synchronized void put(String filePath, long fileVersion, int stripeIdx, byte[] stripe) {
+        if (stripe.length != ConfigVariables.FILE_SIZE_MULTIPLE)
+            throw new IllegalArgumentException("A stripe holds " + ConfigVariables.FILE_SIZE_MULTIPLE
+                    + " bytes, not " + stripe.length);
+        if (maxStripeCnt > 0)
+            stripes.put(new Key(filePath, fileVersion, stripeIdx), stripe);
+    }
+
+    /**
+     * Drop every stripe of a file, at any version
+     */
+    public synchronized void invalidate(String filePath) {
+        Iterator<Key> keys = stripes.keySet().iterator();
+        while (keys.hasNext()) {
+            if (keys.next().filePath.equals(filePath))
+                keys.remove();
+        }
+    }
+
+    public synchronized int size() {
+        return stripes.size();
+    }
+
+    public synchronized long getHitCnt() {
+        return hitCnt;
+    }
+
+    public synchronized long getMissCnt() {
+        return missCnt;
+    }
+
+    public synchronized long getEvictionCnt() {
+        return evictionCnt;
+    }
+
+    public synchronized double getHitRate() {
+        long lookupCnt = hitCnt + missCnt;
+        return lookupCnt == 0 ? 0 : (double) hitCnt / lookupCnt;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "StripeCache[" + stripes.size() + "/" + maxStripeCnt + " stripes, " + hitCnt + " hits, " + missCnt
+                + " misses, " + evictionCnt + " evictions]";
+    }
+
+    private static final class Key {
+        private final String filePath;
+        private final long fileVersion;
+        private final int stripeIdx;
+
+        Key(String filePath, long fileVersion, int stripeIdx) {
+            this.filePath = filePath;
+            this.fileVersion = fileVersion;
+            this.stripeIdx = stripeIdx;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key other = (Key) o;
+            return stripeIdx == other.stripeIdx && fileVersion == other.fileVersion
+                    && filePath.equals(other.filePath);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(filePath, fileVersion, stripeIdx);
+        }
+    }
+}
@@ -113,6 +113,34 @@ public class FileMetadataHelper {
         return chunkIdx - 1;
     }
 
+    /**
+     * Index of the stripe, the DATA_SHARD_COUNT data nodes and the parity nodes
+     * coded from them, that holds a byte of the file
+     * 
+     * @param byteIdxInFile offset of the byte in the file
+     * @return stripe index, the chunkIdx of its first node divided by
+     *         TOTAL_SHARD_COUNT
+     */
+    public static int stripeIdx(int byteIdxInFile) {
+        return byteIdxInFile / ConfigVariables.FILE_SIZE_MULTIPLE;
+    }
+
+    /**
+     * Whether a node belongs to one of the stripes covering a byte range of the
+     * file. A missing node can only be rebuilt from the other nodes of its
+     * stripe, so ranges are read in whole stripes.
+     * 
+     * @param chunkIdx index of the node
+     * @param offset   first byte of the range
+     * @param length   number of bytes in the range, 0 for the whole file
+     */
+    public static boolean isChunkInRange(int chunkIdx, int offset, int length) {
+        if (length == 0)
+            return true;
+        int stripeIdx = chunkIdx / ConfigVariables.TOTAL_SHARD_COUNT;
+        return stripeIdx >= stripeIdx(offset) && stripeIdx <= stripeIdx(offset + length - 1);
+    }
+
     /**
      * Parse a given FileMetadata and retrieve the file chunk names (paths)
      * corresponding to
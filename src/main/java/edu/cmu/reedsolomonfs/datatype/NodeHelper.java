@@ -1,5 +1,7 @@
 package edu.cmu.reedsolomonfs.datatype;
 
+import java.nio.ByteBuffer;
+
 import edu.cmu.reedsolomonfs.ConfigVariables;
 
 public class NodeHelper {
@@ -19,4 +21,21 @@ public class NodeHelper {
         }
         return chunks;
     }
+
+    /**
+     * Split a shard into chunk views without copying
+     * @param shard
+     * @return one buffer of BLOCK_SIZE bytes per chunk, sharing content with shard
+     */
+    public static ByteBuffer[] splitShardToChunks(ByteBuffer shard) {
+        int chunkCnt = shard.remaining() / ConfigVariables.BLOCK_SIZE;
+        ByteBuffer[] chunks = new ByteBuffer[chunkCnt];
+        for (int i = 0; i < chunkCnt; i++) {
+            ByteBuffer chunk = shard.duplicate();
+            chunk.position(shard.position() + i * ConfigVariables.BLOCK_SIZE);
+            chunk.limit(chunk.position() + ConfigVariables.BLOCK_SIZE);
+            chunks[i] = chunk.slice();
+        }
+        return chunks;
+    }
 }
@@ -0,0 +1,216 @@
+package edu.cmu.reedsolomonfs.server.Chunkserver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import edu.cmu.reedsolomonfs.ConfigVariables;
+
+/**
+ * Chunk metadata of one chunkserver: the chunks it stores of every file.
+ *
+ * Every chunk is kept under the key file/version/chunkIdx, that is the file
+ * path in UTF-8, a 0 byte, then the version and the chunk index big-endian,
+ * with its chunk file name as the value. Keys are ordered as unsigned bytes,
+ * so the chunks of a file are one range of keys in version and then chunk
+ * order: listing them is a prefix scan, and the chunk index is parsed out of
+ * a chunk file name only once, when the chunk is added.
+ *
+ * With CHUNK_METADATA_ROCKSDB the metadata is kept in RocksDB and survives a
+ * restart, otherwise it is kept in memory and rebuilt from the chunk store.
+ */
+public abstract class ChunkMetadataStore implements Closeable {
+
+    private static final int KEY_SUFFIX_SIZE = 1 + Long.BYTES + Integer.BYTES;
+
+    /**
+     * Open the chunk metadata of a chunkserver, in RocksDB in the directory or
+     * in memory as CHUNK_METADATA_ROCKSDB says
+     */
+    public static ChunkMetadataStore open(Path directory) throws IOException {
+        if (ConfigVariables.CHUNK_METADATA_ROCKSDB)
+            return new RocksChunkMetadataStore(directory);
+        return new MemoryChunkMetadataStore();
+    }
+
+    /**
+     * Add a chunk by its chunk file name, filePath.version-chunkIdx
+     *
+     * @return false if the name is not of that form
+     */
+    public boolean addChunk(String chunkFileName) throws IOException {
+        byte[] key = chunkKey(chunkFileName);
+        if (key == null)
+            return false;
+        put(key, chunkFileName.getBytes(StandardCharsets.UTF_8));
+        return true;
+    }
+
+    /**
+     * @return the chunk file names of a file by chunk index, of the newest
+     *         version of each chunk; empty if the file has no chunks here
+     */
+    public TreeMap<Integer, String> getChunks(String filePath) throws IOException {
+        TreeMap<Integer, String> chunks = new TreeMap<>();
+        byte[] prefix = filePrefix(filePath);
+        scan(prefix, prefixEnd(prefix), (key, value) -> chunks.put(chunkIdx(key),
+                new String(value, StandardCharsets.UTF_8)));
+        return chunks;
+    }
+
+    /**
+     * @return the chunk file names of the newest version of a file with chunk
+     *         indexes in [fromChunkIdx, toChunkIdx], by chunk index; empty if
+     *         the file has no chunks here. Only the keys of those chunks are
+     *         scanned, after one lookup of the newest version.
+     */
+    public TreeMap<Integer, String> getChunks(String filePath, int fromChunkIdx, int toChunkIdx)
+            throws IOException {
+        TreeMap<Integer, String> chunks = new TreeMap<>();
+        byte[] prefix = filePrefix(filePath);
+        byte[] lastKey = lastKey(prefix, prefixEnd(prefix));
+        if (lastKey == null || fromChunkIdx > toChunkIdx)
+            return chunks;
+        long version = version(lastKey);
+        // the key of the last chunk followed by a 0 sorts right after it
+        byte[] to = Arrays.copyOf(chunkKey(prefix, version, toChunkIdx), prefix.length + KEY_SUFFIX_SIZE);
+        scan(chunkKey(prefix, version, fromChunkIdx), to, (key, value) -> chunks.put(chunkIdx(key),
+                new String(value, StandardCharsets.UTF_8)));
+        return chunks;
+    }
+
+    /**
+     * Remove every chunk of a file
+     *
+     * @return the chunk file names the file had
+     */
+    public List<String> removeFile(String filePath) throws IOException {
+        List<byte[]> keys = new ArrayList<>();
+        List<String> chunkFileNames = new ArrayList<>();
+        byte[] prefix = filePrefix(filePath);
+        scan(prefix, prefixEnd(prefix), (key, value) -> {
+            keys.add(key);
+            chunkFileNames.add(new String(value, StandardCharsets.UTF_8));
+        });
+        delete(keys);
+        return chunkFileNames;
+    }
+
+    /**
+     * @return the chunk file names of every file, in version and chunk order
+     */
+    public Map<String, List<String>> getFileNameToChunks() throws IOException {
+        Map<String, List<String>> fileNameToChunks = new HashMap<>();
+        scan(new byte[0], null, (key, value) -> fileNameToChunks
+                .computeIfAbsent(filePath(key), k -> new ArrayList<>())
+                .add(new String(value, StandardCharsets.UTF_8)));
+        return fileNameToChunks;
+    }
+
+    /**
+     * Make the metadata list exactly the chunks in the chunk store, which a
+     * crash between writing a chunk and its metadata leaves apart
+     */
+    public void reconcile(Set<String> storedChunkFileNames) throws IOException {
+        Set<String> missing = new HashSet<>(storedChunkFileNames);
+        List<byte[]> stale = new ArrayList<>();
+        scan(new byte[0], null, (key, value) -> {
+            if (!missing.remove(new String(value, StandardCharsets.UTF_8)))
+                stale.add(key);
+        });
+        delete(stale);
+        for (String chunkFileName : missing)
+            addChunk(chunkFileName);
+    }
+
+    abstract void put(byte[] key, byte[] value) throws IOException;
+
+    abstract void delete(List<byte[]> keys) throws IOException;
+
+    /**
+     * Visit the entries with keys in [from, to) in key order, to every key
+     * after from if to is null
+     */
+    abstract void scan(byte[] from, byte[] to, EntryVisitor visitor) throws IOException;
+
+    /**
+     * @return the last key in [from, to), null if there is none
+     */
+    abstract byte[] lastKey(byte[] from, byte[] to) throws IOException;
+
+    @FunctionalInterface
+    interface EntryVisitor {
+        void visit(byte[] key, byte[] value);
+    }
+
+    /**
+     * @return the key of a chunk, or null if its name is not
+     *         filePath.version-chunkIdx
+     */
+    static byte[] chunkKey(String chunkFileName) {
+        int versionStart = chunkFileName.lastIndexOf('.');
+        int chunkIdxStart = chunkFileName.lastIndexOf('-');
+        if (versionStart <= 0 || chunkIdxStart < versionStart)
+            return null;
+        long version;
+        int chunkIdx;
+        try {
+            version = Long.parseLong(chunkFileName.substring(versionStart + 1, chunkIdxStart));
+            chunkIdx = Integer.parseInt(chunkFileName.substring(chunkIdxStart + 1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        String filePath = chunkFileName.substring(0, versionStart);
+        // chunk files moved into the chunk store are named without the leading slash
+        if (!filePath.startsWith("/"))
+            filePath = "/" + filePath;
+        return chunkKey(filePrefix(filePath), version, chunkIdx);
+    }
+
+    private static byte[] chunkKey(byte[] prefix, long version, int chunkIdx) {
+        return ByteBuffer.allocate(prefix.length + Long.BYTES + Integer.BYTES)
+                .put(prefix)
+                .putLong(version)
+                .putInt(chunkIdx)
+                .array();
+    }
+
+    private static byte[] filePrefix(String filePath) {
+        byte[] path = filePath.getBytes(StandardCharsets.UTF_8);
+        byte[] prefix = new byte[path.length + 1];
+        System.arraycopy(path, 0, prefix, 0, path.length);
+        return prefix;
+    }
+
+    /**
+     * The prefix ends with the 0 separator, so the keys of the file end before
+     * the prefix with a 1 in its place
+     */
+    private static byte[] prefixEnd(byte[] prefix) {
+        byte[] end = prefix.clone();
+        end[end.length - 1] = 1;
+        return end;
+    }
+
+    private static String filePath(byte[] key) {
+        return new String(key, 0, key.length - KEY_SUFFIX_SIZE, StandardCharsets.UTF_8);
+    }
+
+    private static long version(byte[] key) {
+        return ByteBuffer.wrap(key, key.length - Long.BYTES - Integer.BYTES, Long.BYTES).getLong();
+    }
+
+    private static int chunkIdx(byte[] key) {
+        return ByteBuffer.wrap(key, key.length - Integer.BYTES, Integer.BYTES).getInt();
+    }
+}
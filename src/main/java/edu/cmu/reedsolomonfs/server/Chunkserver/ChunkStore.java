@@ -0,0 +1,769 @@
+package edu.cmu.reedsolomonfs.server.Chunkserver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.cmu.reedsolomonfs.ConfigVariables;
+
+/**
+ * Log-structured store of the chunks of one chunkserver.
+ *
+ * Chunks are appended as records to segment files of about
+ * CHUNK_STORE_SEGMENT_SIZE bytes, and an in-memory index maps every chunk
+ * name to where its latest record is, so writing a chunk is an append and
+ * reading one a positional read, instead of creating and opening a file per
+ * chunk. A chunk written again or deleted leaves its old record behind as
+ * dead bytes; a delete appends a tombstone. Once more than
+ * CHUNK_STORE_COMPACTION_THRESHOLD of a full segment is dead, a background
+ * thread copies its live records to the end of the log and removes it.
+ *
+ * A record is the name length, the data length (-1 for a tombstone), the
+ * CRC32 of name and data, then the name and the data. Opening a store
+ * replays the segments in order to rebuild the index, dropping a torn
+ * record at the end of the last one. Chunk files left in the directory by
+ * the one-file-per-chunk layout, those named filePath.version-chunkIdx, are
+ * moved into the store; any other file is left alone.
+ *
+ * So that opening a store does not read every segment, the index is
+ * checkpointed to a checksummed chunk-index file every
+ * CHUNK_STORE_CHECKPOINT_INTERVAL bytes appended, after every compaction and
+ * on close. The file holds every index entry and the size and live bytes of
+ * every segment it covers. Opening maps it, and replays only the records
+ * appended after it; the whole log is replayed, and the directory scanned,
+ * only when the file is missing or corrupt, or a segment it covers is gone.
+ */
+public class ChunkStore implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ChunkStore.class);
+
+    private static final Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d{8})\\.log");
+    private static final int HEADER_SIZE = 12;
+    private static final int TOMBSTONE = -1;
+    private static final String INDEX_FILE_NAME = "chunk-index";
+    private static final int INDEX_MAGIC = 0x52534349;
+
+    private final Path directory;
+    private final long segmentSize;
+    private final long checkpointInterval;
+    // chunk name -> its live record
+    private final Map<String, Location> index = new ConcurrentHashMap<>();
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    // appends and segment changes take the write lock, reads the read lock,
+    // so a segment is not removed under a read
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "chunk-store-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private Segment active;
+    private boolean compactionScheduled = false;
+    // bytes appended since the index was last checkpointed
+    private long bytesSinceCheckpoint = 0;
+    // bytes appended since the store was opened
+    private volatile long appendedBytes = 0;
+    private boolean checkpointScheduled = false;
+
+    public ChunkStore(Path directory) throws IOException {
+        this(directory, ConfigVariables.CHUNK_STORE_SEGMENT_SIZE);
+    }
+
+    public ChunkStore(Path directory, long segmentSize) throws IOException {
+        this(directory, segmentSize, ConfigVariables.CHUNK_STORE_CHECKPOINT_INTERVAL);
+    }
+
+    /**
+     * @param checkpointInterval bytes appended between checkpoints of the
+     *                           index
+     */
+    public ChunkStore(Path directory, long segmentSize, long checkpointInterval) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.checkpointInterval = checkpointInterval;
+        Files.createDirectories(directory);
+        // segment id -> size and live bytes as of the checkpoint
+        Map<Integer, long[]> checkpointed = loadIndex();
+        TreeSet<Integer> segmentIds = new TreeSet<>();
+        List<Path> legacyChunkFiles = new ArrayList<>();
+        if (checkpointed != null) {
+            // chunk files were moved in when the store was first opened
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "segment-*.log")) {
+                for (Path path : files) {
+                    Matcher matcher = SEGMENT_NAME.matcher(path.getFileName().toString());
+                    if (matcher.matches())
+                        segmentIds.add(Integer.parseInt(matcher.group(1)));
+                }
+            }
+            for (Map.Entry<Integer, long[]> segment : checkpointed.entrySet()) {
+                Path segmentPath = segmentPath(segment.getKey());
+                if (!Files.exists(segmentPath) || Files.size(segmentPath) < segment.getValue()[0]) {
+                    LOG.warn("Segment {} in {} is not as the chunk index has it, replaying the whole log",
+                            segment.getKey(), directory);
+                    index.clear();
+                    checkpointed = null;
+                    break;
+                }
+            }
+        }
+        if (checkpointed == null) {
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.filter(Files::isRegularFile).forEach(path -> {
+                    Matcher matcher = SEGMENT_NAME.matcher(path.getFileName().toString());
+                    if (matcher.matches() && path.getParent().equals(directory))
+                        segmentIds.add(Integer.parseInt(matcher.group(1)));
+                    else if (ChunkMetadataStore.chunkKey(directory.relativize(path).toString()) != null)
+                        legacyChunkFiles.add(path);
+                });
+            }
+        }
+
+        int lastCheckpointedId = checkpointed == null || checkpointed.isEmpty() ? 0
+                : new TreeSet<>(checkpointed.keySet()).last();
+        long replayedBytes = 0;
+        for (int segmentId : segmentIds) {
+            long[] stats = checkpointed == null ? null : checkpointed.get(segmentId);
+            if (checkpointed != null && stats == null && segmentId < lastCheckpointedId) {
+                // compacted after the checkpoint was written, before it was deleted
+                Files.delete(segmentPath(segmentId));
+                continue;
+            }
+            Segment segment = replay(segmentId, segmentId == segmentIds.last(), stats);
+            segments.put(segmentId, segment);
+            replayedBytes += segment.size - (stats == null ? 0 : stats[0]);
+        }
+        active = segments.isEmpty() ? newSegment(1) : segments.lastEntry().getValue();
+        for (Path chunkFile : legacyChunkFiles) {
+            String chunkName = directory.relativize(chunkFile).toString();
+            put(chunkName, ByteBuffer.wrap(Files.readAllBytes(chunkFile)));
+            Files.delete(chunkFile);
+        }
+        if (!legacyChunkFiles.isEmpty())
+            LOG.info("Moved {} chunk files into the chunk store in {}", legacyChunkFiles.size(), directory);
+        if (checkpointed == null || replayedBytes > 0 || !legacyChunkFiles.isEmpty())
+            writeIndex();
+    }
+
+    /**
+     * @return the chunk, or null if there is none of that name
+     */
+    public byte[] get(String chunkName) throws IOException {
+        lock.readLock().lock();
+        try {
+            Location location = index.get(chunkName);
+            if (location == null)
+                return null;
+            ByteBuffer chunk = ByteBuffer.allocate(location.length);
+            readFully(segments.get(location.segmentId).channel, chunk, location.offset);
+            return chunk.array();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean contains(String chunkName) {
+        return index.containsKey(chunkName);
+    }
+
+    /**
+     * @return the name of every chunk in the store
+     */
+    public Set<String> chunkNames() {
+        return new HashSet<>(index.keySet());
+    }
+
+    public void put(String chunkName, ByteBuffer chunk) throws IOException {
+        put(new String[] { chunkName }, new ByteBuffer[] { chunk });
+    }
+
+    /**
+     * Write several chunks with one append. The buffers' remaining bytes are
+     * stored, and their positions are left alone.
+     */
+    public void put(String[] chunkNames, ByteBuffer[] chunks) throws IOException {
+        byte[][] names = new byte[chunkNames.length][];
+        int recordsSize = 0;
+        for (int i = 0; i < chunkNames.length; i++) {
+            names[i] = chunkNames[i].getBytes(StandardCharsets.UTF_8);
+            recordsSize += HEADER_SIZE + names[i].length + chunks[i].remaining();
+        }
+        ByteBuffer records = ByteBuffer.allocate(recordsSize);
+        int[] dataOffsets = new int[chunkNames.length];
+        for (int i = 0; i < chunkNames.length; i++)
+            dataOffsets[i] = records.position() + appendRecord(records, names[i], chunks[i].duplicate());
+        records.flip();
+
+        lock.writeLock().lock();
+        try {
+            Segment segment = activeSegmentFor(recordsSize);
+            long recordsOffset = segment.size;
+            append(segment, records);
+            for (int i = 0; i < chunkNames.length; i++) {
+                Location location = new Location(segment.id, recordsOffset + dataOffsets[i], chunks[i].remaining());
+                segment.liveBytes += location.recordSize(names[i].length);
+                kill(index.put(chunkNames[i], location), names[i].length);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Delete a chunk, if there is one of that name
+     */
+    public void delete(String chunkName) throws IOException {
+        byte[] name = chunkName.getBytes(StandardCharsets.UTF_8);
+        lock.writeLock().lock();
+        try {
+            Location location = index.remove(chunkName);
+            if (location == null)
+                return;
+            ByteBuffer tombstone = ByteBuffer.allocate(HEADER_SIZE + name.length);
+            appendRecord(tombstone, name, null);
+            tombstone.flip();
+            append(activeSegmentFor(tombstone.remaining()), tombstone);
+            kill(location, name.length);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Copy the live records of every full segment over the compaction
+     * threshold to the end of the log, and remove the segment
+     *
+     * @return the number of segments removed
+     */
+    public synchronized int compact() throws IOException {
+        List<Integer> candidates = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (Segment segment : segments.values()) {
+                if (segment != active && segment.deadRatio() > ConfigVariables.CHUNK_STORE_COMPACTION_THRESHOLD)
+                    candidates.add(segment.id);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        for (int segmentId : candidates)
+            compact(segmentId);
+        return candidates.size();
+    }
+
+    /**
+     * @return bytes of records appended since the store was opened
+     */
+    public long getAppendedBytes() {
+        return appendedBytes;
+    }
+
+    public int getSegmentCount() {
+        lock.readLock().lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return bytes of records that are live, dead and in all segments
+     */
+    public long[] getByteCounts() {
+        lock.readLock().lock();
+        try {
+            long liveBytes = 0;
+            long totalBytes = 0;
+            for (Segment segment : segments.values()) {
+                liveBytes += segment.liveBytes;
+                totalBytes += segment.size;
+            }
+            return new long[] { liveBytes, totalBytes - liveBytes, totalBytes };
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Make every record appended so far durable. Appends go on while the
+     * segments are forced.
+     */
+    public void sync() throws IOException {
+        List<Segment> dirty = new ArrayList<>();
+        lock.writeLock().lock();
+        try {
+            for (Segment segment : segments.values()) {
+                if (segment.dirty) {
+                    segment.dirty = false;
+                    dirty.add(segment);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        for (Segment segment : dirty) {
+            try {
+                segment.channel.force(false);
+            } catch (ClosedChannelException e) {
+                // compacted meanwhile; its live records were copied and forced
+            }
+        }
+    }
+
+    /**
+     * Checkpoint the index, after making the records it points to durable
+     */
+    public synchronized void writeIndex() throws IOException {
+        ByteBuffer checkpoint;
+        lock.readLock().lock();
+        try {
+            for (Segment segment : segments.values())
+                segment.channel.force(false);
+            checkpoint = encodeIndex();
+            bytesSinceCheckpoint = 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+        Path indexPath = directory.resolve(INDEX_FILE_NAME);
+        Path tempPath = directory.resolve(INDEX_FILE_NAME + ".tmp");
+        try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (checkpoint.hasRemaining())
+                channel.write(checkpoint);
+            channel.force(true);
+        }
+        Files.move(tempPath, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public void close() throws IOException {
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (bytesSinceCheckpoint > 0)
+            writeIndex();
+        lock.writeLock().lock();
+        try {
+            for (Segment segment : segments.values())
+                segment.channel.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Rewrite the live records of one segment at the end of the log. A chunk
+     * written again while its record is copied keeps the newer record. The
+     * tombstones are copied too while older segments, which may hold the
+     * records they delete, are left.
+     */
+    private void compact(int segmentId) throws IOException {
+        Segment segment;
+        boolean keepTombstones;
+        lock.readLock().lock();
+        try {
+            segment = segments.get(segmentId);
+            if (segment == null)
+                return;
+            keepTombstones = segmentId != segments.firstKey();
+        } finally {
+            lock.readLock().unlock();
+        }
+        scan(segment, 0, (name, chunkName, dataOffset, dataLength) -> {
+            ByteBuffer record;
+            int recordDataOffset = 0;
+            Location location = null;
+            if (dataLength == TOMBSTONE) {
+                if (!keepTombstones)
+                    return;
+                record = ByteBuffer.allocate(HEADER_SIZE + name.length);
+                appendRecord(record, name, null);
+            } else {
+                location = index.get(chunkName);
+                if (location == null || location.segmentId != segmentId || location.offset != dataOffset)
+                    return;
+                ByteBuffer chunk = ByteBuffer.allocate(dataLength);
+                readFully(segment.channel, chunk, dataOffset);
+                chunk.flip();
+                record = ByteBuffer.allocate(HEADER_SIZE + name.length + dataLength);
+                recordDataOffset = appendRecord(record, name, chunk);
+            }
+            record.flip();
+            lock.writeLock().lock();
+            try {
+                // a chunk written or deleted meanwhile keeps its newer record,
+                // and a tombstone is only needed while the chunk is absent
+                if (location == null ? index.containsKey(chunkName) : index.get(chunkName) != location)
+                    return;
+                Segment target = activeSegmentFor(record.remaining());
+                long recordOffset = target.size;
+                append(target, record);
+                if (location != null) {
+                    Location moved = new Location(target.id, recordOffset + recordDataOffset, dataLength);
+                    index.put(chunkName, moved);
+                    target.liveBytes += moved.recordSize(name.length);
+                    segment.liveBytes -= location.recordSize(name.length);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        });
+        lock.writeLock().lock();
+        try {
+            segments.remove(segmentId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        // the index no longer points into the segment once it is checkpointed
+        writeIndex();
+        segment.channel.close();
+        Files.deleteIfExists(segmentPath(segmentId));
+        LOG.info("Compacted segment {} of the chunk store in {}", segmentId, directory);
+    }
+
+    private void scheduleCheckpoint() {
+        if (checkpointScheduled)
+            return;
+        checkpointScheduled = true;
+        compactor.execute(() -> {
+            lock.writeLock().lock();
+            checkpointScheduled = false;
+            lock.writeLock().unlock();
+            try {
+                writeIndex();
+            } catch (IOException e) {
+                LOG.error("Fail to checkpoint the index of the chunk store in {}", directory, e);
+            }
+        });
+    }
+
+    private void scheduleCompaction() {
+        if (compactionScheduled)
+            return;
+        compactionScheduled = true;
+        compactor.execute(() -> {
+            lock.writeLock().lock();
+            compactionScheduled = false;
+            lock.writeLock().unlock();
+            try {
+                compact();
+            } catch (IOException e) {
+                LOG.error("Fail to compact the chunk store in {}", directory, e);
+            }
+        });
+    }
+
+    /**
+     * Account the record of a chunk as dead, and compact its segment once
+     * enough of it is. Needs the write lock.
+     */
+    private void kill(Location location, int nameLength) {
+        if (location == null)
+            return;
+        Segment segment = segments.get(location.segmentId);
+        segment.liveBytes -= location.recordSize(nameLength);
+        if (segment != active && segment.deadRatio() > ConfigVariables.CHUNK_STORE_COMPACTION_THRESHOLD)
+            scheduleCompaction();
+    }
+
+    /**
+     * The segment to append recordsSize bytes to, starting a new one if the
+     * active segment would grow past segmentSize. Needs the write lock.
+     */
+    private Segment activeSegmentFor(int recordsSize) throws IOException {
+        if (active.size > 0 && active.size + recordsSize > segmentSize) {
+            active = newSegment(active.id + 1);
+            // the segment just filled may already be mostly dead
+            for (Segment segment : segments.values()) {
+                if (segment != active && segment.deadRatio() > ConfigVariables.CHUNK_STORE_COMPACTION_THRESHOLD)
+                    scheduleCompaction();
+            }
+        }
+        return active;
+    }
+
+    private Segment newSegment(int segmentId) throws IOException {
+        FileChannel channel = FileChannel.open(segmentPath(segmentId), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Segment segment = new Segment(segmentId, channel);
+        segments.put(segmentId, segment);
+        return segment;
+    }
+
+    private Path segmentPath(int segmentId) {
+        return directory.resolve(String.format("segment-%08d.log", segmentId));
+    }
+
+    /**
+     * Needs the write lock
+     */
+    private void append(Segment segment, ByteBuffer records) throws IOException {
+        long position = segment.size;
+        while (records.hasRemaining())
+            position += segment.channel.write(records, position);
+        bytesSinceCheckpoint += position - segment.size;
+        appendedBytes += position - segment.size;
+        segment.size = position;
+        segment.dirty = true;
+        if (bytesSinceCheckpoint >= checkpointInterval)
+            scheduleCheckpoint();
+    }
+
+    /**
+     * The magic, every segment's id, size and live bytes, every index entry's
+     * name, segment id, offset and length, then the CRC32 of all of it. Needs
+     * the read lock.
+     */
+    private ByteBuffer encodeIndex() {
+        Map<String, byte[]> names = new HashMap<>(index.size() * 2);
+        long checkpointSize = 8 + 20L * segments.size() + 4 + 8;
+        for (String chunkName : index.keySet()) {
+            byte[] name = chunkName.getBytes(StandardCharsets.UTF_8);
+            names.put(chunkName, name);
+            checkpointSize += 20 + name.length;
+        }
+        if (checkpointSize > Integer.MAX_VALUE)
+            throw new IllegalStateException("Chunk index of " + directory + " is too large to checkpoint");
+        ByteBuffer checkpoint = ByteBuffer.allocate((int) checkpointSize);
+        checkpoint.putInt(INDEX_MAGIC);
+        checkpoint.putInt(segments.size());
+        for (Segment segment : segments.values()) {
+            checkpoint.putInt(segment.id);
+            checkpoint.putLong(segment.size);
+            checkpoint.putLong(segment.liveBytes);
+        }
+        checkpoint.putInt(names.size());
+        for (Map.Entry<String, byte[]> name : names.entrySet()) {
+            Location location = index.get(name.getKey());
+            checkpoint.putInt(name.getValue().length);
+            checkpoint.put(name.getValue());
+            checkpoint.putInt(location.segmentId);
+            checkpoint.putLong(location.offset);
+            checkpoint.putInt(location.length);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(checkpoint.array(), 0, checkpoint.position());
+        checkpoint.putLong(crc.getValue());
+        checkpoint.flip();
+        return checkpoint;
+    }
+
+    /**
+     * Fill the index from its checkpoint, mapping the file instead of reading
+     * it through a buffer
+     *
+     * @return the size and live bytes of every segment checkpointed, or null
+     *         if there is no checkpoint or it is corrupt
+     */
+    private Map<Integer, long[]> loadIndex() {
+        Path indexPath = directory.resolve(INDEX_FILE_NAME);
+        if (!Files.exists(indexPath))
+            return null;
+        try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < 20 || size > Integer.MAX_VALUE)
+                throw new IOException("Chunk index has " + size + " bytes");
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            ByteBuffer body = mapped.duplicate();
+            body.limit((int) size - 8);
+            CRC32 crc = new CRC32();
+            crc.update(body.duplicate());
+            if (crc.getValue() != mapped.getLong((int) size - 8) || body.getInt() != INDEX_MAGIC)
+                throw new IOException("Chunk index fails its checksum");
+            Map<Integer, long[]> checkpointed = new HashMap<>();
+            int segmentCount = body.getInt();
+            for (int i = 0; i < segmentCount; i++)
+                checkpointed.put(body.getInt(), new long[] { body.getLong(), body.getLong() });
+            int entryCount = body.getInt();
+            for (int i = 0; i < entryCount; i++) {
+                byte[] name = new byte[body.getInt()];
+                body.get(name);
+                index.put(new String(name, StandardCharsets.UTF_8),
+                        new Location(body.getInt(), body.getLong(), body.getInt()));
+            }
+            return checkpointed;
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Ignoring the chunk index in {}, replaying the whole log: {}", directory, e.toString());
+            index.clear();
+            return null;
+        }
+    }
+
+    /**
+     * Put a record in buffer, a tombstone if chunk is null
+     *
+     * @return offset of the record's data from where the record starts
+     */
+    private static int appendRecord(ByteBuffer buffer, byte[] name, ByteBuffer chunk) {
+        CRC32 crc = new CRC32();
+        crc.update(name);
+        if (chunk != null)
+            crc.update(chunk.duplicate());
+        buffer.putInt(name.length);
+        buffer.putInt(chunk == null ? TOMBSTONE : chunk.remaining());
+        buffer.putInt((int) crc.getValue());
+        buffer.put(name);
+        if (chunk != null)
+            buffer.put(chunk);
+        return HEADER_SIZE + name.length;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0)
+                throw new IOException("Unexpected end of chunk store segment");
+            position += read;
+        }
+    }
+
+    /**
+     * Rebuild the index entries of a segment's records, those after the
+     * checkpointed size if the segment is checkpointed. A torn or corrupt
+     * record ends the segment; at the end of the last segment it is what a
+     * crash during an append leaves, and is cut off.
+     */
+    private Segment replay(int segmentId, boolean last, long[] checkpointed) throws IOException {
+        FileChannel channel = FileChannel.open(segmentPath(segmentId), StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        Segment segment = new Segment(segmentId, channel);
+        segment.size = channel.size();
+        long replayFrom = 0;
+        if (checkpointed != null) {
+            // the records up to the checkpointed size are in the index already
+            replayFrom = checkpointed[0];
+            segment.liveBytes = checkpointed[1];
+        }
+        long validSize = scan(segment, replayFrom, (name, chunkName, dataOffset, dataLength) -> {
+            if (dataLength == TOMBSTONE) {
+                Location deleted = index.remove(chunkName);
+                if (deleted != null)
+                    killReplayed(deleted, name.length, segment);
+                return;
+            }
+            Location location = new Location(segmentId, dataOffset, dataLength);
+            segment.liveBytes += location.recordSize(name.length);
+            Location replaced = index.put(chunkName, location);
+            if (replaced != null)
+                killReplayed(replaced, name.length, segment);
+        });
+        if (validSize < segment.size) {
+            LOG.warn("Dropping {} bytes of torn records at the end of segment {} in {}", segment.size - validSize,
+                    segmentId, directory);
+            if (last)
+                channel.truncate(validSize);
+            segment.size = validSize;
+        }
+        return segment;
+    }
+
+    private void killReplayed(Location location, int nameLength, Segment replaying) {
+        Segment segment = location.segmentId == replaying.id ? replaying : segments.get(location.segmentId);
+        segment.liveBytes -= location.recordSize(nameLength);
+    }
+
+    /**
+     * Visit the valid records of a segment in order, from the record at
+     * position
+     *
+     * @return where the valid records end
+     */
+    private static long scan(Segment segment, long position, RecordVisitor visitor) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (position + HEADER_SIZE <= segment.size) {
+            header.clear();
+            readFully(segment.channel, header, position);
+            header.flip();
+            int nameLength = header.getInt();
+            int dataLength = header.getInt();
+            int checksum = header.getInt();
+            long recordSize = HEADER_SIZE + (long) nameLength + Math.max(dataLength, 0);
+            if (nameLength <= 0 || dataLength < TOMBSTONE || position + recordSize > segment.size)
+                break;
+            ByteBuffer body = ByteBuffer.allocate((int) (recordSize - HEADER_SIZE));
+            readFully(segment.channel, body, position + HEADER_SIZE);
+            body.flip();
+            CRC32 crc = new CRC32();
+            crc.update(body.duplicate());
+            if ((int) crc.getValue() != checksum)
+                break;
+            byte[] name = new byte[nameLength];
+            body.get(name);
+            visitor.visit(name, new String(name, StandardCharsets.UTF_8), position + HEADER_SIZE + nameLength,
+                    dataLength);
+            position += recordSize;
+        }
+        return position;
+    }
+
+    @FunctionalInterface
+    private interface RecordVisitor {
+        void visit(byte[] name, String chunkName, long dataOffset, int dataLength) throws IOException;
+    }
+
+    private static final class Segment {
+        private final int id;
+        private final FileChannel channel;
+        private long size = 0;
+        private long liveBytes = 0;
+        // appended to since it was last forced
+        private boolean dirty = false;
+
+        Segment(int id, FileChannel channel) {
+            this.id = id;
+            this.channel = channel;
+        }
+
+        double deadRatio() {
+            return size == 0 ? 0 : (double) (size - liveBytes) / size;
+        }
+    }
+
+    private static final class Location {
+        private final int segmentId;
+        private final long offset;
+        private final int length;
+
+        Location(int segmentId, long offset, int length) {
+            this.segmentId = segmentId;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        long recordSize(int nameLength) {
+            return HEADER_SIZE + nameLength + length;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package edu.cmu.reedsolomonfs.server.Chunkserver;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+/**
+ * Decides when the chunk writes of a chunk store are made durable.
+ *
+ * NONE leaves them to the page cache. PER_WRITE forces the store after every
+ * write, on the disk's thread. GROUP_COMMIT forces it on a thread of its own
+ * once windowBytes have been appended or the oldest write waiting is
+ * windowMillis old, and completes every write covered by that fsync
+ * together, while the disk's thread goes on writing.
+ *
+ * The registry gets the timer fsync-latency and the histograms
+ * sync-batch-writes and sync-batch-bytes, the writes and bytes each fsync
+ * made durable.
+ */
+public class ChunkSyncer implements Closeable {
+
+    public enum Mode {
+        NONE, PER_WRITE, GROUP_COMMIT
+    }
+
+    private final ChunkStore chunkStore;
+    private final Mode mode;
+    private final long windowNanos;
+    private final long windowBytes;
+    private final Timer fsyncLatency;
+    private final Histogram batchWrites;
+    private final Histogram batchBytes;
+    private final Thread thread;
+
+    // writes waiting for the next group commit
+    private List<CompletableFuture<Void>> pending = new ArrayList<>();
+    private long oldestPendingNanos;
+    // written outside the lock by whichever thread fsyncs
+    private volatile long syncedBytes;
+    private boolean closed = false;
+
+    /**
+     * @param name         name of the disk, prefixing its metrics and thread
+     * @param windowMillis longest a write waits for a group commit
+     * @param windowBytes  bytes appended that start a group commit
+     */
+    public ChunkSyncer(String name, ChunkStore chunkStore, Mode mode, long windowMillis, long windowBytes,
+            MetricRegistry registry) {
+        this.chunkStore = chunkStore;
+        this.mode = mode;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.windowBytes = windowBytes;
+        fsyncLatency = registry.timer(MetricRegistry.name(name, "fsync-latency"));
+        batchWrites = registry.histogram(MetricRegistry.name(name, "sync-batch-writes"));
+        batchBytes = registry.histogram(MetricRegistry.name(name, "sync-batch-bytes"));
+        syncedBytes = chunkStore.getAppendedBytes();
+        if (mode == Mode.GROUP_COMMIT) {
+            thread = new Thread(this::runGroupCommits, name + "-sync");
+            thread.setDaemon(true);
+            thread.start();
+        } else {
+            thread = null;
+        }
+    }
+
+    /**
+     * Called on the disk's thread after each write to the chunk store
+     *
+     * @return a future completing once the write is durable, as the mode has it
+     */
+    public CompletableFuture<Void> written() {
+        switch (mode) {
+            case NONE:
+                return CompletableFuture.completedFuture(null);
+            case PER_WRITE: {
+                Exception failure = sync(1);
+                return failure == null ? CompletableFuture.completedFuture(null)
+                        : CompletableFuture.failedFuture(failure);
+            }
+            default: {
+                CompletableFuture<Void> durable = new CompletableFuture<>();
+                synchronized (this) {
+                    if (closed) {
+                        durable.completeExceptionally(new IllegalStateException("Chunk syncer is closed"));
+                        return durable;
+                    }
+                    if (pending.isEmpty())
+                        oldestPendingNanos = System.nanoTime();
+                    pending.add(durable);
+                    notifyAll();
+                }
+                return durable;
+            }
+        }
+    }
+
+    /**
+     * Commit the writes waiting, then stop
+     */
+    @Override
+    public void close() {
+        if (thread == null)
+            return;
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void runGroupCommits() {
+        while (true) {
+            List<CompletableFuture<Void>> batch;
+            synchronized (this) {
+                while (true) {
+                    if (closed || (!pending.isEmpty() && chunkStore.getAppendedBytes() - syncedBytes >= windowBytes))
+                        break;
+                    long waitNanos = pending.isEmpty() ? 0 : oldestPendingNanos + windowNanos - System.nanoTime();
+                    if (!pending.isEmpty() && waitNanos <= 0)
+                        break;
+                    try {
+                        if (waitNanos == 0)
+                            wait();
+                        else
+                            TimeUnit.NANOSECONDS.timedWait(this, waitNanos);
+                    } catch (InterruptedException e) {
+                        closed = true;
+                    }
+                }
+                if (pending.isEmpty())
+                    return;
+                batch = pending;
+                pending = new ArrayList<>();
+            }
+            Exception failure = sync(batch.size());
+            for (CompletableFuture<Void> durable : batch) {
+                if (failure == null)
+                    durable.complete(null);
+                else
+                    durable.completeExceptionally(failure);
+            }
+        }
+    }
+
+    /**
+     * Force the chunk store and record the batch it made durable
+     *
+     * @return why the fsync failed, null if it did not
+     */
+    private Exception sync(int writes) {
+        long appendedBytes = chunkStore.getAppendedBytes();
+        final Timer.Context context = fsyncLatency.time();
+        try {
+            chunkStore.sync();
+        } catch (Exception e) {
+            return e;
+        } finally {
+            context.stop();
+        }
+        batchWrites.update(writes);
+        batchBytes.update(appendedBytes - syncedBytes);
+        syncedBytes = appendedBytes;
+        return null;
+    }
+}
@@ -21,6 +21,7 @@ import com.alipay.sofa.jraft.RaftGroupService;
 import com.alipay.sofa.jraft.conf.Configuration;
 import com.alipay.sofa.jraft.entity.PeerId;
 
+import edu.cmu.reedsolomonfs.ConfigVariables;
 import edu.cmu.reedsolomonfs.server.MasterServiceGrpc;
 import edu.cmu.reedsolomonfs.server.Chunkserver.rpc.ChunkserverGrpcHelper;
 import edu.cmu.reedsolomonfs.server.Chunkserver.rpc.GetValueRequestProcessor;
@@ -28,6 +29,7 @@ import edu.cmu.reedsolomonfs.server.Chunkserver.rpc.IncrementAndGetRequestProces
 import edu.cmu.reedsolomonfs.server.Chunkserver.rpc.ReadRequestProcessor;
 import edu.cmu.reedsolomonfs.server.Chunkserver.rpc.RecoveryServiceImpl;
 import edu.cmu.reedsolomonfs.server.Chunkserver.rpc.SetBytesValueRequestProcessor;
+import edu.cmu.reedsolomonfs.server.Chunkserver.rpc.StageShardRequestProcessor;
 import edu.cmu.reedsolomonfs.server.Chunkserver.rpc.UpdateSecretKeyProcessor;
 import edu.cmu.reedsolomonfs.server.Chunkserver.rpc.WriteRequestProcessor;
 import edu.cmu.reedsolomonfs.server.ChunkserverOutter.ValueResponse;
@@ -45,6 +47,9 @@ import com.alipay.sofa.jraft.option.NodeOptions;
 import com.alipay.sofa.jraft.rpc.RaftRpcServerFactory;
 import com.alipay.sofa.jraft.rpc.RpcServer;
 import org.apache.commons.io.FileUtils;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Slf4jReporter;
 
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -54,6 +59,7 @@ import java.io.PrintStream;
 import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 
 // The Chunkserver class is referenced from 
@@ -89,6 +95,12 @@ public class Chunkserver extends edu.cmu.reedsolomonfs.server.ChunkServerService
         this.serverIdx = serverIdx;
         // init state machine
         this.fsm = new ChunkserverStateMachine(serverIdx);
+        // log the disk's queue depth and write latency
+        Slf4jReporter.forRegistry(this.fsm.getDiskMetrics())
+                .outputTo(LoggerFactory.getLogger(ChunkserverStateMachine.class))
+                .convertDurationsTo(TimeUnit.MILLISECONDS)
+                .build()
+                .start(ConfigVariables.CHUNK_IO_METRICS_REPORT_INTERVAL, TimeUnit.SECONDS);
 
         ChunkserverService chunkService = new ChunkserverServiceImpl(this);
         rpcServer.registerProcessor(new GetValueRequestProcessor(chunkService));
@@ -96,11 +108,11 @@ public class Chunkserver extends edu.cmu.reedsolomonfs.server.ChunkServerService
         rpcServer.registerProcessor(new SetBytesValueRequestProcessor(chunkService));
         rpcServer.registerProcessor(new WriteRequestProcessor(chunkService, channel, this.fsm));
         rpcServer.registerProcessor(new ReadRequestProcessor(chunkService));
+        rpcServer.registerProcessor(new StageShardRequestProcessor(chunkService, this));
         rpcServer.registerProcessor(new UpdateSecretKeyProcessor(chunkService, channel));
         // start the recovery thread
-        String diskPath = "./ClientClusterCommTestFiles/Disks/chunkserver-" + serverIdx + "/";
         try {
-            startRecoveryServer(serverIdx, diskPath, this);
+            startRecoveryServer(serverIdx, this);
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -165,10 +177,12 @@ public class Chunkserver extends edu.cmu.reedsolomonfs.server.ChunkServerService
                 }
 
                 HeartbeatRequest hb = HeartbeatRequest.newBuilder().setServerTag(String.valueOf(serverIdx))
-                        .putAllChunkFileNames(fileNameChunksMap).build();
+                        .putAllChunkFileNames(fileNameChunksMap)
+                        .addAllMissingChunkFileNames(fsm.getMissingChunks()).build();
                 System.out.println("channel: " + channel);
                 System.out.println("stub: " + stub);
                 stub.heartBeat(hb);
+                fsm.cleanStagedShards();
 
                 try {
                     sleep(3000); // heartbeat interval
@@ -184,35 +198,40 @@ public class Chunkserver extends edu.cmu.reedsolomonfs.server.ChunkServerService
     }
 
     public boolean validateJWT(String token) {
-        try {
-            byte[] secretKeyBytes = fsm.getSecretKey().getBytes(StandardCharsets.UTF_8);
-
-            // Parse the JWT token
-            Jws<Claims> jwsClaims = Jwts.parser()
-                    .setSigningKey(secretKeyBytes)
-                    .parseClaimsJws(token);
-
-            // Check the permission and filePath in the token (optional)
-            Claims claims = jwsClaims.getBody();
-            String permission = claims.get("permission", String.class);
-            String filePath = claims.get("filePath", String.class);
-
-            // If we reach this point, the token was valid
-            return true;
-        } catch (JwtException ex) {
-            // An error occurred while validating the JWT token
-            System.out.println("Invalid JWT token: " + ex.getMessage());
-            return false;
+        JwtException invalid = null;
+        // the token may be signed with the current key or the one before it
+        for (String secretKey : fsm.getSecretKeys()) {
+            try {
+                byte[] secretKeyBytes = secretKey.getBytes(StandardCharsets.UTF_8);
+
+                // Parse the JWT token
+                Jws<Claims> jwsClaims = Jwts.parser()
+                        .setSigningKey(secretKeyBytes)
+                        .parseClaimsJws(token);
+
+                // Check the permission and filePath in the token (optional)
+                Claims claims = jwsClaims.getBody();
+                String permission = claims.get("permission", String.class);
+                String filePath = claims.get("filePath", String.class);
+
+                // If we reach this point, the token was valid
+                return true;
+            } catch (JwtException ex) {
+                invalid = ex;
+            }
         }
+        // An error occurred while validating the JWT token
+        System.out.println("Invalid JWT token: " + (invalid == null ? "no key" : invalid.getMessage()));
+        return false;
     }
 
-    private static void startRecoveryServer(int serverIdx, String diskPath, Chunkserver chunkService) throws Exception {
+    private static void startRecoveryServer(int serverIdx, Chunkserver chunkService) throws Exception {
         // Create a new thread for running the server
         Thread recoveryServerThread = new Thread(() -> {
             try {
                 // Create a gRPC server using ServerBuilder
                 Server server = ServerBuilder.forPort(18000 + serverIdx)
-                        .addService(new RecoveryServiceImpl(serverIdx, diskPath, chunkService)) // Add your service
+                        .addService(new RecoveryServiceImpl(serverIdx, chunkService)) // Add your service
                                                                                                 // implementation
                         .build();
 
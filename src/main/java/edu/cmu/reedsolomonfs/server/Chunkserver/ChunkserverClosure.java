@@ -19,7 +19,7 @@ package edu.cmu.reedsolomonfs.server.Chunkserver;
 import java.util.Map;
 
 import com.alipay.sofa.jraft.Closure;
-import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
 
 import edu.cmu.reedsolomonfs.server.ChunkserverOutter.ValueResponse;
 
@@ -66,7 +66,8 @@ public abstract class ChunkserverClosure implements Closure {
             final String key = entry.getKey();
             final byte[] bytes = entry.getValue();
             if (bytes != null && bytes.length != 0) {
-                builder.putChunkDataMap(key, ByteString.copyFrom(bytes));
+                // chunks were just read from disk and are not reused, so wrap instead of copy
+                builder.putChunkDataMap(key, UnsafeByteOperations.unsafeWrap(bytes));
             }
         }
 
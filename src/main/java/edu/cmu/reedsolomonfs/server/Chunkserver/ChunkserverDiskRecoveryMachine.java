@@ -1,58 +1,91 @@
 package edu.cmu.reedsolomonfs.server.Chunkserver;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
 import edu.cmu.reedsolomon.ReedSolomon;
 import edu.cmu.reedsolomonfs.ConfigVariables;
 
 public class ChunkserverDiskRecoveryMachine {
 
-    private byte[][] chunkserverDisksData;
+    // chunk files as received, not copied; the missing ones are decoded into new buffers
+    private ByteBuffer[] chunkserverDisksData;
     private boolean[] chunkserverDiskPresent;
     private int chunkserverDiskPresentCnt;
     private int chunkserverDiskByteCnt;
-    private ReedSolomon reedSolomon;
+    // shared by all recovery machines so decode matrices are cached across chunk groups
+    private static final ReedSolomon REED_SOLOMON = ReedSolomon.createAdaptive(ConfigVariables.DATA_SHARD_COUNT,
+            ConfigVariables.PARITY_SHARD_COUNT, ConfigVariables.VECTOR_CODING_LOOP);
 
     public ChunkserverDiskRecoveryMachine() {
-        chunkserverDisksData = new byte[ConfigVariables.TOTAL_SHARD_COUNT][];
+        chunkserverDisksData = new ByteBuffer[ConfigVariables.TOTAL_SHARD_COUNT];
         chunkserverDiskPresent = new boolean[ConfigVariables.TOTAL_SHARD_COUNT];
         chunkserverDiskPresentCnt = 0;
         chunkserverDiskByteCnt = 0;
-        reedSolomon = ReedSolomon.create(ConfigVariables.DATA_SHARD_COUNT, ConfigVariables.PARITY_SHARD_COUNT);
+    }
+
+    public static double getDecodeMatrixCacheHitRate() {
+        return REED_SOLOMON.getDecodeMatrixCacheHitRate();
     }
 
     public void addChunkserverDisksData(int serverIdx, byte[] chunkserverDiskData) throws IllegalArgumentException {
+        addChunkserverDisksData(serverIdx, ByteBuffer.wrap(chunkserverDiskData));
+    }
+
+    // the remaining bytes of the buffer are the chunk file; they are only read
+    public void addChunkserverDisksData(int serverIdx, ByteBuffer chunkserverDiskData) throws IllegalArgumentException {
         if (serverIdx < 0 || serverIdx >= ConfigVariables.TOTAL_SHARD_COUNT)
             throw new IllegalArgumentException("Given server index does not exist");
-        if (chunkserverDiskByteCnt != 0 && chunkserverDiskData.length != chunkserverDiskByteCnt)
+        if (chunkserverDiskByteCnt != 0 && chunkserverDiskData.remaining() != chunkserverDiskByteCnt)
             throw new IllegalArgumentException("Number of bytes in different chunkserver disks mismatch");
-        chunkserverDiskByteCnt = chunkserverDiskData.length;
-        chunkserverDisksData[serverIdx] = new byte[chunkserverDiskByteCnt];
-        System.arraycopy(chunkserverDiskData, 0, chunkserverDisksData[serverIdx], 0, chunkserverDiskByteCnt);
+        chunkserverDiskByteCnt = chunkserverDiskData.remaining();
+        chunkserverDisksData[serverIdx] = chunkserverDiskData.slice();
         chunkserverDiskPresent[serverIdx] = true;
         chunkserverDiskPresentCnt++;
     }
 
     public void recoverChunkserverDiskData() throws IllegalArgumentException {
+        boolean[] chunkserverDiskWanted = new boolean[ConfigVariables.TOTAL_SHARD_COUNT];
+        Arrays.fill(chunkserverDiskWanted, true);
+        recoverChunkserverDiskData(chunkserverDiskWanted);
+    }
+
+    // only decodes the missing disks that are wanted, e.g. the servers being rebuilt
+    public void recoverChunkserverDiskData(boolean[] chunkserverDiskWanted) throws IllegalArgumentException {
         if (chunkserverDiskPresentCnt < ConfigVariables.DATA_SHARD_COUNT)
             throw new IllegalArgumentException("There is not enough disk data to perform the recovery");
         else if (chunkserverDiskByteCnt == 0)
             throw new IllegalArgumentException("There is no data to recover");
         else if (chunkserverDiskPresentCnt == ConfigVariables.TOTAL_SHARD_COUNT)
             return;
+        // disks that are missing but not wanted are never written, so they only
+        // hold a read-only view of a present disk to pass the size checks
+        ByteBuffer placeholder = null;
+        for (int i = 0; i < ConfigVariables.TOTAL_SHARD_COUNT && placeholder == null; i++)
+            if (chunkserverDiskPresent[i])
+                placeholder = chunkserverDisksData[i].asReadOnlyBuffer();
         for (int i = 0; i < ConfigVariables.TOTAL_SHARD_COUNT; i++)
-            if (!chunkserverDiskPresent[i])
-                chunkserverDisksData[i] = new byte[chunkserverDiskByteCnt];
-        reedSolomon.decodeMissing(chunkserverDisksData, chunkserverDiskPresent, 0, chunkserverDiskByteCnt);
+            if (!chunkserverDiskPresent[i] && chunkserverDiskWanted[i])
+                chunkserverDisksData[i] = ByteBuffer.allocate(chunkserverDiskByteCnt);
+            else if (!chunkserverDiskPresent[i])
+                chunkserverDisksData[i] = placeholder;
+        REED_SOLOMON.decodeSome(chunkserverDisksData, chunkserverDiskPresent, chunkserverDiskWanted, 0,
+                chunkserverDiskByteCnt);
         for (int i = 0; i < ConfigVariables.TOTAL_SHARD_COUNT; i++)
-            if (!chunkserverDiskPresent[i])
+            if (!chunkserverDiskPresent[i] && chunkserverDiskWanted[i]) {
                 chunkserverDiskPresent[i] = true;
+                chunkserverDiskPresentCnt++;
+            }
     }
 
-    public byte[] retrieveRecoveredDiskData(int serverIdx) throws IllegalArgumentException {
+    public ByteBuffer retrieveRecoveredDiskData(int serverIdx) throws IllegalArgumentException {
         if (serverIdx < 0 || serverIdx >= ConfigVariables.TOTAL_SHARD_COUNT)
             throw new IllegalArgumentException("Given server index does not exist");
-        if (chunkserverDiskPresent[serverIdx])
-            return chunkserverDisksData[serverIdx];
-        recoverChunkserverDiskData();
-        return chunkserverDisksData[serverIdx];
+        if (!chunkserverDiskPresent[serverIdx]) {
+            boolean[] chunkserverDiskWanted = new boolean[ConfigVariables.TOTAL_SHARD_COUNT];
+            chunkserverDiskWanted[serverIdx] = true;
+            recoverChunkserverDiskData(chunkserverDiskWanted);
+        }
+        return chunkserverDisksData[serverIdx].asReadOnlyBuffer();
     }
 }
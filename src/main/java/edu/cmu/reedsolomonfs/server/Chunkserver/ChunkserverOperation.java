@@ -17,6 +17,7 @@
 package edu.cmu.reedsolomonfs.server.Chunkserver;
 
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 
 import edu.cmu.reedsolomonfs.datatype.FileMetadata;
 
@@ -38,13 +39,22 @@ public class ChunkserverOperation implements Serializable {
     public static final byte DELETE_BYTES = 0x05;
 
     public static final byte UPDATE_SECRETKEY = 0x06;
+    /** Commit shards staged through the data path */
+    public static final byte COMMIT_SHARDS = 0x07;
+    /** Overwrite one data block in place and patch the parity of its stripe */
+    public static final byte OVERWRITE_BLOCK = 0x08;
 
     private byte op;
     private long delta;
     private byte[] bytes;
     private byte[][] shards;
+    // Shards decoded by ChunkserverOperationCodec, views of the Raft log entry
+    private transient ByteBuffer[] shardBuffers;
     private FileMetadata metadata;
     private String filePath;
+    private long[] shardChecksums;
+    private int blockIdx;
+    private String writeId;
 
     public static ChunkserverOperation createGet() {
         return new ChunkserverOperation(GET);
@@ -62,6 +72,28 @@ public class ChunkserverOperation implements Serializable {
         return new ChunkserverOperation(WRITE_BYTES, shards, metadata);
     }
 
+    /**
+     * @param writeId id the shards were staged under
+     */
+    public static ChunkserverOperation createCommit(final FileMetadata metadata, final long[] shardChecksums,
+            final String writeId) {
+        ChunkserverOperation op = new ChunkserverOperation(COMMIT_SHARDS, metadata, shardChecksums);
+        op.writeId = writeId;
+        return op;
+    }
+
+    /**
+     * @param shards         indexed by server: the new block for its data
+     *                       server, a parity delta for each parity server, null
+     *                       for servers whose chunk does not change
+     * @param shardChecksums CRC32 of every changed chunk after the overwrite,
+     *                       indexed by server
+     */
+    public static ChunkserverOperation createOverwrite(final String filePath, final int blockIdx,
+            final byte[][] shards, final long[] shardChecksums) {
+        return new ChunkserverOperation(OVERWRITE_BLOCK, filePath, blockIdx, shards, shardChecksums);
+    }
+
     public static ChunkserverOperation createDelete(final String filePath) {
         return new ChunkserverOperation(DELETE_BYTES, filePath);
     }
@@ -95,6 +127,20 @@ public class ChunkserverOperation implements Serializable {
         this.metadata = metadata;
     }
 
+    public ChunkserverOperation(byte op, FileMetadata metadata, long[] shardChecksums) {
+        this.op = op;
+        this.metadata = metadata;
+        this.shardChecksums = shardChecksums;
+    }
+
+    public ChunkserverOperation(byte op, String filePath, int blockIdx, byte[][] shards, long[] shardChecksums) {
+        this.op = op;
+        this.filePath = filePath;
+        this.blockIdx = blockIdx;
+        this.shards = shards;
+        this.shardChecksums = shardChecksums;
+    }
+
     public ChunkserverOperation(byte op, String filePath) {
         this.op = op;
         this.filePath = filePath;
@@ -116,6 +162,29 @@ public class ChunkserverOperation implements Serializable {
         return shards;
     }
 
+    public boolean hasShards() {
+        return shards != null || shardBuffers != null;
+    }
+
+    public int getShardCount() {
+        if (shards != null)
+            return shards.length;
+        return shardBuffers == null ? 0 : shardBuffers.length;
+    }
+
+    /**
+     * Returns a fresh view of one shard, whether the operation was built from
+     * byte arrays or decoded from a log entry. Returns null if the shard is
+     * absent.
+     */
+    public ByteBuffer getShard(int shardIdx) {
+        if (shards != null)
+            return shards[shardIdx] == null ? null : ByteBuffer.wrap(shards[shardIdx]);
+        if (shardBuffers == null || shardBuffers[shardIdx] == null)
+            return null;
+        return shardBuffers[shardIdx].duplicate();
+    }
+
     public FileMetadata getMetadata() {
         return metadata;
     }
@@ -124,6 +193,50 @@ public class ChunkserverOperation implements Serializable {
         return filePath;
     }
 
+    public long[] getShardChecksums() {
+        return shardChecksums;
+    }
+
+    public int getBlockIdx() {
+        return blockIdx;
+    }
+
+    public String getWriteId() {
+        return writeId;
+    }
+
+    void setDelta(long delta) {
+        this.delta = delta;
+    }
+
+    void setBytes(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    void setShardBuffers(ByteBuffer[] shardBuffers) {
+        this.shardBuffers = shardBuffers;
+    }
+
+    void setMetadata(FileMetadata metadata) {
+        this.metadata = metadata;
+    }
+
+    void setFilePath(String filePath) {
+        this.filePath = filePath;
+    }
+
+    void setShardChecksums(long[] shardChecksums) {
+        this.shardChecksums = shardChecksums;
+    }
+
+    void setBlockIdx(int blockIdx) {
+        this.blockIdx = blockIdx;
+    }
+
+    void setWriteId(String writeId) {
+        this.writeId = writeId;
+    }
+
     public boolean isReadOp() {
         return GET == this.op;
     }
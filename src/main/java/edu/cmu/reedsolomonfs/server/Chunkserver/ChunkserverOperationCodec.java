@@ -0,0 +1,292 @@
+package edu.cmu.reedsolomonfs.server.Chunkserver;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.alipay.remoting.exception.CodecException;
+import com.alipay.remoting.serialization.SerializerManager;
+
+import edu.cmu.reedsolomonfs.datatype.FileMetadata;
+import edu.cmu.reedsolomonfs.datatype.Node;
+
+/**
+ * Binary log entry format of ChunkserverOperation
+ *
+ * Layout of a version 1 entry (all numbers are big endian):
+ *
+ * <pre>
+ * magic 'R' 'S' | version | op | field flags
+ * [delta: long]
+ * [bytes: int length, bytes]
+ * [shards: int count, then per shard int length (-1 for null), bytes]
+ * [metadata: string filePath, int fileSize, int fileVersion, int lastChunkIdx,
+ *            int node count, then per node int chunkIdx, int serverId, byte isData, int dataSize]
+ * [filePath: string]
+ * [shardChecksums: int count, longs]
+ * [blockIdx: int]
+ * [writeId: string]
+ * </pre>
+ *
+ * Strings are an int byte length (-1 for null) followed by UTF-8 bytes. Only
+ * fields whose flag is set are present.
+ *
+ * Shard payloads are written once straight into the task buffer, and decoding
+ * hands them out as read-only views of the log entry buffer instead of copying
+ * them. Entries without the magic are log entries written before this format
+ * and are decoded with Hessian2.
+ */
+public final class ChunkserverOperationCodec {
+
+    private static final byte MAGIC_0 = 'R';
+    private static final byte MAGIC_1 = 'S';
+    public static final byte VERSION = 1;
+
+    private static final int HEADER_SIZE = 5;
+
+    private static final byte HAS_DELTA = 0x01;
+    private static final byte HAS_BYTES = 0x02;
+    private static final byte HAS_SHARDS = 0x04;
+    private static final byte HAS_METADATA = 0x08;
+    private static final byte HAS_FILE_PATH = 0x10;
+    private static final byte HAS_SHARD_CHECKSUMS = 0x20;
+    private static final byte HAS_BLOCK_IDX = 0x40;
+    private static final byte HAS_WRITE_ID = (byte) 0x80;
+
+    private ChunkserverOperationCodec() {
+    }
+
+    /**
+     * Encode an operation into a buffer ready to be set as Raft task data
+     */
+    public static ByteBuffer encode(final ChunkserverOperation op) {
+        final byte[] filePath = toBytes(op.getFilePath());
+        final byte[] metadataFilePath = op.getMetadata() == null ? null : toBytes(op.getMetadata().getFilePath());
+        final byte[] writeId = toBytes(op.getWriteId());
+
+        byte flags = 0;
+        int size = HEADER_SIZE;
+        if (op.getDelta() != 0) {
+            flags |= HAS_DELTA;
+            size += Long.BYTES;
+        }
+        if (op.getBytes() != null) {
+            flags |= HAS_BYTES;
+            size += Integer.BYTES + op.getBytes().length;
+        }
+        if (op.hasShards()) {
+            flags |= HAS_SHARDS;
+            size += Integer.BYTES;
+            for (int i = 0; i < op.getShardCount(); i++) {
+                ByteBuffer shard = op.getShard(i);
+                size += Integer.BYTES + (shard == null ? 0 : shard.remaining());
+            }
+        }
+        if (op.getMetadata() != null) {
+            flags |= HAS_METADATA;
+            size += stringSize(metadataFilePath) + 4 * Integer.BYTES;
+            List<Node> nodes = op.getMetadata().getNodes();
+            size += (nodes == null ? 0 : nodes.size()) * (3 * Integer.BYTES + 1);
+        }
+        if (op.getFilePath() != null) {
+            flags |= HAS_FILE_PATH;
+            size += stringSize(filePath);
+        }
+        if (op.getShardChecksums() != null) {
+            flags |= HAS_SHARD_CHECKSUMS;
+            size += Integer.BYTES + op.getShardChecksums().length * Long.BYTES;
+        }
+        if (op.getBlockIdx() != 0) {
+            flags |= HAS_BLOCK_IDX;
+            size += Integer.BYTES;
+        }
+        if (op.getWriteId() != null) {
+            flags |= HAS_WRITE_ID;
+            size += stringSize(writeId);
+        }
+
+        final ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.put(MAGIC_0).put(MAGIC_1).put(VERSION).put(op.getOp()).put(flags);
+        if ((flags & HAS_DELTA) != 0) {
+            buf.putLong(op.getDelta());
+        }
+        if ((flags & HAS_BYTES) != 0) {
+            buf.putInt(op.getBytes().length).put(op.getBytes());
+        }
+        if ((flags & HAS_SHARDS) != 0) {
+            buf.putInt(op.getShardCount());
+            for (int i = 0; i < op.getShardCount(); i++) {
+                ByteBuffer shard = op.getShard(i);
+                if (shard == null) {
+                    buf.putInt(-1);
+                } else {
+                    buf.putInt(shard.remaining()).put(shard);
+                }
+            }
+        }
+        if ((flags & HAS_METADATA) != 0) {
+            FileMetadata metadata = op.getMetadata();
+            putString(buf, metadataFilePath);
+            buf.putInt(metadata.getFileSize());
+            buf.putInt(metadata.getFileVersion());
+            buf.putInt(metadata.getLastChunkIdx());
+            List<Node> nodes = metadata.getNodes();
+            buf.putInt(nodes == null ? -1 : nodes.size());
+            if (nodes != null) {
+                for (Node node : nodes) {
+                    buf.putInt(node.getChunkIdx());
+                    buf.putInt(node.getServerId());
+                    buf.put(node.getIsData() ? (byte) 1 : (byte) 0);
+                    buf.putInt(node.getDataSize());
+                }
+            }
+        }
+        if ((flags & HAS_FILE_PATH) != 0) {
+            putString(buf, filePath);
+        }
+        if ((flags & HAS_SHARD_CHECKSUMS) != 0) {
+            buf.putInt(op.getShardChecksums().length);
+            for (long checksum : op.getShardChecksums()) {
+                buf.putLong(checksum);
+            }
+        }
+        if ((flags & HAS_BLOCK_IDX) != 0) {
+            buf.putInt(op.getBlockIdx());
+        }
+        if ((flags & HAS_WRITE_ID) != 0) {
+            putString(buf, writeId);
+        }
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Decode a log entry. Shards of the returned operation are views of
+     * {@code data}, so the buffer must not be reused while the operation is
+     * being applied.
+     */
+    public static ChunkserverOperation decode(final ByteBuffer data) throws CodecException {
+        final ByteBuffer buf = data.duplicate();
+        if (buf.remaining() < HEADER_SIZE || buf.get(buf.position()) != MAGIC_0
+                || buf.get(buf.position() + 1) != MAGIC_1) {
+            return decodeHessian2(buf);
+        }
+        buf.position(buf.position() + 2);
+        final byte version = buf.get();
+        if (version != VERSION) {
+            throw new CodecException("Unsupported ChunkserverOperation log entry version " + version);
+        }
+        try {
+            final ChunkserverOperation op = new ChunkserverOperation(buf.get());
+            final byte flags = buf.get();
+            if ((flags & HAS_DELTA) != 0) {
+                op.setDelta(buf.getLong());
+            }
+            if ((flags & HAS_BYTES) != 0) {
+                byte[] bytes = new byte[buf.getInt()];
+                buf.get(bytes);
+                op.setBytes(bytes);
+            }
+            if ((flags & HAS_SHARDS) != 0) {
+                ByteBuffer[] shards = new ByteBuffer[buf.getInt()];
+                for (int i = 0; i < shards.length; i++) {
+                    int length = buf.getInt();
+                    if (length < 0) {
+                        continue;
+                    }
+                    ByteBuffer shard = buf.slice();
+                    shard.limit(length);
+                    shards[i] = shard.asReadOnlyBuffer();
+                    buf.position(buf.position() + length);
+                }
+                op.setShardBuffers(shards);
+            }
+            if ((flags & HAS_METADATA) != 0) {
+                String filePath = getString(buf);
+                int fileSize = buf.getInt();
+                int fileVersion = buf.getInt();
+                int lastChunkIdx = buf.getInt();
+                int nodeCnt = buf.getInt();
+                List<Node> nodes = null;
+                if (nodeCnt >= 0) {
+                    nodes = new ArrayList<>(nodeCnt);
+                    for (int i = 0; i < nodeCnt; i++) {
+                        int chunkIdx = buf.getInt();
+                        int serverId = buf.getInt();
+                        boolean isData = buf.get() != 0;
+                        int dataSize = buf.getInt();
+                        nodes.add(new Node(chunkIdx, serverId, isData, dataSize));
+                    }
+                }
+                op.setMetadata(new FileMetadata(filePath, fileSize, fileVersion, nodes, lastChunkIdx));
+            }
+            if ((flags & HAS_FILE_PATH) != 0) {
+                op.setFilePath(getString(buf));
+            }
+            if ((flags & HAS_SHARD_CHECKSUMS) != 0) {
+                long[] shardChecksums = new long[buf.getInt()];
+                for (int i = 0; i < shardChecksums.length; i++) {
+                    shardChecksums[i] = buf.getLong();
+                }
+                op.setShardChecksums(shardChecksums);
+            }
+            if ((flags & HAS_BLOCK_IDX) != 0) {
+                op.setBlockIdx(buf.getInt());
+            }
+            if ((flags & HAS_WRITE_ID) != 0) {
+                op.setWriteId(getString(buf));
+            }
+            return op;
+        } catch (RuntimeException e) {
+            throw new CodecException("Malformed ChunkserverOperation log entry", e);
+        }
+    }
+
+    private static ChunkserverOperation decodeHessian2(final ByteBuffer buf) throws CodecException {
+        final byte[] bytes;
+        if (buf.hasArray() && buf.arrayOffset() == 0 && buf.position() == 0 && buf.remaining() == buf.array().length) {
+            bytes = buf.array();
+        } else {
+            bytes = new byte[buf.remaining()];
+            buf.get(bytes);
+        }
+        return SerializerManager.getSerializer(SerializerManager.Hessian2).deserialize(bytes,
+                ChunkserverOperation.class.getName());
+    }
+
+    private static byte[] toBytes(final String s) {
+        return s == null ? null : s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int stringSize(final byte[] s) {
+        return Integer.BYTES + (s == null ? 0 : s.length);
+    }
+
+    private static void putString(final ByteBuffer buf, final byte[] s) {
+        if (s == null) {
+            buf.putInt(-1);
+        } else {
+            buf.putInt(s.length).put(s);
+        }
+    }
+
+    private static String getString(final ByteBuffer buf) {
+        int length = buf.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > buf.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        if (buf.hasArray()) {
+            String s = new String(buf.array(), buf.arrayOffset() + buf.position(), length, StandardCharsets.UTF_8);
+            buf.position(buf.position() + length);
+            return s;
+        }
+        byte[] bytes = new byte[length];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
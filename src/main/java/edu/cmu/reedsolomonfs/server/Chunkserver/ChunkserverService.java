@@ -43,6 +43,25 @@ public interface ChunkserverService {
      */
     void write(final byte[][] shards, final FileMetadata metadata, final ChunkserverClosure closure);
 
+    /**
+     * Stage the shard of this chunkserver sent by client through the data path
+     */
+    void stage(final String filePath, final String writeId, final long shardOffset, final byte[] payload,
+            final ChunkserverClosure closure);
+
+    /**
+     * Commit staged shards to cluster through a small Raft record
+     */
+    void commit(final FileMetadata metadata, final long[] shardChecksums, final String writeId,
+            final ChunkserverClosure closure);
+
+    /**
+     * Overwrite one data block in place, patching only its data chunk and the
+     * parity chunks of its stripe
+     */
+    void overwrite(final String filePath, final int blockIdx, final byte[][] shards, final long[] shardChecksums,
+            final ChunkserverClosure closure);
+
     /**
      * Delete data from cluster
      */
@@ -53,5 +72,11 @@ public interface ChunkserverService {
      */
     void read(String filePath, final ChunkserverClosure closure);
 
+    /**
+     * Read the chunks of the stripes covering length bytes at offset of a file,
+     * or every chunk if length is 0
+     */
+    void read(String filePath, int offset, int length, final ChunkserverClosure closure);
+
     void updateSecretKey(String secretKey, final ChunkserverClosure closure);
 }
\ No newline at end of file
@@ -16,7 +16,7 @@
  */
 package edu.cmu.reedsolomonfs.server.Chunkserver;
 
-import java.nio.ByteBuffer;
+import java.io.IOException;
 import java.util.Map;
 import java.util.concurrent.Executor;
 
@@ -24,8 +24,6 @@ import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.alipay.remoting.exception.CodecException;
-import com.alipay.remoting.serialization.SerializerManager;
 import com.alipay.sofa.jraft.Status;
 import com.alipay.sofa.jraft.closure.ReadIndexClosure;
 import com.alipay.sofa.jraft.entity.Task;
@@ -109,6 +107,35 @@ public class ChunkserverServiceImpl implements ChunkserverService {
         applyOperation(ChunkserverOperation.createWrite(shards, metadata), closure);
     }
 
+    @Override
+    public void stage(final String filePath, final String writeId, final long shardOffset, final byte[] payload,
+            final ChunkserverClosure closure) {
+        // staging is local to this chunkserver, it only becomes visible once the
+        // commit record is applied through Raft
+        try {
+            this.counterServer.getFsm().stageShard(filePath, writeId, shardOffset, payload);
+            closure.success(payload.length);
+            closure.run(Status.OK());
+        } catch (IOException e) {
+            String errorMsg = "Fail to stage shard of " + filePath;
+            LOG.error(errorMsg, e);
+            closure.failure(errorMsg, StringUtils.EMPTY);
+            closure.run(new Status(RaftError.EIO, errorMsg));
+        }
+    }
+
+    @Override
+    public void commit(final FileMetadata metadata, final long[] shardChecksums, final String writeId,
+            final ChunkserverClosure closure) {
+        applyOperation(ChunkserverOperation.createCommit(metadata, shardChecksums, writeId), closure);
+    }
+
+    @Override
+    public void overwrite(final String filePath, final int blockIdx, final byte[][] shards,
+            final long[] shardChecksums, final ChunkserverClosure closure) {
+        applyOperation(ChunkserverOperation.createOverwrite(filePath, blockIdx, shards, shardChecksums), closure);
+    }
+
     @Override
     public void delete(final String filePath, final ChunkserverClosure closure) {
         applyOperation(ChunkserverOperation.createDelete(filePath), closure);
@@ -116,8 +143,13 @@ public class ChunkserverServiceImpl implements ChunkserverService {
 
     @Override
     public void read(String filePath, final ChunkserverClosure closure) {
+        read(filePath, 0, 0, closure);
+    }
+
+    @Override
+    public void read(String filePath, int offset, int length, final ChunkserverClosure closure) {
         //System.out.println("read filePath: " + filePath);
-        Map<String, byte[]> fileData = this.counterServer.getFsm().readFromServerDisk(filePath);
+        Map<String, byte[]> fileData = this.counterServer.getFsm().readFromServerDisk(filePath, offset, length);
         System.out.println("fileData: " + fileData);
         closure.successWithRead(fileData);
         closure.run(Status.OK());
@@ -138,19 +170,11 @@ public class ChunkserverServiceImpl implements ChunkserverService {
             return;
         }
 
-        try {
-            closure.setCounterOperation(op);
-            final Task task = new Task();
-            task.setData(ByteBuffer.wrap(SerializerManager.getSerializer(SerializerManager.Hessian2).serialize(op)));
-            task.setDone(closure);
-            this.counterServer.getNode().apply(task);
-        } catch (CodecException e) {
-            System.out.println("CodecException");
-            String errorMsg = "Fail to encode CounterOperation";
-            LOG.error(errorMsg, e);
-            closure.failure(errorMsg, StringUtils.EMPTY);
-            closure.run(new Status(RaftError.EINTERNAL, errorMsg));
-        }
+        closure.setCounterOperation(op);
+        final Task task = new Task();
+        task.setData(ChunkserverOperationCodec.encode(op));
+        task.setDone(closure);
+        this.counterServer.getNode().apply(task);
     }
 
     private void handlerNotLeaderError(final ChunkserverClosure closure) {
@@ -22,34 +22,52 @@ import static edu.cmu.reedsolomonfs.server.Chunkserver.ChunkserverOperation.READ
 import static edu.cmu.reedsolomonfs.server.Chunkserver.ChunkserverOperation.WRITE_BYTES;
 import static edu.cmu.reedsolomonfs.server.Chunkserver.ChunkserverOperation.DELETE_BYTES;
 import static edu.cmu.reedsolomonfs.server.Chunkserver.ChunkserverOperation.UPDATE_SECRETKEY;
+import static edu.cmu.reedsolomonfs.server.Chunkserver.ChunkserverOperation.COMMIT_SHARDS;
+import static edu.cmu.reedsolomonfs.server.Chunkserver.ChunkserverOperation.OVERWRITE_BLOCK;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 import java.util.stream.Stream;
+import java.util.zip.CRC32;
 
 import com.alipay.sofa.jraft.util.NamedThreadFactory;
 import com.alipay.sofa.jraft.util.ThreadPoolUtil;
 
+import edu.cmu.reedsolomon.ReedSolomon;
+import edu.cmu.reedsolomonfs.ConfigVariables;
 import edu.cmu.reedsolomonfs.datatype.FileMetadata;
 import edu.cmu.reedsolomonfs.datatype.FileMetadataHelper;
 import edu.cmu.reedsolomonfs.datatype.NodeHelper;
 
+import com.codahale.metrics.MetricRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import com.alipay.remoting.exception.CodecException;
-import com.alipay.remoting.serialization.SerializerManager;
 import com.alipay.sofa.jraft.Closure;
 import com.alipay.sofa.jraft.Iterator;
 import com.alipay.sofa.jraft.Status;
@@ -66,41 +84,57 @@ public class ChunkserverStateMachine extends StateMachineAdapter {
 
     private final int serverIdx;
     private final String serverDiskPath;
-    // Create Map of stored chunks in memory: filename -> list of chunk filepaths
-    private Map<String, List<String>> storedFileNameToChunks;
-    private String secretKey;
+    private final String serverStagingPath;
+    // chunks this server stores of every file
+    private final ChunkMetadataStore chunkMetadata;
+    // chunk writes run on the disk's own thread, not on the Raft apply thread
+    private final MetricRegistry diskMetrics = new MetricRegistry();
+    private final DiskIoExecutor diskExecutor;
+    private final ChunkSyncer chunkSyncer;
+    // chunks of this server, by chunk file name
+    private final ChunkStore chunkStore;
+    // chunks commits left out, by file path, until the master rebuilds them
+    private final Map<String, Set<String>> missingChunks = new ConcurrentHashMap<>();
+    // keys tokens are signed with; a token of the key before the current one
+    // stays valid, so writes given one just before a rotation still go through
+    private volatile String secretKey;
+    private volatile String previousSecretKey;
 
     public ChunkserverStateMachine(int serverIdx) {
+        this(serverIdx, "./ClientClusterCommTestFiles/");
+    }
+
+    /**
+     * @param directory directory holding the disks, staged shards and chunk
+     *                  metadata of the chunkservers, ending with a separator
+     */
+    ChunkserverStateMachine(int serverIdx, String directory) {
         secretKey = "secretKey";
         this.serverIdx = serverIdx;
-        serverDiskPath = "./ClientClusterCommTestFiles/Disks/chunkserver-" + serverIdx + "/";
-        storedFileNameToChunks = new HashMap<String, List<String>>();
+        serverDiskPath = directory + "Disks/chunkserver-" + serverIdx + "/";
+        serverStagingPath = directory + "Staging/chunkserver-" + serverIdx + "/";
         System.out.println("ChunkserverStateMachine created for serverIdx " + serverIdx);
         System.out.println("serverDiskPath is " + serverDiskPath);
-        // iterate through all files in serverDiskPath
-        // TBD: the file directory data structure can be improved
-        Path start = Paths.get(serverDiskPath);
-        try (Stream<Path> stream = Files.walk(start)) {
-            stream.filter(Files::isRegularFile).forEach(path -> {
-                String fileNameWithSubDir = start.relativize(path).toString();
-                int separatorIndex = fileNameWithSubDir.lastIndexOf('.');
-                if (separatorIndex > 0) {
-                    String originalFileName = fileNameWithSubDir.substring(0, separatorIndex);
-                    System.out.println("originalFileName is " + originalFileName);
-                    System.out.println("fileNameWithSubDir is " + fileNameWithSubDir);
-                    storedFileNameToChunks.computeIfAbsent("/" + originalFileName, k -> new ArrayList<>())
-                            .add(fileNameWithSubDir);
-                }
-
-            });
+        try {
+            chunkStore = new ChunkStore(Paths.get(serverDiskPath));
+            chunkMetadata = ChunkMetadataStore.open(Paths.get(directory + "ChunkMetadata/chunkserver-" + serverIdx));
+            // add the chunks in the chunk store the metadata is missing
+            chunkMetadata.reconcile(chunkStore.chunkNames());
         } catch (IOException e) {
-            e.printStackTrace();
+            throw new IllegalStateException("Fail to open the chunk store of server " + serverIdx, e);
         }
+        diskExecutor = new DiskIoExecutor("chunkserver-" + serverIdx + ".disk",
+                ConfigVariables.CHUNK_IO_QUEUE_CAPACITY, diskMetrics);
+        chunkSyncer = new ChunkSyncer("chunkserver-" + serverIdx + ".disk", chunkStore,
+                ChunkSyncer.Mode.valueOf(ConfigVariables.CHUNK_SYNC_MODE),
+                ConfigVariables.CHUNK_SYNC_WINDOW_MILLIS, ConfigVariables.CHUNK_SYNC_WINDOW_BYTES, diskMetrics);
         System.out.println("server " + serverIdx + " initialize printStoredFileNameToChunks:");
         printStoredFileNameToChunks();
     }
 
     private static final Logger LOG = LoggerFactory.getLogger(ChunkserverStateMachine.class);
+    // write ids name staged files, so they must not reach out of the staging directory
+    private static final Pattern WRITE_ID_PATTERN = Pattern.compile("[A-Za-z0-9-]+");
     private static ThreadPoolExecutor executor = ThreadPoolUtil
             .newBuilder()
             .poolName("JRAFT_TEST_EXECUTOR")
@@ -112,6 +146,19 @@ public class ChunkserverStateMachine extends StateMachineAdapter {
             .threadFactory(
                     new NamedThreadFactory("JRaft-Test-Executor-", true))
             .build();
+    // completes the closures of persisted writes, one thread so the master is
+    // acked in log order
+    private static ThreadPoolExecutor closureExecutor = ThreadPoolUtil
+            .newBuilder()
+            .poolName("CHUNKSERVER_CLOSURE_EXECUTOR")
+            .enableMetric(true)
+            .coreThreads(1)
+            .maximumThreads(1)
+            .keepAliveSeconds(60L)
+            .workQueue(new LinkedBlockingQueue<>())
+            .threadFactory(
+                    new NamedThreadFactory("Chunkserver-Closure-Executor-", true))
+            .build();
     /**
      * Counter value
      */
@@ -133,22 +180,35 @@ public class ChunkserverStateMachine extends StateMachineAdapter {
         return this.leaderTerm.get() > 0;
     }
 
-    public void updateStoredFileNameToChunks(String fileName) {
-        System.out.println("server " + serverIdx + " updateStoredFileNameToChunks:");
-        System.out.println("updateStoredFileNameToChunks with fileName " + fileName);
-        // update storedFileNameToChunks map
-        int separatorIndex = fileName.lastIndexOf('.');
-        if (separatorIndex > 0) {
-            String originalFileName = fileName.substring(0, separatorIndex);
-            storedFileNameToChunks.computeIfAbsent(originalFileName, k -> new ArrayList<>()).add(fileName);
-        }
-        System.out.println("storedFileNameToChunks size is " + storedFileNameToChunks.size());
-        for (Map.Entry<String, List<String>> entry : storedFileNameToChunks.entrySet()) {
-            System.out.println("File: " + entry.getKey() + ", Chunks: " + entry.getValue());
-        }
+    /**
+     * @return queue depth, write latency, fsync latency and sync batch sizes
+     *         of this server's disk
+     */
+    public MetricRegistry getDiskMetrics() {
+        return diskMetrics;
+    }
+
+    /**
+     * Queue a write to this server's chunks behind the writes of earlier log
+     * entries
+     *
+     * @return a future completing once the write is durable as
+     *         CHUNK_SYNC_MODE has it
+     */
+    private CompletableFuture<Void> persist(DiskIoExecutor.DiskWrite write) {
+        // composed on the disk's thread right after the write, so the syncer
+        // sees the writes in order
+        return diskExecutor.submit(write).thenCompose(ignored -> chunkSyncer.written());
+    }
+
+    public void updateStoredFileNameToChunks(String fileName) throws IOException {
+        System.out.println("server " + serverIdx + " updateStoredFileNameToChunks with fileName " + fileName);
+        if (!chunkMetadata.addChunk(fileName))
+            throw new IOException("Chunk file name " + fileName + " has no version and chunk index");
     }
 
     private void printStoredFileNameToChunks() {
+        Map<String, List<String>> storedFileNameToChunks = getStoredFileNameToChunks();
         System.out.println("server " + serverIdx + " storedFileNameToChunks:");
         System.out.println("storedFileNameToChunks size is " + storedFileNameToChunks.size());
         for (Map.Entry<String, List<String>> entry : storedFileNameToChunks.entrySet()) {
@@ -156,8 +216,30 @@ public class ChunkserverStateMachine extends StateMachineAdapter {
         }
     }
 
+    /**
+     * @return a copy of the chunk file names of every file this server stores
+     */
     public Map<String, List<String>> getStoredFileNameToChunks() {
-        return storedFileNameToChunks;
+        try {
+            return chunkMetadata.getFileNameToChunks();
+        } catch (IOException e) {
+            LOG.error("Fail to list the chunk metadata of server {}", serverIdx, e);
+            return new HashMap<String, List<String>>();
+        }
+    }
+
+    /**
+     * @return the chunk file names of the newest version of a file with chunk
+     *         indexes in [fromChunkIdx, toChunkIdx], by chunk index, empty if
+     *         this server has none
+     */
+    private TreeMap<Integer, String> getStoredChunks(String filePath, int fromChunkIdx, int toChunkIdx) {
+        try {
+            return chunkMetadata.getChunks(filePath, fromChunkIdx, toChunkIdx);
+        } catch (IOException e) {
+            LOG.error("Fail to read the chunk metadata of {} on server {}", filePath, serverIdx, e);
+            return new TreeMap<Integer, String>();
+        }
     }
 
     /**
@@ -175,21 +257,45 @@ public class ChunkserverStateMachine extends StateMachineAdapter {
     }
 
     public Map<String, byte[]> readFromServerDisk(String filePath) {
+        return readFromServerDisk(filePath, 0, 0);
+    }
+
+    /**
+     * Read the chunks of the newest version of a file in the stripes covering
+     * a byte range
+     *
+     * @param offset first byte of the range
+     * @param length number of bytes in the range, 0 for the whole file
+     * @return chunk contents by chunk file name
+     */
+    public Map<String, byte[]> readFromServerDisk(String filePath, int offset, int length) {
         System.out.println("readFromServerDisk line 181");
-        // get chunks file path from storedFileNameToChunks
-        List<String> chunkFilePaths = storedFileNameToChunks.get(filePath);
-        if (chunkFilePaths == null) {
+        // get chunks file path from the chunk metadata, in chunk order, only
+        // those in the stripes covering the range
+        int fromChunkIdx = 0;
+        int toChunkIdx = Integer.MAX_VALUE;
+        if (length > 0) {
+            fromChunkIdx = FileMetadataHelper.stripeIdx(offset) * ConfigVariables.TOTAL_SHARD_COUNT;
+            toChunkIdx = (FileMetadataHelper.stripeIdx(offset + length - 1) + 1) * ConfigVariables.TOTAL_SHARD_COUNT
+                    - 1;
+        }
+        TreeMap<Integer, String> chunkFilePaths = getStoredChunks(filePath, fromChunkIdx, toChunkIdx);
+        if (chunkFilePaths.isEmpty()) {
             System.out.println("chunk file paths does not exist.");
             return new HashMap<String, byte[]>();
         }    
         // read chunks from disk
         Map<String, byte[]> chunks = new HashMap<String, byte[]>();
-        for (int i = 0; i < chunkFilePaths.size(); i++) {
-            String chunkFilePath = serverDiskPath + chunkFilePaths.get(i);
+        for (Map.Entry<Integer, String> chunkFilePath : chunkFilePaths.entrySet()) {
+            String chunkFileName = chunkFilePath.getValue();
             try {
-                System.out.println("To read " + chunkFilePath);
-                byte[] chunk = Files.readAllBytes(Paths.get(chunkFilePath));
-                chunks.put(chunkFilePaths.get(i), chunk);
+                byte[] chunk = chunkStore.get(chunkFileName);
+                if (chunk == null) {
+                    LOG.warn("Chunk {} of {} is not in the chunk store of server {}", chunkFileName, filePath,
+                            serverIdx);
+                    continue;
+                }
+                chunks.put(chunkFileName, chunk);
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -198,35 +304,352 @@ public class ChunkserverStateMachine extends StateMachineAdapter {
         return chunks;
     }
 
-    public void deleteFile(String filePath) {
-        // get chunks file path from storedFileNameToChunks
+    public void deleteFile(String filePath) throws IOException {
         System.out.println("filePath is " + filePath);
-        // print out storedFileNameToChunks map
-        for (Map.Entry<String, List<String>> entry : storedFileNameToChunks.entrySet()) {
-            System.out.println("File: " + entry.getKey() + ", Chunks: " + entry.getValue());
-        }
-        System.out.println("reach delete file 209");
-        List<String> chunkFilePaths = storedFileNameToChunks.get(filePath);
-        if (chunkFilePaths == null) {
+        missingChunks.remove(filePath);
+        // remove the file from the chunk metadata, then its chunks
+        List<String> chunkFilePaths = chunkMetadata.removeFile(filePath);
+        if (chunkFilePaths.isEmpty()) {
             System.out.println("chunk file paths to delete does not exist.");
             return;
         }
-        // delete filepath from storedFileNameToChunks
-        storedFileNameToChunks.remove(filePath);
         for (int i = 0; i < chunkFilePaths.size(); i++) {
-            String chunkFilePath = serverDiskPath + chunkFilePaths.get(i);
-            try {
-                System.out.println("To delete " + chunkFilePath);
-                Path path = Paths.get(chunkFilePath);
-                // Delete the file using Files.delete() method
-                Files.delete(path);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+            System.out.println("To delete " + chunkFilePaths.get(i));
+            chunkStore.delete(chunkFilePaths.get(i));
         }
         System.out.println("deleteFromServerDisk line 227");
     }
 
+    /**
+     * Split one shard into chunks and append them to the chunk store together
+     *
+     * @param metadata metadata of the file the shard belongs to
+     * @param shard    shard of this chunkserver
+     */
+    private void writeShardToDisk(FileMetadata metadata, ByteBuffer shard) throws IOException {
+        final ByteBuffer[] chunks = NodeHelper.splitShardToChunks(shard);
+        List<String> chunkFilePaths = FileMetadataHelper.retrieveFileChunkPaths(metadata, serverIdx);
+        String[] chunkFileNames = chunkFilePaths.subList(0, chunks.length).toArray(new String[0]);
+        chunkStore.put(chunkFileNames, chunks);
+        for (String chunkFileName : chunkFileNames)
+            updateStoredFileNameToChunks(chunkFileName);
+        missingChunks.remove(metadata.getFilePath());
+    }
+
+    /**
+     * @return a chunk of this server, or null if it does not have it
+     */
+    public byte[] readChunk(String chunkFileName) throws IOException {
+        return chunkStore.get(chunkFileName);
+    }
+
+    /**
+     * Store a chunk rebuilt by the master for this server, in order with the
+     * writes of the log, and wait until it is durable
+     */
+    public void writeRecoveredChunk(String chunkFileName, ByteBuffer chunk) throws IOException {
+        try {
+            persist(() -> {
+                chunkStore.put(chunkFileName, chunk);
+                updateStoredFileNameToChunks(chunkFileName);
+                int versionStart = chunkFileName.lastIndexOf('.');
+                if (versionStart > 0)
+                    missingChunks.computeIfPresent(chunkFileName.substring(0, versionStart),
+                            (filePath, fileChunks) -> fileChunks.remove(chunkFileName) && fileChunks.isEmpty()
+                                    ? null
+                                    : fileChunks);
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted writing chunk " + chunkFileName);
+        } catch (ExecutionException e) {
+            throw new IOException("Fail to write chunk " + chunkFileName, e.getCause());
+        }
+    }
+
+    /**
+     * @param writeId id of the write the shard is staged for, empty for the
+     *                commit records logged before writes had one
+     */
+    private Path getStagedShardPath(String filePath, String writeId) {
+        if (writeId == null || writeId.isEmpty())
+            return Paths.get(serverStagingPath + filePath + ".staged");
+        return Paths.get(serverStagingPath + filePath + "." + writeId + ".staged");
+    }
+
+    /**
+     * Stage (part of) the shard of a file sent to this chunkserver through the
+     * data path. Staged shards are not visible to reads until they are committed.
+     *
+     * @param filePath    path of the file being written
+     * @param writeId     id of the write, which its commit carries, so writes of
+     *                    the same file are staged apart
+     * @param shardOffset byte offset of payload inside the shard, 0 starts a new
+     *                    staged shard
+     * @param payload     shard bytes
+     */
+    public void stageShard(String filePath, String writeId, long shardOffset, byte[] payload) throws IOException {
+        if (writeId == null || !WRITE_ID_PATTERN.matcher(writeId).matches())
+            throw new IOException("Invalid write id " + writeId + " staging " + filePath);
+        Path stagedShardPath = getStagedShardPath(filePath, writeId);
+        Files.createDirectories(stagedShardPath.getParent());
+        try (FileChannel channel = FileChannel.open(stagedShardPath, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE)) {
+            if (shardOffset == 0)
+                channel.truncate(0);
+            ByteBuffer buffer = ByteBuffer.wrap(payload);
+            long position = shardOffset;
+            while (buffer.hasRemaining())
+                position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Make the shard staged for a write visible by writing it out as chunks.
+     *
+     * If the staged shard is missing or does not match the checksum in the
+     * commit record, this server drops its chunks of the file, so reads decode
+     * them from the other servers, and lists them as missing; the heartbeat
+     * reports them and the master rebuilds them. A commit replayed after its
+     * staged shard was written out finds the shard in the chunk store already.
+     *
+     * @param metadata       metadata of the committed file
+     * @param shardChecksums CRC32 of every shard of the file, indexed by server
+     * @param writeId        id the shard was staged under
+     */
+    void commitStagedShard(FileMetadata metadata, long[] shardChecksums, String writeId)
+            throws IOException {
+        String filePath = metadata.getFilePath();
+        Path stagedShardPath = getStagedShardPath(filePath, writeId);
+        if (shardChecksums == null || shardChecksums.length <= serverIdx)
+            throw new IOException("Commit of " + filePath + " has no checksum for server " + serverIdx);
+        byte[] shard;
+        try {
+            shard = Files.readAllBytes(stagedShardPath);
+        } catch (NoSuchFileException e) {
+            shard = null;
+        }
+        CRC32 crc = new CRC32();
+        if (shard != null)
+            crc.update(shard);
+        if (shard != null && crc.getValue() == shardChecksums[serverIdx]) {
+            writeShardToDisk(metadata, ByteBuffer.wrap(shard));
+            deleteStagedShard(stagedShardPath);
+            return;
+        }
+        if (shard == null) {
+            if (hasShard(metadata, shardChecksums[serverIdx]))
+                return;
+            LOG.error("No staged shard of {} to commit on server {}", filePath, serverIdx);
+        } else {
+            LOG.error("Checksum mismatch of staged shard of {} on server {}", filePath, serverIdx);
+            deleteStagedShard(stagedShardPath);
+        }
+        deleteFile(filePath);
+        Set<String> fileChunks = ConcurrentHashMap.newKeySet();
+        fileChunks.addAll(FileMetadataHelper.retrieveFileChunkPaths(metadata, serverIdx));
+        if (!fileChunks.isEmpty())
+            missingChunks.put(filePath, fileChunks);
+    }
+
+    /**
+     * Delete a staged shard that is no longer needed; one that stays behind is
+     * dropped by cleanStagedShards
+     */
+    private void deleteStagedShard(Path stagedShardPath) {
+        try {
+            Files.deleteIfExists(stagedShardPath);
+        } catch (IOException e) {
+            LOG.warn("Fail to delete staged shard {} of server {}", stagedShardPath, serverIdx, e);
+        }
+    }
+
+    /**
+     * @return whether the chunk store holds this server's shard of the file
+     *         with this checksum
+     */
+    private boolean hasShard(FileMetadata metadata, long shardChecksum) throws IOException {
+        CRC32 crc = new CRC32();
+        for (String chunkFileName : FileMetadataHelper.retrieveFileChunkPaths(metadata, serverIdx)) {
+            byte[] chunk = chunkStore.get(chunkFileName);
+            if (chunk == null)
+                return false;
+            crc.update(chunk);
+        }
+        return crc.getValue() == shardChecksum;
+    }
+
+    /**
+     * @return the chunks commits left out on this server that the master has
+     *         not rebuilt yet
+     */
+    public List<String> getMissingChunks() {
+        List<String> chunkFileNames = new ArrayList<>();
+        for (Set<String> fileChunks : missingChunks.values())
+            chunkFileNames.addAll(fileChunks);
+        return chunkFileNames;
+    }
+
+    /**
+     * Drop the staged shards whose commit has not come within
+     * STAGED_SHARD_TIMEOUT, left by writes that were abandoned
+     */
+    public void cleanStagedShards() {
+        Path stagingDir = Paths.get(serverStagingPath);
+        if (!Files.isDirectory(stagingDir))
+            return;
+        long oldest = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(ConfigVariables.STAGED_SHARD_TIMEOUT);
+        try (Stream<Path> paths = Files.walk(stagingDir)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                if (!path.getFileName().toString().endsWith(".staged") || !Files.isRegularFile(path)
+                        || Files.getLastModifiedTime(path).toMillis() >= oldest)
+                    continue;
+                LOG.info("Dropping staged shard {} of server {} that was never committed", path, serverIdx);
+                Files.deleteIfExists(path);
+            }
+        } catch (IOException | UncheckedIOException e) {
+            LOG.warn("Fail to clean the staged shards of server {}", serverIdx, e);
+        }
+    }
+
+    /**
+     * Patch the chunk this server stores in the stripe of an overwritten block:
+     * the data chunk is replaced by the new block and a parity chunk gets its
+     * parity delta XORed in. No other chunk of the stripe is read. A chunk that
+     * already has the checksum of its new content is left alone, so replaying
+     * the log entry does not apply a delta twice.
+     *
+     * A chunk that is missing, or that does not get its checksum from the
+     * overwrite because it was not what the client based it on, is dropped
+     * and listed as missing for the master to rebuild from the other servers,
+     * which did apply the overwrite. Only a malformed overwrite fails.
+     *
+     * @param filePath       path of the overwritten file
+     * @param blockIdx       index of the overwritten block in the file
+     * @param shard          new block or parity delta for this server, null if
+     *                       its chunk does not change
+     * @param shardChecksums CRC32 of every changed chunk after the overwrite,
+     *                       indexed by server
+     */
+    void overwriteBlock(String filePath, int blockIdx, ByteBuffer shard, long[] shardChecksums)
+            throws IOException {
+        if (shard == null)
+            return;
+        int chunkIdx = chunkIdxOfBlock(blockIdx);
+        if (shard.remaining() != ConfigVariables.BLOCK_SIZE || shardChecksums == null
+                || shardChecksums.length <= serverIdx)
+            throw new IOException("Malformed overwrite of chunk " + chunkIdx + " of " + filePath + " on server "
+                    + serverIdx);
+        String chunkFileName = chunkMetadata.getChunks(filePath).get(chunkIdx);
+        if (chunkFileName == null) {
+            // a commit that left the file out of this server listed it missing
+            LOG.error("No chunk {} of {} to overwrite on server {}", chunkIdx, filePath, serverIdx);
+            return;
+        }
+        byte[] chunk = chunkStore.get(chunkFileName);
+        if (chunk == null || chunk.length != shard.remaining()) {
+            LOG.error("Chunk {} of {} is missing from the chunk store of server {}", chunkIdx, filePath,
+                    serverIdx);
+            dropChunk(filePath, chunkFileName);
+            return;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(chunk);
+        if (crc.getValue() == shardChecksums[serverIdx])
+            return;
+        if (serverIdx < ConfigVariables.DATA_SHARD_COUNT) {
+            shard.get(chunk);
+        } else {
+            byte[] parityDelta = new byte[chunk.length];
+            shard.get(parityDelta);
+            ReedSolomon.applyParityDelta(chunk, parityDelta, 0, chunk.length);
+        }
+        crc.reset();
+        crc.update(chunk);
+        if (crc.getValue() != shardChecksums[serverIdx]) {
+            // the chunk was not what the client based the overwrite on
+            LOG.error("Checksum mismatch overwriting chunk {} of {} on server {}", chunkIdx, filePath,
+                    serverIdx);
+            dropChunk(filePath, chunkFileName);
+            return;
+        }
+        chunkStore.put(chunkFileName, ByteBuffer.wrap(chunk));
+    }
+
+    /**
+     * @return index of this server's chunk in the stripe of a block
+     */
+    private int chunkIdxOfBlock(int blockIdx) {
+        return blockIdx / ConfigVariables.DATA_SHARD_COUNT * ConfigVariables.TOTAL_SHARD_COUNT + serverIdx;
+    }
+
+    /**
+     * Drop a chunk whose content is wrong, so reads decode it from the other
+     * servers, and list it as missing for the master to rebuild
+     */
+    private void dropChunk(String filePath, String chunkFileName) throws IOException {
+        chunkStore.delete(chunkFileName);
+        missingChunks.computeIfAbsent(filePath, k -> ConcurrentHashMap.newKeySet()).add(chunkFileName);
+    }
+
+    /**
+     * @return this server's shard of a chunk write, null if it has none. A
+     *         follower decodes the shards as views of the log entry, which
+     *         Raft may reuse once onApply returns while the write is still
+     *         queued for the disk, so those are copied.
+     */
+    private ByteBuffer keepShard(ChunkserverOperation operation) {
+        ByteBuffer shard = operation.getShard(serverIdx);
+        if (shard == null || operation.getShards() != null)
+            return shard;
+        ByteBuffer copy = ByteBuffer.allocate(shard.remaining());
+        copy.put(shard).flip();
+        return copy;
+    }
+
+    /**
+     * List the chunks a chunk write that failed to persist was writing as
+     * missing, as a commit leaving them out does, and drop them so reads
+     * decode them from the other servers until the master rebuilds them. A
+     * follower has no client to fail, so this is the only trace of the write.
+     */
+    private void dropUnpersistedChunks(ChunkserverOperation operation) {
+        String filePath;
+        List<String> chunkFileNames = new ArrayList<>();
+        try {
+            switch (operation.getOp()) {
+                case WRITE_BYTES:
+                case COMMIT_SHARDS:
+                    filePath = operation.getMetadata().getFilePath();
+                    chunkFileNames.addAll(FileMetadataHelper.retrieveFileChunkPaths(operation.getMetadata(),
+                            serverIdx));
+                    break;
+                case OVERWRITE_BLOCK:
+                    filePath = operation.getFilePath();
+                    String chunkFileName = chunkMetadata.getChunks(filePath)
+                            .get(chunkIdxOfBlock(operation.getBlockIdx()));
+                    if (chunkFileName != null)
+                        chunkFileNames.add(chunkFileName);
+                    break;
+                default:
+                    return;
+            }
+        } catch (IOException e) {
+            LOG.error("Fail to find the chunks of a failed {} on server {}", operation.getOp(), serverIdx, e);
+            return;
+        }
+        if (chunkFileNames.isEmpty())
+            return;
+        missingChunks.computeIfAbsent(filePath, k -> ConcurrentHashMap.newKeySet()).addAll(chunkFileNames);
+        diskExecutor.submit(() -> {
+            for (String chunkFileName : chunkFileNames)
+                chunkStore.delete(chunkFileName);
+        }).whenComplete((ignored, e) -> {
+            if (e != null)
+                LOG.error("Fail to drop the chunks of {} on server {}", filePath, serverIdx, e);
+        });
+    }
+
     @Override
     public void onApply(final Iterator iter) {
         while (iter.hasNext()) {
@@ -243,8 +666,7 @@ public class ChunkserverStateMachine extends StateMachineAdapter {
                 // Have to parse FetchAddRequest from this user log.
                 final ByteBuffer data = iter.getData();
                 try {
-                    counterOperation = SerializerManager.getSerializer(SerializerManager.Hessian2).deserialize(
-                            data.array(), ChunkserverOperation.class.getName());
+                    counterOperation = ChunkserverOperationCodec.decode(data);
                 } catch (final CodecException e) {
                     LOG.error("Fail to decode IncrementAndGetRequest", e);
                 }
@@ -259,6 +681,9 @@ public class ChunkserverStateMachine extends StateMachineAdapter {
                 LOG.info("closure={} at logIndex={}", closure, iter.getIndex());
             }
             if (counterOperation != null) {
+                final ChunkserverOperation operation = counterOperation;
+                // chunk writes complete the closure once they are durable
+                CompletableFuture<Void> durable = null;
                 switch (counterOperation.getOp()) {
                     case GET:
                         current = this.value.get();
@@ -271,56 +696,63 @@ public class ChunkserverStateMachine extends StateMachineAdapter {
                         LOG.info("Added value={} by delta={} at logIndex={}", prev, delta, iter.getIndex());
                         break;
                     case UPDATE_SECRETKEY:
+                        previousSecretKey = secretKey;
                         secretKey = counterOperation.getFilePath();
                         System.out.println("secretKey is updated in state machine " + secretKey);
                         break;
-                    case WRITE_BYTES:
+                    case WRITE_BYTES: {
                         System.out.println("Enter write byte: ");
-                        final byte[][] shards = counterOperation.getShards();
-                        final FileMetadata metadata = counterOperation.getMetadata();
-                        final byte[][] chunks = NodeHelper.splitShardToChunks(shards[serverIdx]);
-                        List<String> chunkFilePaths = FileMetadataHelper.retrieveFileChunkPaths(metadata, serverIdx);
-                        for (String s : chunkFilePaths)
-                            System.out.println("chunkFIlePath: " + s);
-                        Path directory = Paths.get(serverDiskPath);
-                        try {
-                            Files.createDirectories(directory); // Create the directory and any nonexistent parent
-                                                                // directories
-                        } catch (IOException e) {
-                            System.out.println("Failed to create the directory: " + e.getMessage());
-                        }
-
-                        for (int i = 0; i < chunks.length; i++) {
-                            String chunkFilePath = serverDiskPath + chunkFilePaths.get(i);
-                            // Create parent directories if they do not exist
-                            File file = new File(chunkFilePath);
-                            File parentDirectory = file.getParentFile();
-                            System.out.println("parentDirectory is " + parentDirectory);
-                            if (!parentDirectory.exists()) {
-                                parentDirectory.mkdirs();
-                            }
-                            try (FileOutputStream fos = new FileOutputStream(chunkFilePath)) {
-                                fos.write(chunks[i]); // Write the byte data to the file
-                                String fileNameWithSubDir = chunkFilePaths.get(i);
-                                updateStoredFileNameToChunks(fileNameWithSubDir);
-                            } catch (IOException e) {
-                                e.printStackTrace();
-                            }
-                        }
+                        final ByteBuffer shard = keepShard(operation);
+                        durable = persist(() -> writeShardToDisk(operation.getMetadata(), shard));
+                        break;
+                    }
+                    case COMMIT_SHARDS:
+                        durable = persist(() -> commitStagedShard(operation.getMetadata(),
+                                operation.getShardChecksums(), operation.getWriteId()));
                         break;
+                    case OVERWRITE_BLOCK: {
+                        final ByteBuffer shard = keepShard(operation);
+                        durable = persist(() -> overwriteBlock(operation.getFilePath(), operation.getBlockIdx(),
+                                shard, operation.getShardChecksums()));
+                        break;
+                    }
                     case READ_BYTES:
                         final Byte[] byteValue2 = this.byteValue;
                         LOG.info("Get byte value={} at logIndex={}", byteValue2, iter.getIndex());
                         break;
                     case DELETE_BYTES:
-                        deleteFile(counterOperation.getFilePath());
+                        durable = persist(() -> deleteFile(operation.getFilePath()));
                         break;
                 }
 
-                if (closure != null) {
-                    closure.success(current);
-                    closure.run(Status.OK());
-                    System.out.println("Write Success");
+                if (durable == null) {
+                    if (closure != null) {
+                        closure.success(current);
+                        closure.run(Status.OK());
+                    }
+                } else {
+                    final ChunkserverClosure done = closure;
+                    final long value = current;
+                    // the closure acks the master over a blocking call, so it
+                    // runs off the disk and syncer threads
+                    durable.whenCompleteAsync((ignored, e) -> {
+                        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause()
+                                : e;
+                        if (cause != null) {
+                            LOG.error("Fail to persist {} on server {}", operation.getOp(), serverIdx, cause);
+                            dropUnpersistedChunks(operation);
+                        }
+                        if (done == null)
+                            return;
+                        if (cause == null) {
+                            done.success(value);
+                            done.run(Status.OK());
+                            System.out.println("Write Success");
+                        } else {
+                            done.failure("Fail to persist chunks: " + cause.getMessage(), "");
+                            done.run(new Status(RaftError.EIO, "Fail to persist chunks of server %d", serverIdx));
+                        }
+                    }, closureExecutor);
                 }
             }
             iter.next();
@@ -330,7 +762,23 @@ public class ChunkserverStateMachine extends StateMachineAdapter {
     @Override
     public void onSnapshotSave(final SnapshotWriter writer, final Closure done) {
         final long currVal = this.value.get();
+        // the log up to the snapshot is dropped once it is saved, so the chunk
+        // writes of the entries applied so far must be durable first; queued
+        // behind them, this one completes once they are
+        final CompletableFuture<Void> chunksDurable = persist(() -> {
+        });
         executor.submit(() -> {
+            try {
+                chunksDurable.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                done.run(new Status(RaftError.EINTR, "Interrupted persisting chunks of server %d", serverIdx));
+                return;
+            } catch (ExecutionException e) {
+                done.run(new Status(RaftError.EIO, "Fail to persist chunks of server %d: %s", serverIdx,
+                        e.getCause().getMessage()));
+                return;
+            }
             final ChunkserverSnapshotFile snapshot = new ChunkserverSnapshotFile(
                     writer.getPath() + File.separator + "data");
             if (snapshot.save(currVal)) {
@@ -389,4 +837,15 @@ public class ChunkserverStateMachine extends StateMachineAdapter {
         return secretKey;
     }
 
+    /**
+     * @return the keys a valid token is signed with, the current one first
+     */
+    public List<String> getSecretKeys() {
+        List<String> secretKeys = new ArrayList<>(2);
+        secretKeys.add(secretKey);
+        if (previousSecretKey != null)
+            secretKeys.add(previousSecretKey);
+        return secretKeys;
+    }
+
 }
@@ -0,0 +1,127 @@
+package edu.cmu.reedsolomonfs.server.Chunkserver;
+
+import java.io.Closeable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+/**
+ * Runs the writes to one disk on a thread of its own, one at a time and in
+ * the order they are submitted, so the Raft apply thread hands chunk writes
+ * off instead of waiting for the disk.
+ *
+ * At most queueCapacity writes wait for the disk. Submitting another one
+ * blocks the submitter until one is taken, so a disk slower than the log
+ * slows down applying instead of queueing without bound. The registry gets
+ * the gauge queue-depth, the writes waiting, and the timer write-latency,
+ * how long writes take on the disk thread.
+ */
+public class DiskIoExecutor implements Closeable {
+
+    private final String name;
+    private final BlockingQueue<Runnable> queue;
+    private final Timer writeLatency;
+    private final Thread thread;
+    private volatile boolean closed = false;
+
+    /**
+     * @param name          name of the disk, prefixing its metrics and thread
+     * @param queueCapacity writes waiting for the disk at most
+     */
+    public DiskIoExecutor(String name, int queueCapacity, MetricRegistry registry) {
+        this.name = name;
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+        registry.register(MetricRegistry.name(name, "queue-depth"), (Gauge<Integer>) queue::size);
+        writeLatency = registry.timer(MetricRegistry.name(name, "write-latency"));
+        thread = new Thread(this::runWrites, name + "-io");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queue a write after those submitted before it, waiting for room in the
+     * queue
+     *
+     * @return a future completing once the write has run, exceptionally if it
+     *         threw
+     */
+    public CompletableFuture<Void> submit(DiskWrite write) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        if (closed) {
+            done.completeExceptionally(new IllegalStateException("I/O executor of " + name + " is closed"));
+            return done;
+        }
+        try {
+            queue.put(() -> {
+                final Timer.Context context = writeLatency.time();
+                try {
+                    write.run();
+                    context.stop();
+                    done.complete(null);
+                } catch (Throwable e) {
+                    context.stop();
+                    done.completeExceptionally(e);
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            done.completeExceptionally(e);
+        }
+        return done;
+    }
+
+    /**
+     * @return writes waiting for the disk
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * Run the writes already queued, then stop
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            // wake the thread without interrupting it, which would close the
+            // file channel it may be writing to
+            queue.put(() -> {
+            });
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // writes submitted while the thread was stopping
+        Runnable write;
+        while ((write = queue.poll()) != null)
+            write.run();
+    }
+
+    private void runWrites() {
+        while (true) {
+            Runnable write;
+            if (closed) {
+                write = queue.poll();
+                if (write == null)
+                    return;
+            } else {
+                try {
+                    write = queue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            write.run();
+        }
+    }
+
+    @FunctionalInterface
+    public interface DiskWrite {
+        void run() throws Exception;
+    }
+}
@@ -0,0 +1,46 @@
+package edu.cmu.reedsolomonfs.server.Chunkserver;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Chunk metadata kept in memory, in a sorted map with the same key order as
+ * RocksDB. It is rebuilt from the chunk store on every start.
+ */
+public class MemoryChunkMetadataStore extends ChunkMetadataStore {
+
+    private final ConcurrentSkipListMap<byte[], byte[]> entries = new ConcurrentSkipListMap<>(
+            Arrays::compareUnsigned);
+
+    @Override
+    void put(byte[] key, byte[] value) {
+        entries.put(key, value);
+    }
+
+    @Override
+    void delete(List<byte[]> keys) {
+        for (byte[] key : keys)
+            entries.remove(key);
+    }
+
+    @Override
+    void scan(byte[] from, byte[] to, EntryVisitor visitor) {
+        NavigableMap<byte[], byte[]> range = to == null ? entries.tailMap(from, true)
+                : entries.subMap(from, true, to, false);
+        for (Map.Entry<byte[], byte[]> entry : range.entrySet())
+            visitor.visit(entry.getKey(), entry.getValue());
+    }
+
+    @Override
+    byte[] lastKey(byte[] from, byte[] to) {
+        byte[] key = entries.lowerKey(to);
+        return key == null || Arrays.compareUnsigned(key, from) < 0 ? null : key;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,102 @@
+package edu.cmu.reedsolomonfs.server.Chunkserver;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.rocksdb.Options;
+import org.rocksdb.ReadOptions;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.RocksIterator;
+import org.rocksdb.Slice;
+import org.rocksdb.WriteBatch;
+import org.rocksdb.WriteOptions;
+
+/**
+ * Chunk metadata kept in an embedded RocksDB, the one jraft already ships
+ * for its log, so it survives a restart.
+ */
+public class RocksChunkMetadataStore extends ChunkMetadataStore {
+
+    static {
+        RocksDB.loadLibrary();
+    }
+
+    private final Path directory;
+    private final Options options;
+    private final RocksDB db;
+
+    public RocksChunkMetadataStore(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        options = new Options().setCreateIfMissing(true);
+        try {
+            db = RocksDB.open(options, directory.toString());
+        } catch (RocksDBException e) {
+            options.close();
+            throw new IOException("Fail to open the chunk metadata in " + directory, e);
+        }
+    }
+
+    @Override
+    void put(byte[] key, byte[] value) throws IOException {
+        try {
+            db.put(key, value);
+        } catch (RocksDBException e) {
+            throw new IOException("Fail to write the chunk metadata in " + directory, e);
+        }
+    }
+
+    @Override
+    void delete(List<byte[]> keys) throws IOException {
+        if (keys.isEmpty())
+            return;
+        try (WriteBatch batch = new WriteBatch(); WriteOptions writeOptions = new WriteOptions()) {
+            for (byte[] key : keys)
+                batch.delete(key);
+            db.write(writeOptions, batch);
+        } catch (RocksDBException e) {
+            throw new IOException("Fail to delete from the chunk metadata in " + directory, e);
+        }
+    }
+
+    @Override
+    void scan(byte[] from, byte[] to, EntryVisitor visitor) throws IOException {
+        try (ReadOptions readOptions = new ReadOptions(); Slice upperBound = to == null ? null : new Slice(to)) {
+            if (upperBound != null)
+                readOptions.setIterateUpperBound(upperBound);
+            try (RocksIterator iterator = db.newIterator(readOptions)) {
+                for (iterator.seek(from); iterator.isValid(); iterator.next())
+                    visitor.visit(iterator.key(), iterator.value());
+                iterator.status();
+            }
+        } catch (RocksDBException e) {
+            throw new IOException("Fail to scan the chunk metadata in " + directory, e);
+        }
+    }
+
+    @Override
+    byte[] lastKey(byte[] from, byte[] to) throws IOException {
+        try (ReadOptions readOptions = new ReadOptions(); Slice lowerBound = new Slice(from);
+                Slice upperBound = new Slice(to)) {
+            readOptions.setIterateLowerBound(lowerBound);
+            readOptions.setIterateUpperBound(upperBound);
+            try (RocksIterator iterator = db.newIterator(readOptions)) {
+                iterator.seekToLast();
+                byte[] key = iterator.isValid() ? iterator.key() : null;
+                iterator.status();
+                return key;
+            }
+        } catch (RocksDBException e) {
+            throw new IOException("Fail to scan the chunk metadata in " + directory, e);
+        }
+    }
+
+    @Override
+    public void close() {
+        db.close();
+        options.close();
+    }
+}
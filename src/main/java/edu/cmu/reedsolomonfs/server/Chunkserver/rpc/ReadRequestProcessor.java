@@ -49,7 +49,7 @@ public class ReadRequestProcessor implements RpcProcessor<ReadRequest> {
         // log to see if the request is handled in the same thread
         System.out.println("ReadRequestProcessor thread2: " + Thread.currentThread().getName());
         String filePath = request.getFilePath();
-        this.counterService.read(filePath, closure);
+        this.counterService.read(filePath, request.getOffset(), request.getLength(), closure);
         System.out.println("ReadRequestProcessor thread completes: " + Thread.currentThread().getName());
     }
 
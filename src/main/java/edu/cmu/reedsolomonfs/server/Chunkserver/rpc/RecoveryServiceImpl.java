@@ -1,15 +1,11 @@
 package edu.cmu.reedsolomonfs.server.Chunkserver.rpc;
 
-import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
 
-import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
 
 import edu.cmu.reedsolomonfs.server.MasterserverOutter.RecoveryReadRequest;
 import edu.cmu.reedsolomonfs.server.MasterserverOutter.RecoveryReadResponse;
@@ -17,6 +13,7 @@ import edu.cmu.reedsolomonfs.server.MasterserverOutter.RecoveryWriteRequest;
 import edu.cmu.reedsolomonfs.server.MasterserverOutter.RecoveryWriteResponse;
 import edu.cmu.reedsolomonfs.server.RecoveryServiceGrpc.RecoveryServiceImplBase;
 import edu.cmu.reedsolomonfs.server.Chunkserver.Chunkserver;
+import io.grpc.Status;
 import io.grpc.stub.StreamObserver;
 
 
@@ -27,13 +24,11 @@ public class RecoveryServiceImpl extends RecoveryServiceImplBase {
 
     private int serverIdx;
     private final Chunkserver chunkServer;
-    private String diskPath;
     String outputLogFile = "recovery_output.log";
 
-    public RecoveryServiceImpl(int serverIdx, String diskPath, Chunkserver chunkServer) {
+    public RecoveryServiceImpl(int serverIdx, Chunkserver chunkServer) {
         this.chunkServer = chunkServer;
         this.serverIdx = serverIdx;
-        this.diskPath = diskPath;
         // redirectSystemOutToFile();
     }
 
@@ -43,12 +38,18 @@ public class RecoveryServiceImpl extends RecoveryServiceImplBase {
         String chunkFilePath = request.getChunkFilePath();
         System.out.println("RecoveryReadRequest received from Master: " + chunkFilePath);
         try {
-            Path path = Paths.get(diskPath, chunkFilePath);
-            byte[] fileContent = Files.readAllBytes(path);
-
-            // Prepare the recovery response with the disk path
+            byte[] fileContent = this.chunkServer.getFsm().readChunk(chunkFilePath);
+            if (fileContent == null) {
+                responseObserver.onError(Status.NOT_FOUND
+                        .withDescription("Chunk " + chunkFilePath + " is not on server " + serverIdx)
+                        .asRuntimeException());
+                return;
+            }
+
+            // Prepare the recovery response with the disk path; fileContent is
+            // not touched again, so it is wrapped instead of copied
             RecoveryReadResponse response = RecoveryReadResponse.newBuilder()
-                    .setChunkFileData(ByteString.copyFrom(fileContent))
+                    .setChunkFileData(UnsafeByteOperations.unsafeWrap(fileContent))
                     .build();
 
             // Send the response back to the Master
@@ -56,6 +57,7 @@ public class RecoveryServiceImpl extends RecoveryServiceImplBase {
             responseObserver.onCompleted();
         } catch (IOException e) {
             System.err.println("An error occurred while reading the file: " + e.getMessage());
+            responseObserver.onError(Status.INTERNAL.withDescription(e.getMessage()).asRuntimeException());
         }
 
     }
@@ -64,23 +66,15 @@ public class RecoveryServiceImpl extends RecoveryServiceImplBase {
     public void recoveryWrite(RecoveryWriteRequest request, StreamObserver<RecoveryWriteResponse> responseObserver) {
         System.out.println("RecoveryWriteRequest received from Master");
 
-        String recoveredChunkFilePath = diskPath + request.getChunkFilePath();
-        byte[] recoveredChunkFileData = request.getChunkFileData().toByteArray();
-
-        // Create parent directories if they don't exist
-        File file = new File(recoveredChunkFilePath);
-        if (file.getParentFile() != null) {
-            file.getParentFile().mkdirs();
-        }
-
-        // Write the recovered data to the recovered file path
-        try (FileOutputStream fos = new FileOutputStream(file)) {
-            fos.write(recoveredChunkFileData);
-            System.out.println("request.getChunkFilePath(): " + new String(request.getChunkFilePath()));
-            this.chunkServer.getFsm().updateStoredFileNameToChunks(request.getChunkFilePath());
-            System.out.println("recoveredChunkFilePath: " + recoveredChunkFilePath);
+        // Write the recovered data to the chunk store
+        try {
+            this.chunkServer.getFsm().writeRecoveredChunk(request.getChunkFilePath(),
+                    request.getChunkFileData().asReadOnlyByteBuffer());
+            System.out.println("recoveredChunkFilePath: " + request.getChunkFilePath());
         } catch (IOException e) {
             System.err.println("An error occurred while writing the file: " + e.getMessage());
+            responseObserver.onError(Status.INTERNAL.withDescription(e.getMessage()).asRuntimeException());
+            return;
         }
 
         // Prepare the recovery response with the disk path
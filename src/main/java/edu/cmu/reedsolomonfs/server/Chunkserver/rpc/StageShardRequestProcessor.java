@@ -0,0 +1,74 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.cmu.reedsolomonfs.server.Chunkserver.rpc;
+
+import com.alipay.sofa.jraft.Status;
+import edu.cmu.reedsolomonfs.client.Reedsolomonfs.StageShardRequest;
+import edu.cmu.reedsolomonfs.server.Chunkserver.Chunkserver;
+import edu.cmu.reedsolomonfs.server.Chunkserver.ChunkserverClosure;
+import edu.cmu.reedsolomonfs.server.Chunkserver.ChunkserverService;
+import edu.cmu.reedsolomonfs.server.ChunkserverOutter.ValueResponse;
+import com.alipay.sofa.jraft.rpc.RpcContext;
+import com.alipay.sofa.jraft.rpc.RpcProcessor;
+
+/**
+ * Receives the shard of this chunkserver on the data path of a staged write.
+ * Every chunkserver (not only the leader) handles this request.
+ */
+public class StageShardRequestProcessor implements RpcProcessor<StageShardRequest> {
+
+    private final ChunkserverService counterService;
+    private final Chunkserver chunkserver;
+
+    public StageShardRequestProcessor(ChunkserverService counterService, Chunkserver chunkserver) {
+        super();
+        this.counterService = counterService;
+        this.chunkserver = chunkserver;
+    }
+
+    @Override
+    public void handleRequest(final RpcContext rpcCtx, final StageShardRequest request) {
+        if (!chunkserver.validateJWT(request.getToken())) {
+            System.out.println("Invalid JWT token");
+            rpcCtx.sendResponse(ValueResponse.newBuilder().setValue(0).setSuccess(false)
+                    .setErrorMsg("Invalid JWT token").build());
+            return;
+        }
+        if (request.getShardIdx() != chunkserver.getServerIdx()) {
+            rpcCtx.sendResponse(ValueResponse.newBuilder().setValue(0).setSuccess(false)
+                    .setErrorMsg("Shard " + request.getShardIdx() + " does not belong to server "
+                            + chunkserver.getServerIdx())
+                    .build());
+            return;
+        }
+
+        final ChunkserverClosure closure = new ChunkserverClosure() {
+            @Override
+            public void run(Status status) {
+                rpcCtx.sendResponse(getValueResponse());
+            }
+        };
+
+        this.counterService.stage(request.getFilePath(), request.getWriteId(), request.getShardOffset(),
+                request.getPayload().toByteArray(), closure);
+    }
+
+    @Override
+    public String interest() {
+        return StageShardRequest.class.getName();
+    }
+}
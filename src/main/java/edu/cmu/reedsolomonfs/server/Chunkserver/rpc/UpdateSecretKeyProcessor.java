@@ -20,11 +20,9 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.PrintStream;
 import com.alipay.sofa.jraft.Status;
-import edu.cmu.reedsolomonfs.server.MasterServiceGrpc;
 import edu.cmu.reedsolomonfs.server.Chunkserver.ChunkserverClosure;
 import edu.cmu.reedsolomonfs.server.Chunkserver.ChunkserverService;
 import edu.cmu.reedsolomonfs.server.ChunkserverOutter.UpdateSecretKeyRequest;
-import edu.cmu.reedsolomonfs.server.MasterserverOutter.ackMasterWriteSuccessRequest;
 import io.grpc.ManagedChannel;
 
 import com.alipay.sofa.jraft.rpc.RpcContext;
@@ -36,10 +34,6 @@ import com.alipay.sofa.jraft.rpc.RpcProcessor;
 public class UpdateSecretKeyProcessor implements RpcProcessor<UpdateSecretKeyRequest> {
 
     private final ChunkserverService counterService;
-    private int appendAt;
-    private String writeFlag;
-    private String filePath;
-    private int fileSize;
     private ManagedChannel masterChannel;
 
     public UpdateSecretKeyProcessor(ChunkserverService counterService, ManagedChannel masterChannel) {
@@ -59,17 +53,8 @@ public class UpdateSecretKeyProcessor implements RpcProcessor<UpdateSecretKeyReq
             @Override
             public void run(Status status) {
                 System.out.printf("UpdateSecretKeyRequest: run \n");
-                // send success to master
-                MasterServiceGrpc.MasterServiceBlockingStub stub = MasterServiceGrpc.newBlockingStub(masterChannel);
-                ackMasterWriteSuccessRequest ack = ackMasterWriteSuccessRequest.newBuilder()
-                        .setAppendAt(appendAt)
-                        .setWriteFlag(writeFlag)
-                        .setFileName(filePath)
-                        .setFileSize(fileSize).build();
-
-                stub.writeSuccess(ack);
-
-                // send reponse back to the client
+                // the master switches to the new key once this says it is applied;
+                // a key update is not a write, so it is not acked as one
                 rpcCtx.sendResponse(getValueResponse());
 
             }
@@ -20,7 +20,10 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.PrintStream;
 import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import com.alipay.sofa.jraft.Status;
+import edu.cmu.reedsolomonfs.ConfigVariables;
 import edu.cmu.reedsolomonfs.client.Reedsolomonfs.WriteRequest;
 import edu.cmu.reedsolomonfs.datatype.FileMetadata;
 import edu.cmu.reedsolomonfs.datatype.FileMetadataHelper;
@@ -28,6 +31,7 @@ import edu.cmu.reedsolomonfs.server.MasterServiceGrpc;
 import edu.cmu.reedsolomonfs.server.Chunkserver.ChunkserverClosure;
 import edu.cmu.reedsolomonfs.server.Chunkserver.ChunkserverService;
 import edu.cmu.reedsolomonfs.server.Chunkserver.ChunkserverStateMachine;
+import edu.cmu.reedsolomonfs.server.ChunkserverOutter.ValueResponse;
 import edu.cmu.reedsolomonfs.server.MasterserverOutter.ackMasterWriteSuccessRequest;
 import io.grpc.ManagedChannel;
 import io.jsonwebtoken.Claims;
@@ -44,12 +48,11 @@ import com.alipay.sofa.jraft.rpc.RpcProcessor;
 public class WriteRequestProcessor implements RpcProcessor<WriteRequest> {
 
     private final ChunkserverService counterService;
-    private int appendAt;
-    private String writeFlag;
-    private String filePath;
-    private int fileSize;
     private ManagedChannel masterChannel;
     private ChunkserverStateMachine fsm;
+    // ids of the tokens writes were accepted with, to the time the tokens
+    // expire, after which they are rejected anyway
+    private final Map<String, Long> usedTokenIds = new ConcurrentHashMap<>();
 
     public WriteRequestProcessor(ChunkserverService counterService, ManagedChannel masterChannel, 
             ChunkserverStateMachine fsm) {
@@ -59,30 +62,58 @@ public class WriteRequestProcessor implements RpcProcessor<WriteRequest> {
         this.fsm = fsm;
     }
 
+    /**
+     * Check the token is signed by the master and not expired, and that no
+     * write was accepted with it before, so a token that leaks cannot be
+     * replayed for another write. Staging checks only the signature and
+     * expiry, as staged shards take effect only with the commit checked here.
+     */
     public boolean validateJWT(String token) {
-        try {
-            System.out.println("fsm.getSecretKey(): " + fsm.getSecretKey());
-            byte[] secretKeyBytes = fsm.getSecretKey().getBytes(StandardCharsets.UTF_8);
-            System.out.println("secretKeyBytes: " + secretKeyBytes);
-            // Parse the JWT token
-            Jws<Claims> jwsClaims = Jwts.parser()
-                    .setSigningKey(secretKeyBytes)
-                    .parseClaimsJws(token);
-            System.out.println("jwsClaims: " + jwsClaims);
-
-            // Check the permission and filePath in the token (optional)
-            Claims claims = jwsClaims.getBody();
-            System.out.println("claims: " + claims);
-            String permission = claims.get("permission", String.class);
-            String filePath = claims.get("filePath", String.class);
-
-            // If we reach this point, the token was valid
-            return true;
-        } catch (JwtException ex) {
-            // An error occurred while validating the JWT token
-            System.out.println("Invalid JWT token: " + ex.getMessage());
+        JwtException invalid = null;
+        // the token may be signed with the current key or the one before it
+        for (String secretKey : fsm.getSecretKeys()) {
+            try {
+                byte[] secretKeyBytes = secretKey.getBytes(StandardCharsets.UTF_8);
+                // Parse the JWT token
+                Jws<Claims> jwsClaims = Jwts.parser()
+                        .setSigningKey(secretKeyBytes)
+                        .parseClaimsJws(token);
+                System.out.println("jwsClaims: " + jwsClaims);
+
+                // Check the permission and filePath in the token (optional)
+                Claims claims = jwsClaims.getBody();
+                System.out.println("claims: " + claims);
+                String permission = claims.get("permission", String.class);
+                String filePath = claims.get("filePath", String.class);
+
+                return useTokenId(claims);
+            } catch (JwtException ex) {
+                invalid = ex;
+            }
+        }
+        // An error occurred while validating the JWT token
+        System.out.println("Invalid JWT token: " + (invalid == null ? "no key" : invalid.getMessage()));
+        return false;
+    }
+
+    /**
+     * Remember the id of a valid token
+     *
+     * @return false if the token has no id or a write was accepted with it
+     */
+    private boolean useTokenId(Claims claims) {
+        long now = System.currentTimeMillis();
+        usedTokenIds.values().removeIf(expiration -> expiration < now);
+        String tokenId = claims.getId();
+        if (tokenId == null || claims.getExpiration() == null) {
+            System.out.println("Invalid JWT token: no id or expiration");
             return false;
         }
+        if (usedTokenIds.putIfAbsent(tokenId, claims.getExpiration().getTime()) != null) {
+            System.out.println("Invalid JWT token: already used for a write");
+            return false;
+        }
+        return true;
     }
 
     @Override
@@ -92,30 +123,34 @@ public class WriteRequestProcessor implements RpcProcessor<WriteRequest> {
         System.out.println("token: " + token);
         if (!validateJWT(token)) {
             System.out.println("Invalid JWT token");
+            rpcCtx.sendResponse(ValueResponse.newBuilder().setValue(0).setSuccess(false)
+                    .setErrorMsg("Invalid JWT token").build());
             return;
         }
-        writeFlag = request.getWriteFlag();
-        appendAt = request.getAppendAt();
-        filePath = request.getFilePath();
-        fileSize = request.getFileSize();
+        // requests are handled concurrently, so they are not kept in fields
+        final String writeFlag = request.getWriteFlag();
+        final int appendAt = request.getAppendAt();
+        final String filePath = request.getFilePath();
+        final int fileSize = request.getFileSize();
         System.out.printf("writeFlag: %s \n", writeFlag);
         System.out.printf("appendAt: %d \n", appendAt);
         System.out.printf("filePath: %s \n", filePath);
         System.out.printf("fileSize: %d \n", fileSize);
 
+        final ackMasterWriteSuccessRequest ack = ackMasterWriteSuccessRequest.newBuilder()
+                .setAppendAt(appendAt)
+                .setWriteFlag(writeFlag)
+                .setFileName(filePath)
+                .setFileSize(fileSize).build();
         final ChunkserverClosure closure = new ChunkserverClosure() {
             @Override
             public void run(Status status) {
                 System.out.printf("WriteRequestProcessor: run \n");
-                // send success to master
-                MasterServiceGrpc.MasterServiceBlockingStub stub = MasterServiceGrpc.newBlockingStub(masterChannel);
-                ackMasterWriteSuccessRequest ack = ackMasterWriteSuccessRequest.newBuilder()
-                        .setAppendAt(appendAt)
-                        .setWriteFlag(writeFlag)
-                        .setFileName(filePath)
-                        .setFileSize(fileSize).build();
-
-                stub.writeSuccess(ack);
+                // send success to master, only for a write that took effect
+                if (status.isOk()) {
+                    MasterServiceGrpc.MasterServiceBlockingStub stub = MasterServiceGrpc.newBlockingStub(masterChannel);
+                    stub.writeSuccess(ack);
+                }
 
                 // send reponse back to the client
                 rpcCtx.sendResponse(getValueResponse());
@@ -129,6 +164,26 @@ public class WriteRequestProcessor implements RpcProcessor<WriteRequest> {
             for (int i = 0; i < request.getPayloadCount(); i++)
                 shards[i] = request.getPayload(i).toByteArray();
             this.counterService.write(shards, metadata, closure);
+        } else if (writeFlag.equals("commit")) {
+            // shards were already staged on each chunkserver, only the commit record
+            // goes through the Raft log
+            FileMetadata metadata = FileMetadataHelper.createFileMetadata(filePath, fileSize);
+            long[] shardChecksums = new long[request.getShardChecksumsCount()];
+            for (int i = 0; i < request.getShardChecksumsCount(); i++)
+                shardChecksums[i] = request.getShardChecksums(i);
+            this.counterService.commit(metadata, shardChecksums, request.getWriteId(), closure);
+        } else if (writeFlag.equals("overwrite")) {
+            // appendAt is the byte offset of the overwritten block in the file,
+            // payload holds one chunk per server and is empty for unchanged chunks
+            byte[][] shards = new byte[request.getPayloadCount()][];
+            for (int i = 0; i < request.getPayloadCount(); i++)
+                if (!request.getPayload(i).isEmpty())
+                    shards[i] = request.getPayload(i).toByteArray();
+            long[] shardChecksums = new long[request.getShardChecksumsCount()];
+            for (int i = 0; i < request.getShardChecksumsCount(); i++)
+                shardChecksums[i] = request.getShardChecksums(i);
+            this.counterService.overwrite(filePath, appendAt / ConfigVariables.BLOCK_SIZE, shards, shardChecksums,
+                    closure);
         } else if (writeFlag.equals("delete")) {
             this.counterService.delete(filePath, closure);
         }
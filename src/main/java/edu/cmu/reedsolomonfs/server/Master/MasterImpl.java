@@ -8,10 +8,12 @@ import edu.cmu.reedsolomonfs.server.MasterserverOutter.HeartbeatResponse;
 import edu.cmu.reedsolomonfs.server.MasterserverOutter.ackMasterWriteSuccessRequest;
 import edu.cmu.reedsolomonfs.server.MasterserverOutter.ackMasterWriteSuccessRequestResponse;
 import edu.cmu.reedsolomonfs.server.ChunkserverOutter.UpdateSecretKeyRequest;
+import edu.cmu.reedsolomonfs.server.ChunkserverOutter.ValueResponse;
 import edu.cmu.reedsolomonfs.datatype.Node;
 import com.alipay.sofa.jraft.error.RemotingException;
 import com.alipay.sofa.jraft.option.CliOptions;
 import com.alipay.sofa.jraft.rpc.InvokeCallback;
+import io.grpc.StatusRuntimeException;
 import io.grpc.stub.StreamObserver;
 import java.io.FileInputStream;
 import com.alipay.sofa.jraft.conf.Configuration;
@@ -28,13 +30,16 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import com.alipay.sofa.jraft.RouteTable;
 import com.alipay.sofa.jraft.entity.PeerId;
 import com.alipay.sofa.jraft.rpc.impl.cli.CliClientServiceImpl;
 import com.google.common.collect.Sets;
-import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
 import java.io.File;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -43,6 +48,8 @@ import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Base64;
 import edu.cmu.reedsolomonfs.server.MasterserverOutter.GRPCMetadata;
+import edu.cmu.reedsolomonfs.server.MasterserverOutter.MetadataChangesRequest;
+import edu.cmu.reedsolomonfs.server.MasterserverOutter.MetadataChangesResponse;
 import edu.cmu.reedsolomonfs.server.MasterserverOutter.TokenRequest;
 import edu.cmu.reedsolomonfs.server.MasterserverOutter.TokenResponse;
 import edu.cmu.reedsolomonfs.server.RecoveryServiceGrpc;
@@ -60,12 +67,16 @@ import io.jsonwebtoken.SignatureAlgorithm;
 import java.util.Date;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 
 public class MasterImpl extends edu.cmu.reedsolomonfs.server.MasterServiceGrpc.MasterServiceImplBase {
 
-    private static String secretKey;
+    private static volatile String secretKey;
     boolean storageActivated;
     Map<Integer, Long> currHeartbeat;
     Map<Integer, Long> oldHeartbeat;
@@ -78,6 +89,22 @@ public class MasterImpl extends edu.cmu.reedsolomonfs.server.MasterServiceGrpc.M
     private Map<String, Long> latestChunkIndex;
     private Map<Integer, Map<String, Set<String>>> chunkServerChunkFileNames;
     private Map<String, List<Node>> metadata;
+    // version of each file handed to clients for caching; unlike the version in
+    // chunk file names it also changes on overwrites. Files not written since
+    // the master started are at startWriteVersion, which is above any version
+    // handed out before a restart
+    private final long startWriteVersion = System.currentTimeMillis() * 1000;
+    private final AtomicLong lastWriteVersion = new AtomicLong(startWriteVersion);
+    private Map<String, Long> fileWriteVersions = new ConcurrentHashMap<>();
+    // write version of each file deleted since the master started, so clients
+    // asking for the changes since an epoch learn about the delete. At most
+    // DELETED_FILE_HISTORY are kept; clients with an epoch before
+    // oldestChangesEpoch may have missed a forgotten delete and get every file
+    private Map<String, Long> deletedFileVersions = new ConcurrentHashMap<>();
+    private long oldestChangesEpoch = startWriteVersion;
+    // held while the metadata and the write versions change together, and while
+    // reading them as of one epoch
+    private final Object metadataLock = new Object();
     public CliClientServiceImpl cliClientService;
 
     String fileVersionsFileName = "fileVersions";
@@ -89,6 +116,20 @@ public class MasterImpl extends edu.cmu.reedsolomonfs.server.MasterServiceGrpc.M
     private int[] recoveryPorts = { 18000, 18001, 18002, 18003, 18004, 18005 };
     private String groupId;
     private Configuration conf;
+    // chunks live chunkservers reported missing whose rebuild is queued or
+    // running, by server, so a chunk reported again is not rebuilt twice
+    private final Map<Integer, Set<String>> repairingChunks = new ConcurrentHashMap<>();
+    // rotates the key tokens are signed with every SECRET_KEY_ROTATION_INTERVAL
+    private final ScheduledExecutorService keyRotationExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "secret-key-rotation");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ExecutorService chunkRepairExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "chunk-repair");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     public MasterImpl(String groupId, Configuration conf) {
         // generateSecretKey();
@@ -134,6 +175,8 @@ public class MasterImpl extends edu.cmu.reedsolomonfs.server.MasterServiceGrpc.M
         }
 
         hbc.start();
+        keyRotationExecutor.scheduleWithFixedDelay(this::rotateSecretKey, ConfigVariables.SECRET_KEY_ROTATION_INTERVAL,
+                ConfigVariables.SECRET_KEY_ROTATION_INTERVAL, TimeUnit.SECONDS);
 
         // Shutdown the recovery channel
         // for (int i = 0; i < ConfigVariables.TOTAL_SHARD_COUNT; i++)
@@ -396,9 +439,10 @@ public class MasterImpl extends edu.cmu.reedsolomonfs.server.MasterServiceGrpc.M
 
     public String generateJWT(String requestType, String filePath) {
         // return "RANDOM_TOKEN";
-        // Set the token expiration time (e.g., 1 hour from now)
+        // tokens are short lived, so one that leaks is of use only briefly
         System.out.println("generateJWT");
-        long expirationTimeMillis = System.currentTimeMillis() + 3600000; // 1 hour
+        long expirationTimeMillis = System.currentTimeMillis()
+                + TimeUnit.SECONDS.toMillis(ConfigVariables.TOKEN_TTL);
         System.out.println("expirationTimeMillis: " + expirationTimeMillis);
         Date expirationDate = new Date(expirationTimeMillis);
         System.out.println("expirationDate: " + expirationDate);
@@ -410,6 +454,8 @@ public class MasterImpl extends edu.cmu.reedsolomonfs.server.MasterServiceGrpc.M
         claims.put("permission", requestType);
         System.out.println("requestType: " + requestType);
         claims.put("filePath", filePath);
+        // the leader commits at most one write with each token id
+        claims.setId(UUID.randomUUID().toString());
         //System.out.println("filePath: " + filePath);
         System.out.println("secretKey: " + secretKey);
 
@@ -430,12 +476,30 @@ public class MasterImpl extends edu.cmu.reedsolomonfs.server.MasterServiceGrpc.M
         return token;
     }
 
-    public static void generateSecretKey() {
+    public static String generateSecretKey() {
         // Generate a secure random key
         SecureRandom secureRandom = new SecureRandom();
         byte[] keyBytes = new byte[32]; // 256 bits key length
         secureRandom.nextBytes(keyBytes);
-        secretKey = Base64.getEncoder().encodeToString(keyBytes);
+        return Base64.getEncoder().encodeToString(keyBytes);
+    }
+
+    /**
+     * Replace the key tokens are signed with. Keys are rotated on a timer and
+     * not after every write, so the tokens of writes running concurrently stay
+     * valid; chunkservers also take tokens of the key before theirs. A token
+     * is not replayable for as long as its key is accepted though: it expires
+     * after TOKEN_TTL and the leader commits one write per token id. The
+     * master signs with the new key only once the chunkservers applied it.
+     */
+    private void rotateSecretKey() {
+        if (!storageActivated)
+            return;
+        try {
+            updateSecretKey(cliClientService, generateSecretKey());
+        } catch (RemotingException | InterruptedException | RuntimeException e) {
+            System.out.println("Fail to rotate the secret key: " + e.getMessage());
+        }
     }
 
     @Override
@@ -449,24 +513,12 @@ public class MasterImpl extends edu.cmu.reedsolomonfs.server.MasterServiceGrpc.M
             List<String> ips = new ArrayList<>(); // Compute the value of ips
 
             List<GRPCMetadata> grpcMetadatas = new ArrayList<>();
-            metadata = getMetadata();
-            System.out.println("metadata: " + metadata);
-            for (String filePath : metadata.keySet()) {
-                List<Node> nodes1 = metadata.get(filePath);
-                List<GRPCNode> grpcNodes1 = new ArrayList<>();
-                for (Node node : nodes1) {
-                    GRPCNode grpcNode = GRPCNode.newBuilder()
-                            .setChunkIdx(node.getChunkIdx())
-                            .setServerId(node.getServerId())
-                            .setIsData(node.getIsData())
-                            .build();
-                    grpcNodes1.add(grpcNode);
-                }
-                GRPCMetadata grpcMetadata = GRPCMetadata.newBuilder()
-                        .setFilePath(filePath)
-                        .addAllNodes(grpcNodes1)
-                        .build();
-                grpcMetadatas.add(grpcMetadata);
+            long metadataEpoch;
+            synchronized (metadataLock) {
+                System.out.println("metadata: " + metadata);
+                for (String filePath : metadata.keySet())
+                    grpcMetadatas.add(toGRPCMetadata(filePath));
+                metadataEpoch = lastWriteVersion.get();
             }
             System.out.println("grpcMetadatas");
             // print out grpcMetadatas
@@ -486,6 +538,7 @@ public class MasterImpl extends edu.cmu.reedsolomonfs.server.MasterServiceGrpc.M
             tokenResponseBuilder.setToken(token);
             System.out.print("tokenResponseBuilder: " + tokenResponseBuilder);
             tokenResponseBuilder.addAllMetadata(grpcMetadatas);
+            tokenResponseBuilder.setMetadataEpoch(metadataEpoch);
             System.out.print("tokenResponseBuilder: " + tokenResponseBuilder);
             TokenResponse response = tokenResponseBuilder.build();
             System.out.println("response: " + response);
@@ -499,6 +552,76 @@ public class MasterImpl extends edu.cmu.reedsolomonfs.server.MasterServiceGrpc.M
         }
     }
 
+    /**
+     * Send the metadata of the files written or deleted after the client's
+     * epoch, so clients keep their cached metadata current without fetching
+     * every file's. Clients with an epoch from before the master started or
+     * the oldest delete it remembers, or with none, get the metadata of every
+     * file instead.
+     */
+    @Override
+    public void getMetadataChanges(MetadataChangesRequest request,
+            StreamObserver<MetadataChangesResponse> responseObserver) {
+        try {
+            long sinceEpoch = request.getSinceEpoch();
+            MetadataChangesResponse.Builder responseBuilder = MetadataChangesResponse.newBuilder();
+            synchronized (metadataLock) {
+                long epoch = lastWriteVersion.get();
+                boolean full = sinceEpoch < oldestChangesEpoch || sinceEpoch > epoch;
+                for (String filePath : metadata.keySet()) {
+                    if (full || fileWriteVersions.getOrDefault(filePath, startWriteVersion) > sinceEpoch)
+                        responseBuilder.addChanged(toGRPCMetadata(filePath));
+                }
+                if (!full) {
+                    for (Map.Entry<String, Long> deleted : deletedFileVersions.entrySet()) {
+                        if (deleted.getValue() > sinceEpoch)
+                            responseBuilder.addDeletedFilePaths(deleted.getKey());
+                    }
+                }
+                responseBuilder.setEpoch(epoch).setFull(full);
+            }
+            responseObserver.onNext(responseBuilder.build());
+            responseObserver.onCompleted();
+        } catch (Exception e) {
+            e.printStackTrace();
+            responseObserver.onError(e);
+        }
+    }
+
+    /**
+     * Forget the oldest half of the deletes once there are more than
+     * DELETED_FILE_HISTORY, and send every file to clients from before them.
+     * Called holding metadataLock.
+     */
+    private void pruneDeletedFileVersions() {
+        if (deletedFileVersions.size() <= ConfigVariables.DELETED_FILE_HISTORY)
+            return;
+        List<Map.Entry<String, Long>> deletes = new ArrayList<>(deletedFileVersions.entrySet());
+        deletes.sort(Map.Entry.comparingByValue());
+        for (Map.Entry<String, Long> deleted : deletes.subList(0, deletes.size() / 2)) {
+            deletedFileVersions.remove(deleted.getKey());
+            // a client at this epoch has seen the delete
+            oldestChangesEpoch = Math.max(oldestChangesEpoch, deleted.getValue());
+        }
+    }
+
+    private GRPCMetadata toGRPCMetadata(String filePath) {
+        List<GRPCNode> grpcNodes = new ArrayList<>();
+        for (Node node : metadata.get(filePath)) {
+            GRPCNode grpcNode = GRPCNode.newBuilder()
+                    .setChunkIdx(node.getChunkIdx())
+                    .setServerId(node.getServerId())
+                    .setIsData(node.getIsData())
+                    .build();
+            grpcNodes.add(grpcNode);
+        }
+        return GRPCMetadata.newBuilder()
+                .setFilePath(filePath)
+                .addAllNodes(grpcNodes)
+                .setFileVersion(fileWriteVersions.getOrDefault(filePath, startWriteVersion))
+                .build();
+    }
+
     @Override
     public void heartBeat(HeartbeatRequest request, StreamObserver<HeartbeatResponse> responseObserver) {
         try {
@@ -524,6 +647,10 @@ public class MasterImpl extends edu.cmu.reedsolomonfs.server.MasterServiceGrpc.M
                                 .getOrDefault(filename, Sets.newConcurrentHashSet()));
                 System.out.println("servertag: " + serverTag + " filename: " + filename + " diff: " + diff);
             }
+            // chunks a commit left out on a live server are rebuilt from the rest
+            // of their stripes
+            if (request.getMissingChunkFileNamesCount() > 0)
+                repairMissingChunks(Integer.parseInt(serverTag), request.getMissingChunkFileNamesList());
 
             // storage activated
             if (!storageActivated) {
@@ -561,22 +688,31 @@ public class MasterImpl extends edu.cmu.reedsolomonfs.server.MasterServiceGrpc.M
             System.out.println(request.getFileSize());
             System.out.println(request.getAppendAt());
             System.out.println(request.getWriteFlag());
-            // addFileVersion if writeFlag is "write"
-            if (request.getWriteFlag().equals("create"))
-                addFileVersion(request.getFileName(), request.getFileSize(), request.getAppendAt(),
-                        request.getWriteFlag());
-
-            // deleteFileVersion if writeFlag is "delete"
-            if (request.getWriteFlag().equals("delete"))
-                deleteFileVersion(request.getFileName());
+            synchronized (metadataLock) {
+                // addFileVersion if writeFlag is "create" or "commit" (staged create)
+                if (request.getWriteFlag().equals("create") || request.getWriteFlag().equals("commit"))
+                    addFileVersion(request.getFileName(), request.getFileSize(), request.getAppendAt(),
+                            request.getWriteFlag());
+
+                // deleteFileVersion if writeFlag is "delete"
+                if (request.getWriteFlag().equals("delete"))
+                    deleteFileVersion(request.getFileName());
+
+                // every write makes cached copies of the file stale
+                long writeVersion = lastWriteVersion.incrementAndGet();
+                if (request.getWriteFlag().equals("delete")) {
+                    fileWriteVersions.remove(request.getFileName());
+                    deletedFileVersions.put(request.getFileName(), writeVersion);
+                    pruneDeletedFileVersions();
+                } else {
+                    deletedFileVersions.remove(request.getFileName());
+                    fileWriteVersions.put(request.getFileName(), writeVersion);
+                }
+            }
 
             ackMasterWriteSuccessRequestResponse response = ackMasterWriteSuccessRequestResponse.newBuilder()
                     .setSuccess(true).build();
 
-            generateSecretKey();
-            // notify storage cluster to update secret key
-            updateSecretKey(cliClientService, secretKey);
-
             responseObserver.onNext(response);
             responseObserver.onCompleted();
         } catch (Exception e) {
@@ -621,24 +757,32 @@ public class MasterImpl extends edu.cmu.reedsolomonfs.server.MasterServiceGrpc.M
     }
 
     // Master requests chunk file data from cluster
-    public byte[] makeRecoveryReadRequest(String filePath, int serverIdx) {
+    // the returned buffer is a read-only view of the response, not a copy
+    public ByteBuffer makeRecoveryReadRequest(String filePath, int serverIdx) {
         System.out.print("makeRecoveryReadRequest: " + filePath + " " + serverIdx + "\n");
         if (!recoveryConnectionEstablished[serverIdx])
             initRecoveryChannelsAndStubs(serverIdx);
         // Perform RPC calls using the stub
         RecoveryReadRequest request = RecoveryReadRequest.newBuilder().setChunkFilePath(filePath).build();
-        RecoveryReadResponse response = stubs[serverIdx].recoveryRead(request);
-        return response.getChunkFileData().toByteArray();
+        RecoveryReadResponse response;
+        try {
+            response = stubs[serverIdx].recoveryRead(request);
+        } catch (StatusRuntimeException e) {
+            // the chunkserver does not have the chunk or could not read it
+            System.out.println("Recovery read of " + filePath + " failed: " + e.getStatus());
+            return null;
+        }
+        return response.getChunkFileData().asReadOnlyByteBuffer();
     }
 
     // Master writes recovered chunk file data to recovered chunkservers
-    public boolean makeRecoveryWriteRequest(String filePath, byte[] chunkFileData, int serverIdx) {
+    public boolean makeRecoveryWriteRequest(String filePath, ByteBuffer chunkFileData, int serverIdx) {
         if (!recoveryConnectionEstablished[serverIdx])
             initRecoveryChannelsAndStubs(serverIdx);
         // Perform RPC calls using the stub
         System.out.println("makeRecoveryWriteRequest: " + filePath);
         RecoveryWriteRequest request = RecoveryWriteRequest.newBuilder().setChunkFilePath(filePath)
-                .setChunkFileData(ByteString.copyFrom(chunkFileData)).build();
+                .setChunkFileData(UnsafeByteOperations.unsafeWrap(chunkFileData)).build();
         RecoveryWriteResponse response = stubs[serverIdx].recoveryWrite(request);
         System.out.println("Response from server: " + response.getRecoveryWriteSuccess());
         return response.getRecoveryWriteSuccess();
@@ -809,7 +953,7 @@ public class MasterImpl extends edu.cmu.reedsolomonfs.server.MasterServiceGrpc.M
                     continue;
                 // Create the new filename with the updated number
                 String curChunkFilePath = filePathWithDash + (chunkGroupStartIdx + i);
-                byte[] curChunkData = makeRecoveryReadRequest(curChunkFilePath, i);
+                ByteBuffer curChunkData = makeRecoveryReadRequest(curChunkFilePath, i);
                 if (curChunkData == null) {
                     chunkserversPresent[i] = false;
                     offlineServerIndicesDuringRecovery.add(i);
@@ -821,11 +965,14 @@ public class MasterImpl extends edu.cmu.reedsolomonfs.server.MasterServiceGrpc.M
                 recoveryMachine.addChunkserverDisksData(i, curChunkData);
             }
 
-            // recover lost chunk file in current group
-            recoveryMachine.recoverChunkserverDiskData();
+            // recover only the lost chunk files of the relaunched servers in current group
+            boolean[] chunkserversWanted = new boolean[ConfigVariables.TOTAL_SHARD_COUNT];
+            for (Integer offlineServerIdx : offlineServerIndices)
+                chunkserversWanted[offlineServerIdx] = true;
+            recoveryMachine.recoverChunkserverDiskData(chunkserversWanted);
 
             for (Integer offlineServerIdx : offlineServerIndices) {
-                byte[] recoveredChunkData = recoveryMachine.retrieveRecoveredDiskData(offlineServerIdx);
+                ByteBuffer recoveredChunkData = recoveryMachine.retrieveRecoveredDiskData(offlineServerIdx);
                 String recoveredChunkFilePath = "./ClientClusterCommTestFiles/Disks/chunkserver-" + offlineServerIdx
                         + "/" + filePath + "-" + (chunkGroupStartIdx + offlineServerIdx);
                 System.out.println(
@@ -844,6 +991,62 @@ public class MasterImpl extends edu.cmu.reedsolomonfs.server.MasterServiceGrpc.M
 
     }
 
+    /**
+     * Queue the rebuild of chunks a live chunkserver reported missing. A chunk
+     * that cannot be rebuilt yet, e.g. because the other servers have not
+     * applied its commit, is reported again by the next heartbeat.
+     */
+    private void repairMissingChunks(int serverIdx, List<String> chunkFileNames) {
+        Set<String> repairing = repairingChunks.computeIfAbsent(serverIdx, k -> Sets.newConcurrentHashSet());
+        for (String chunkFileName : chunkFileNames) {
+            if (!repairing.add(chunkFileName))
+                continue;
+            chunkRepairExecutor.execute(() -> {
+                try {
+                    boolean repaired = repairChunk(serverIdx, chunkFileName);
+                    System.out.println("Repair of " + chunkFileName + " on chunkserver " + serverIdx + ": "
+                            + repaired);
+                } catch (RuntimeException e) {
+                    System.out.println("Repair of " + chunkFileName + " on chunkserver " + serverIdx
+                            + " failed: " + e.getMessage());
+                } finally {
+                    repairing.remove(chunkFileName);
+                }
+            });
+        }
+    }
+
+    /**
+     * Rebuild one chunk of a chunkserver from the chunks of its stripe on the
+     * other servers and write it back
+     *
+     * @return whether the chunk was written back
+     */
+    private boolean repairChunk(int serverIdx, String chunkFileName) {
+        int lastIndex = chunkFileName.lastIndexOf("-");
+        if (lastIndex == -1 || lastIndex >= chunkFileName.length() - 1)
+            throw new IllegalArgumentException("The naming of file " + chunkFileName + " has some problems");
+        int chunkIdx = Integer.parseInt(chunkFileName.substring(lastIndex + 1));
+        int chunkGroupStartIdx = chunkIdx / ConfigVariables.TOTAL_SHARD_COUNT * ConfigVariables.TOTAL_SHARD_COUNT;
+        String filePathWithDash = chunkFileName.substring(0, lastIndex + 1);
+
+        ChunkserverDiskRecoveryMachine recoveryMachine = new ChunkserverDiskRecoveryMachine();
+        int presentCnt = 0;
+        for (int i = 0; i < ConfigVariables.TOTAL_SHARD_COUNT && presentCnt < ConfigVariables.DATA_SHARD_COUNT; i++) {
+            if (i == serverIdx)
+                continue;
+            ByteBuffer chunkData = makeRecoveryReadRequest(filePathWithDash + (chunkGroupStartIdx + i), i);
+            if (chunkData == null)
+                continue;
+            recoveryMachine.addChunkserverDisksData(i, chunkData);
+            presentCnt++;
+        }
+        if (presentCnt < ConfigVariables.DATA_SHARD_COUNT)
+            return false;
+        return makeRecoveryWriteRequest(chunkFileName, recoveryMachine.retrieveRecoveredDiskData(serverIdx),
+                serverIdx);
+    }
+
     private String[] getChunkserverChunkFilePathsByMetadata() {
         // init filename string array with dynamic size
         ArrayList<String> fileNames = new ArrayList<String>();
@@ -922,22 +1125,28 @@ public class MasterImpl extends edu.cmu.reedsolomonfs.server.MasterServiceGrpc.M
         }
     }
 
-    public void updateSecretKey(final CliClientServiceImpl cliClientService, String secretKey)
+    /**
+     * Send a new key to the chunkservers, and sign tokens with it once they
+     * applied it
+     */
+    public void updateSecretKey(final CliClientServiceImpl cliClientService, String newSecretKey)
             throws RemotingException, InterruptedException {
-        System.out.println("master send Updating secret key request to chunkserver " + secretKey);
+        System.out.println("master send Updating secret key request to chunkserver " + newSecretKey);
         final int n = 10000;
         final CountDownLatch latch = new CountDownLatch(n);
         // Pass padded file size
-        UpdateSecretKeyRequest request = packUpdateSecretKeyRequest();
+        UpdateSecretKeyRequest request = packUpdateSecretKeyRequest(newSecretKey);
         System.out.println("updateSecretKey request: " + request);
         final PeerId leader = RouteTable.getInstance().selectLeader(groupId);
         System.out.println("updateSecretKey request leader: " + leader);
+        if (leader == null)
+            throw new IllegalStateException("No chunkserver leader to update the secret key on");
         updateSecretKeyRequest(cliClientService, leader, request, latch);
     }
 
-    private static UpdateSecretKeyRequest packUpdateSecretKeyRequest() {
+    private static UpdateSecretKeyRequest packUpdateSecretKeyRequest(String newSecretKey) {
         UpdateSecretKeyRequest.Builder requestBuilder = UpdateSecretKeyRequest.newBuilder();
-        requestBuilder.setSecretKey(secretKey);
+        requestBuilder.setSecretKey(newSecretKey);
         return requestBuilder.build();
     }
 
@@ -952,6 +1161,8 @@ public class MasterImpl extends edu.cmu.reedsolomonfs.server.MasterServiceGrpc.M
                 @Override
                 public void complete(Object result, Throwable err) {
                     if (err == null) {
+                        if (((ValueResponse) result).getSuccess())
+                            secretKey = request.getSecretKey();
                         latch.countDown();
                         System.out.println("write request result:" + result);
                     } else {
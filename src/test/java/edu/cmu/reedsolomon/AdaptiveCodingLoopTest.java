@@ -0,0 +1,119 @@
+package edu.cmu.reedsolomon;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit test for picking a coding loop per byteCount band, and for storing
+ * the calibration the loops are picked by.
+ */
+public class AdaptiveCodingLoopTest {
+
+    private static final String KEY = "4+2.scalar";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path file;
+    private String previousFile;
+
+    @Before
+    public void setUp() {
+        file = folder.getRoot().toPath().resolve("coding-loops.properties");
+        previousFile = System.setProperty("reedsolomon.calibration.file", file.toString());
+    }
+
+    @After
+    public void tearDown() {
+        if (previousFile == null)
+            System.clearProperty("reedsolomon.calibration.file");
+        else
+            System.setProperty("reedsolomon.calibration.file", previousFile);
+    }
+
+    private void writeCalibration(String fingerprint, String... bandLoops) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("fingerprint", fingerprint);
+        for (int band = 0; band < bandLoops.length; band++)
+            properties.setProperty(KEY + ".band." + band, bandLoops[band]);
+        try (OutputStream out = Files.newOutputStream(file)) {
+            properties.store(out, null);
+        }
+    }
+
+    @Test
+    public void testBands() {
+        assertEquals(0, AdaptiveCodingLoop.band(0));
+        assertEquals(0, AdaptiveCodingLoop.band(4 * 1024 - 1));
+        assertEquals(1, AdaptiveCodingLoop.band(4 * 1024));
+        assertEquals(1, AdaptiveCodingLoop.band(64 * 1024 - 1));
+        assertEquals(2, AdaptiveCodingLoop.band(64 * 1024));
+        assertEquals(2, AdaptiveCodingLoop.band(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void testLoadsStoredCalibration() throws IOException {
+        writeCalibration(AdaptiveCodingLoop.fingerprint(), "InputOutputByteTableCodingLoop",
+                "ByteOutputInputTableCodingLoop", "OutputInputByteExpCodingLoop");
+        AdaptiveCodingLoop loop = AdaptiveCodingLoop.load(KEY, 4, 2, false);
+        assertSame(InputOutputByteTableCodingLoop.class, loop.loopFor(1000).getClass());
+        assertSame(ByteOutputInputTableCodingLoop.class, loop.loopFor(4 * 1024).getClass());
+        assertSame(OutputInputByteExpCodingLoop.class, loop.loopFor(1 << 20).getClass());
+    }
+
+    @Test
+    public void testRecalibratesOnAnotherHostOrUnknownLoop() throws IOException {
+        writeCalibration("another host", "InputOutputByteTableCodingLoop", "InputOutputByteTableCodingLoop",
+                "InputOutputByteTableCodingLoop");
+        checkRecalibrated();
+
+        writeCalibration(AdaptiveCodingLoop.fingerprint(), "InputOutputByteTableCodingLoop", "NoSuchCodingLoop",
+                "InputOutputByteTableCodingLoop");
+        checkRecalibrated();
+
+        Files.write(file, new byte[] { '\\', 'u', 'x' });
+        checkRecalibrated();
+    }
+
+    /**
+     * Every band gets a loop, and unless the budget ran out and left the file
+     * as it was, the file is replaced by the calibration for this host with
+     * no temporary file left behind
+     */
+    private void checkRecalibrated() throws IOException {
+        byte[] before = Files.readAllBytes(file);
+        AdaptiveCodingLoop loop = AdaptiveCodingLoop.load(KEY, 4, 2, false);
+        int[] byteCounts = { 1000, 4 * 1024, 1 << 20 };
+        for (int byteCount : byteCounts)
+            assertNotNull(loop.loopFor(byteCount));
+        try (Stream<Path> files = Files.list(folder.getRoot().toPath())) {
+            assertEquals(1, files.count());
+        }
+        if (Arrays.equals(before, Files.readAllBytes(file)))
+            return;
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            properties.load(in);
+        }
+        assertEquals(AdaptiveCodingLoop.fingerprint(), properties.getProperty("fingerprint"));
+        for (int band = 0; band < byteCounts.length; band++)
+            assertEquals(loop.loopFor(byteCounts[band]).getClass().getSimpleName(),
+                    properties.getProperty(KEY + ".band." + band));
+    }
+}
@@ -0,0 +1,103 @@
+package edu.cmu.reedsolomon;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Unit test for the decode matrix cache of the codec: it decodes exactly as
+ * inverting the matrix on every call does, and counts its hits and misses.
+ */
+public class DecodeMatrixCacheTest {
+
+    private static final int BLOCK_SIZE = 1000;
+
+    private static byte[][] encodedShards(ReedSolomon codec, Random random) {
+        byte[][] shards = new byte[codec.getTotalShardCount()][BLOCK_SIZE];
+        for (int i = 0; i < codec.getDataShardCount(); i++)
+            random.nextBytes(shards[i]);
+        codec.encodeParity(shards, 0, BLOCK_SIZE);
+        return shards;
+    }
+
+    /**
+     * Decode the shards with the missing ones zeroed
+     *
+     * @return the decoded shards
+     */
+    private static byte[][] decode(ReedSolomon codec, byte[][] shards, boolean[] shardPresent) {
+        byte[][] copy = new byte[shards.length][];
+        for (int i = 0; i < shards.length; i++)
+            copy[i] = shardPresent[i] ? shards[i].clone() : new byte[BLOCK_SIZE];
+        codec.decodeMissing(copy, shardPresent.clone(), 0, BLOCK_SIZE);
+        return copy;
+    }
+
+    @Test
+    public void testCachedDecodeMatchesUncached() {
+        ReedSolomon cached = new ReedSolomon(4, 2, new InputOutputByteTableCodingLoop(), true);
+        ReedSolomon uncached = new ReedSolomon(4, 2, new InputOutputByteTableCodingLoop(), false);
+        byte[][] shards = encodedShards(cached, new Random(1));
+        // every pattern of one or two missing shards
+        for (int first = 0; first < 6; first++) {
+            for (int second = first; second < 6; second++) {
+                boolean[] shardPresent = new boolean[6];
+                Arrays.fill(shardPresent, true);
+                shardPresent[first] = false;
+                shardPresent[second] = false;
+                byte[][] fromCache = decode(cached, shards, shardPresent);
+                byte[][] inverted = decode(uncached, shards, shardPresent);
+                for (int i = 0; i < shards.length; i++) {
+                    assertArrayEquals(inverted[i], fromCache[i]);
+                    assertArrayEquals(shards[i], fromCache[i]);
+                }
+            }
+        }
+        // 4+2 has few enough patterns to build them all up front
+        assertTrue(cached.getDecodeMatrixCacheHits() > 0);
+        assertEquals(0, cached.getDecodeMatrixCacheMisses());
+        assertEquals(1.0, cached.getDecodeMatrixCacheHitRate(), 0);
+        assertEquals(0, uncached.getDecodeMatrixCacheHits());
+        assertEquals(0, uncached.getDecodeMatrixCacheMisses());
+    }
+
+    @Test
+    public void testHitAndMissCounts() {
+        // too many patterns to build up front, so the cache fills as they show up
+        ReedSolomon codec = new ReedSolomon(20, 10, new InputOutputByteTableCodingLoop(), true);
+        byte[][] shards = encodedShards(codec, new Random(2));
+        assertEquals(0, codec.getDecodeMatrixCacheHitRate(), 0);
+
+        boolean[] shardPresent = new boolean[30];
+        Arrays.fill(shardPresent, true);
+        shardPresent[3] = false;
+        shardPresent[25] = false;
+        assertArrayEquals(shards[3], decode(codec, shards, shardPresent)[3]);
+        assertEquals(0, codec.getDecodeMatrixCacheHits());
+        assertEquals(1, codec.getDecodeMatrixCacheMisses());
+        assertArrayEquals(shards[3], decode(codec, shards, shardPresent)[3]);
+        assertEquals(1, codec.getDecodeMatrixCacheHits());
+        assertEquals(1, codec.getDecodeMatrixCacheMisses());
+
+        // another pattern decoding from the same shards shares the matrix
+        shardPresent[25] = true;
+        shardPresent[29] = false;
+        decode(codec, shards, shardPresent);
+        assertEquals(2, codec.getDecodeMatrixCacheHits());
+        // one decoding from others does not
+        shardPresent[0] = false;
+        assertArrayEquals(shards[0], decode(codec, shards, shardPresent)[0]);
+        assertEquals(2, codec.getDecodeMatrixCacheMisses());
+        assertEquals(0.5, codec.getDecodeMatrixCacheHitRate(), 0);
+
+        // decodes with every shard present do not use a matrix
+        Arrays.fill(shardPresent, true);
+        decode(codec, shards, shardPresent);
+        assertEquals(4, codec.getDecodeMatrixCacheHits() + codec.getDecodeMatrixCacheMisses());
+    }
+}
@@ -0,0 +1,93 @@
+package edu.cmu.reedsolomonfs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.cmu.reedsolomonfs.server.Chunkserver.ChunkMetadataStore;
+import edu.cmu.reedsolomonfs.server.Chunkserver.MemoryChunkMetadataStore;
+import edu.cmu.reedsolomonfs.server.Chunkserver.RocksChunkMetadataStore;
+
+/**
+ * Unit test for the chunk metadata of a chunkserver, in memory and in RocksDB.
+ */
+public class ChunkMetadataStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private void checkChunkOrderAndPrefixes(ChunkMetadataStore store) throws IOException {
+        for (int chunkIdx : new int[] { 10, 4, 16, 22 })
+            store.addChunk("/a.0-" + chunkIdx);
+        store.addChunk("/a/b.0-4");
+        store.addChunk("/ab.0-4");
+        assertFalse(store.addChunk("/a"));
+
+        // chunk 10 sorts after chunk 4, and other files sharing the prefix are left out
+        assertEquals(Arrays.asList(4, 10, 16, 22), Arrays.asList(store.getChunks("/a").keySet().toArray()));
+        assertEquals("/a.0-10", store.getChunks("/a").get(10));
+        assertEquals(3, store.getFileNameToChunks().size());
+
+        List<String> removed = store.removeFile("/a");
+        assertEquals(Arrays.asList("/a.0-4", "/a.0-10", "/a.0-16", "/a.0-22"), removed);
+        assertTrue(store.getChunks("/a").isEmpty());
+        assertEquals(1, store.getChunks("/a/b").size());
+
+        // chunk files moved in from the old layout are named without the leading slash
+        store.reconcile(new HashSet<>(Arrays.asList("/ab.0-4", "c.0-3")));
+        Map<String, List<String>> fileNameToChunks = store.getFileNameToChunks();
+        assertEquals(2, fileNameToChunks.size());
+        assertEquals(Arrays.asList("c.0-3"), fileNameToChunks.get("/c"));
+    }
+
+    private void checkChunkRanges(ChunkMetadataStore store) throws IOException {
+        for (int chunkIdx = 0; chunkIdx < 18; chunkIdx++)
+            store.addChunk("/r.5-" + chunkIdx);
+        for (int chunkIdx = 0; chunkIdx < 12; chunkIdx++)
+            store.addChunk("/r.7-" + chunkIdx);
+        store.addChunk("/r/s.9-0");
+        store.addChunk("/s.9-0");
+
+        // only the newest version, and only the chunks in the range
+        assertEquals(Arrays.asList(6, 7, 8, 9, 10, 11),
+                Arrays.asList(store.getChunks("/r", 6, 11).keySet().toArray()));
+        assertEquals("/r.7-6", store.getChunks("/r", 6, 11).get(6));
+        assertEquals(Arrays.asList(10, 11), Arrays.asList(store.getChunks("/r", 10, 17).keySet().toArray()));
+        assertEquals(12, store.getChunks("/r", 0, Integer.MAX_VALUE).size());
+        assertTrue(store.getChunks("/r", 12, 17).isEmpty());
+        assertTrue(store.getChunks("/q", 0, Integer.MAX_VALUE).isEmpty());
+        assertEquals("/s.9-0", store.getChunks("/s", 0, 0).get(0));
+    }
+
+    @Test
+    public void testMemoryStore() throws IOException {
+        checkChunkOrderAndPrefixes(new MemoryChunkMetadataStore());
+        checkChunkRanges(new MemoryChunkMetadataStore());
+    }
+
+    @Test
+    public void testRocksStoreSurvivesReopen() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        try (ChunkMetadataStore store = new RocksChunkMetadataStore(directory)) {
+            checkChunkOrderAndPrefixes(store);
+        }
+        try (ChunkMetadataStore store = new RocksChunkMetadataStore(directory)) {
+            assertEquals("/ab.0-4", store.getChunks("/ab").get(4));
+            assertEquals(2, store.getFileNameToChunks().size());
+        }
+        try (ChunkMetadataStore store = new RocksChunkMetadataStore(folder.newFolder().toPath())) {
+            checkChunkRanges(store);
+        }
+    }
+}
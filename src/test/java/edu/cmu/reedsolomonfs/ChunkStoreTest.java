@@ -0,0 +1,185 @@
+package edu.cmu.reedsolomonfs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.cmu.reedsolomonfs.server.Chunkserver.ChunkStore;
+
+/**
+ * Unit test for the log-structured chunk store of a chunkserver.
+ */
+public class ChunkStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Random random = new Random(1);
+
+    private byte[] randomChunk() {
+        byte[] chunk = new byte[ConfigVariables.BLOCK_SIZE];
+        random.nextBytes(chunk);
+        return chunk;
+    }
+
+    @Test
+    public void testPutGetDelete() throws IOException {
+        try (ChunkStore store = new ChunkStore(folder.getRoot().toPath())) {
+            byte[] chunk = randomChunk();
+            store.put("/a/b.0-0", ByteBuffer.wrap(chunk));
+            assertArrayEquals(chunk, store.get("/a/b.0-0"));
+
+            byte[] overwritten = randomChunk();
+            store.put("/a/b.0-0", ByteBuffer.wrap(overwritten));
+            assertArrayEquals(overwritten, store.get("/a/b.0-0"));
+
+            store.delete("/a/b.0-0");
+            assertFalse(store.contains("/a/b.0-0"));
+            assertNull(store.get("/a/b.0-0"));
+        }
+    }
+
+    @Test
+    public void testReopenReplaysLog() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        byte[][] chunks = new byte[6][];
+        String[] names = new String[chunks.length];
+        ByteBuffer[] buffers = new ByteBuffer[chunks.length];
+        try (ChunkStore store = new ChunkStore(directory)) {
+            for (int i = 0; i < chunks.length; i++) {
+                chunks[i] = randomChunk();
+                names[i] = "/f.0-" + i;
+                buffers[i] = ByteBuffer.wrap(chunks[i]);
+            }
+            store.put(names, buffers);
+            store.delete(names[5]);
+        }
+        try (ChunkStore store = new ChunkStore(directory)) {
+            assertEquals(5, store.chunkNames().size());
+            for (int i = 0; i < 5; i++)
+                assertArrayEquals(chunks[i], store.get(names[i]));
+            assertNull(store.get(names[5]));
+        }
+    }
+
+    @Test
+    public void testTornTailIsTruncated() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        byte[] chunk = randomChunk();
+        try (ChunkStore store = new ChunkStore(directory)) {
+            store.put("/f.0-0", ByteBuffer.wrap(chunk));
+            store.put("/f.0-1", ByteBuffer.wrap(randomChunk()));
+        }
+        // cut the last record short, as a crash in the middle of an append would
+        Path segment = directory.resolve("segment-00000001.log");
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            file.setLength(file.length() - 10);
+        }
+        try (ChunkStore store = new ChunkStore(directory)) {
+            assertArrayEquals(chunk, store.get("/f.0-0"));
+            assertFalse(store.contains("/f.0-1"));
+            store.put("/f.0-2", ByteBuffer.wrap(chunk));
+        }
+        try (ChunkStore store = new ChunkStore(directory)) {
+            assertArrayEquals(chunk, store.get("/f.0-2"));
+        }
+    }
+
+    @Test
+    public void testCompactionKeepsLiveChunks() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        // a few chunks per segment, so overwrites fill several of them
+        long segmentSize = 4 * ConfigVariables.BLOCK_SIZE;
+        byte[][] latest = new byte[4][];
+        try (ChunkStore store = new ChunkStore(directory, segmentSize)) {
+            for (int round = 0; round < 5; round++) {
+                for (int i = 0; i < latest.length; i++) {
+                    latest[i] = randomChunk();
+                    store.put("/f.0-" + i, ByteBuffer.wrap(latest[i]));
+                }
+            }
+            store.delete("/f.0-3");
+            store.compact();
+            long[] byteCounts = store.getByteCounts();
+            assertTrue(byteCounts[1] < byteCounts[0]);
+            for (int i = 0; i < 3; i++)
+                assertArrayEquals(latest[i], store.get("/f.0-" + i));
+            assertNull(store.get("/f.0-3"));
+        }
+        try (ChunkStore store = new ChunkStore(directory, segmentSize)) {
+            for (int i = 0; i < 3; i++)
+                assertArrayEquals(latest[i], store.get("/f.0-" + i));
+            assertNull(store.get("/f.0-3"));
+        }
+    }
+
+    @Test
+    public void testIndexCheckpointAndTail() throws IOException {
+        Path directory = folder.newFolder("store").toPath();
+        Path crashed = folder.newFolder("crashed").toPath();
+        byte[] first = randomChunk();
+        byte[] second = randomChunk();
+        try (ChunkStore store = new ChunkStore(directory)) {
+            store.put("/f.0-0", ByteBuffer.wrap(first));
+        }
+        assertTrue(Files.exists(directory.resolve("chunk-index")));
+        try (ChunkStore store = new ChunkStore(directory)) {
+            assertArrayEquals(first, store.get("/f.0-0"));
+            store.put("/f.0-1", ByteBuffer.wrap(second));
+            store.delete("/f.0-0");
+            // what is on disk if the server stopped now: records after the checkpoint
+            for (String fileName : new String[] { "chunk-index", "segment-00000001.log" })
+                Files.copy(directory.resolve(fileName), crashed.resolve(fileName));
+        }
+        try (ChunkStore store = new ChunkStore(crashed)) {
+            assertNull(store.get("/f.0-0"));
+            assertArrayEquals(second, store.get("/f.0-1"));
+        }
+    }
+
+    @Test
+    public void testCorruptIndexIsRebuilt() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        byte[] chunk = randomChunk();
+        try (ChunkStore store = new ChunkStore(directory)) {
+            store.put("/f.0-0", ByteBuffer.wrap(chunk));
+        }
+        Path indexPath = directory.resolve("chunk-index");
+        byte[] checkpoint = Files.readAllBytes(indexPath);
+        checkpoint[checkpoint.length / 2] ^= 1;
+        Files.write(indexPath, checkpoint);
+        try (ChunkStore store = new ChunkStore(directory)) {
+            assertArrayEquals(chunk, store.get("/f.0-0"));
+            assertEquals(1, store.chunkNames().size());
+        }
+    }
+
+    @Test
+    public void testLegacyChunkFilesAreMovedIn() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        byte[] chunk = randomChunk();
+        Files.createDirectories(directory.resolve("a"));
+        Files.write(directory.resolve("a/b.0-0"), chunk);
+        Files.write(directory.resolve("a/notes.txt"), chunk);
+        try (ChunkStore store = new ChunkStore(directory)) {
+            assertArrayEquals(chunk, store.get("a/b.0-0"));
+            assertNull(store.get("a/notes.txt"));
+            assertEquals(1, store.chunkNames().size());
+        }
+        assertFalse(Files.exists(directory.resolve("a/b.0-0")));
+        assertTrue(Files.exists(directory.resolve("a/notes.txt")));
+    }
+}
@@ -0,0 +1,82 @@
+package edu.cmu.reedsolomonfs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.codahale.metrics.MetricRegistry;
+
+import edu.cmu.reedsolomonfs.server.Chunkserver.ChunkStore;
+import edu.cmu.reedsolomonfs.server.Chunkserver.ChunkSyncer;
+
+/**
+ * Unit test for the fsync policies of chunk writes.
+ */
+public class ChunkSyncerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private long writeChunks(ChunkSyncer.Mode mode, long windowMillis, long windowBytes, MetricRegistry registry)
+            throws Exception {
+        try (ChunkStore store = new ChunkStore(folder.newFolder().toPath());
+                ChunkSyncer syncer = new ChunkSyncer("disk", store, mode, windowMillis, windowBytes, registry)) {
+            List<CompletableFuture<Void>> writes = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                store.put("/f.0-" + i, ByteBuffer.wrap(new byte[ConfigVariables.BLOCK_SIZE]));
+                writes.add(syncer.written());
+            }
+            CompletableFuture.allOf(writes.toArray(new CompletableFuture[0])).get();
+            return registry.timer("disk.fsync-latency").getCount();
+        }
+    }
+
+    @Test
+    public void testNoneNeverSyncs() throws Exception {
+        assertEquals(0, writeChunks(ChunkSyncer.Mode.NONE, 0, 0, new MetricRegistry()));
+    }
+
+    @Test
+    public void testPerWriteSyncsEveryWrite() throws Exception {
+        assertEquals(100, writeChunks(ChunkSyncer.Mode.PER_WRITE, 0, 0, new MetricRegistry()));
+    }
+
+    @Test
+    public void testGroupCommitBatchesWrites() throws Exception {
+        MetricRegistry registry = new MetricRegistry();
+        // the writes come faster than the time window, so every batch but the
+        // last is ended by the byte window of ten chunk records
+        long fsyncs = writeChunks(ChunkSyncer.Mode.GROUP_COMMIT, 1000, 10 * ConfigVariables.BLOCK_SIZE, registry);
+        assertTrue("fsyncs " + fsyncs, fsyncs >= 1 && fsyncs <= 11);
+        assertEquals(100, sum(registry.histogram("disk.sync-batch-writes").getSnapshot().getValues()));
+    }
+
+    @Test
+    public void testGroupCommitTimeWindow() throws Exception {
+        MetricRegistry registry = new MetricRegistry();
+        // one write never fills the byte window, the time window commits it
+        try (ChunkStore store = new ChunkStore(folder.newFolder().toPath());
+                ChunkSyncer syncer = new ChunkSyncer("disk", store, ChunkSyncer.Mode.GROUP_COMMIT, 10,
+                        Long.MAX_VALUE, registry)) {
+            store.put("/f.0-0", ByteBuffer.wrap(new byte[ConfigVariables.BLOCK_SIZE]));
+            syncer.written().get();
+        }
+        assertEquals(1, registry.timer("disk.fsync-latency").getCount());
+    }
+
+    private static long sum(long[] values) {
+        long sum = 0;
+        for (long value : values)
+            sum += value;
+        return sum;
+    }
+}
@@ -0,0 +1,141 @@
+package edu.cmu.reedsolomonfs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.alipay.remoting.exception.CodecException;
+import com.alipay.remoting.serialization.SerializerManager;
+
+import edu.cmu.reedsolomonfs.datatype.FileMetadata;
+import edu.cmu.reedsolomonfs.datatype.Node;
+import edu.cmu.reedsolomonfs.server.Chunkserver.ChunkserverOperation;
+import edu.cmu.reedsolomonfs.server.Chunkserver.ChunkserverOperationCodec;
+
+/**
+ * Unit test for the binary log entry format of chunkserver operations.
+ */
+public class ChunkserverOperationCodecTest {
+
+    private static FileMetadata metadata() {
+        List<Node> nodes = Arrays.asList(new Node(0, 0, true, 1000), new Node(1, 1, true, 24),
+                new Node(4, 4, false, 1000));
+        return new FileMetadata("/dir/f", 1024, 0, nodes, 5);
+    }
+
+    private static byte[][] shards() {
+        byte[][] shards = new byte[ConfigVariables.DATA_SHARD_COUNT + ConfigVariables.PARITY_SHARD_COUNT][];
+        for (int i = 0; i < shards.length; i++) {
+            if (i == 2)
+                continue;
+            shards[i] = new byte[ConfigVariables.BLOCK_SIZE];
+            Arrays.fill(shards[i], (byte) i);
+        }
+        return shards;
+    }
+
+    private static ChunkserverOperation roundTrip(ChunkserverOperation op) throws CodecException {
+        ChunkserverOperation decoded = ChunkserverOperationCodec.decode(ChunkserverOperationCodec.encode(op));
+        assertSameOperation(op, decoded);
+        return decoded;
+    }
+
+    private static void assertSameOperation(ChunkserverOperation expected, ChunkserverOperation actual) {
+        assertEquals(expected.getOp(), actual.getOp());
+        assertEquals(expected.getDelta(), actual.getDelta());
+        assertArrayEquals(expected.getBytes(), actual.getBytes());
+        assertEquals(expected.getShardCount(), actual.getShardCount());
+        for (int i = 0; i < expected.getShardCount(); i++)
+            assertEquals(expected.getShard(i), actual.getShard(i));
+        if (expected.getMetadata() == null) {
+            assertNull(actual.getMetadata());
+        } else {
+            FileMetadata metadata = actual.getMetadata();
+            assertEquals(expected.getMetadata().getFilePath(), metadata.getFilePath());
+            assertEquals(expected.getMetadata().getFileSize(), metadata.getFileSize());
+            assertEquals(expected.getMetadata().getFileVersion(), metadata.getFileVersion());
+            assertEquals(expected.getMetadata().getLastChunkIdx(), metadata.getLastChunkIdx());
+            assertEquals(expected.getMetadata().getNodes().size(), metadata.getNodes().size());
+            for (int i = 0; i < metadata.getNodes().size(); i++) {
+                Node node = expected.getMetadata().getNodes().get(i);
+                assertEquals(node.getChunkIdx(), metadata.getNodes().get(i).getChunkIdx());
+                assertEquals(node.getServerId(), metadata.getNodes().get(i).getServerId());
+                assertEquals(node.getIsData(), metadata.getNodes().get(i).getIsData());
+                assertEquals(node.getDataSize(), metadata.getNodes().get(i).getDataSize());
+            }
+        }
+        assertEquals(expected.getFilePath(), actual.getFilePath());
+        assertArrayEquals(expected.getShardChecksums(), actual.getShardChecksums());
+        assertEquals(expected.getBlockIdx(), actual.getBlockIdx());
+        assertEquals(expected.getWriteId(), actual.getWriteId());
+    }
+
+    @Test
+    public void testRoundTripEveryOperation() throws CodecException {
+        long[] checksums = { 1L, -2L, Long.MAX_VALUE, 0L, 5L, 6L };
+        roundTrip(ChunkserverOperation.createGet());
+        roundTrip(ChunkserverOperation.createIncrement(-42));
+        roundTrip(ChunkserverOperation.createSetBytesValue(new byte[] { 1, 2, 3 }));
+        roundTrip(ChunkserverOperation.createWrite(shards(), metadata()));
+        roundTrip(ChunkserverOperation.createReadBytes());
+        roundTrip(ChunkserverOperation.createDelete("/dir/f"));
+        roundTrip(ChunkserverOperation.updateSecretKey("secret"));
+        ChunkserverOperation commit = roundTrip(ChunkserverOperation.createCommit(metadata(), checksums,
+                "0f8fad5b-d9cb-469f-a165-70867728950e"));
+        assertEquals("0f8fad5b-d9cb-469f-a165-70867728950e", commit.getWriteId());
+        roundTrip(ChunkserverOperation.createCommit(metadata(), checksums, null));
+        roundTrip(ChunkserverOperation.createOverwrite("/dir/f", 3, shards(), checksums));
+    }
+
+    @Test
+    public void testDecodeDirectBuffer() throws CodecException {
+        ChunkserverOperation op = ChunkserverOperation.createCommit(metadata(), new long[] { 7L }, "id-1");
+        ByteBuffer encoded = ChunkserverOperationCodec.encode(op);
+        ByteBuffer direct = ByteBuffer.allocateDirect(encoded.remaining());
+        direct.put(encoded).flip();
+        assertSameOperation(op, ChunkserverOperationCodec.decode(direct));
+    }
+
+    @Test
+    public void testDecodeHessian2Entry() throws CodecException {
+        ChunkserverOperation op = ChunkserverOperation.createWrite(shards(), metadata());
+        byte[] entry = SerializerManager.getSerializer(SerializerManager.Hessian2).serialize(op);
+        assertSameOperation(op, ChunkserverOperationCodec.decode(ByteBuffer.wrap(entry)));
+    }
+
+    @Test
+    public void testCorruptAndTruncatedEntries() {
+        ByteBuffer encoded = ChunkserverOperationCodec.encode(
+                ChunkserverOperation.createCommit(metadata(), new long[] { 7L }, "id-1"));
+
+        ByteBuffer badVersion = ByteBuffer.allocate(encoded.remaining()).put(encoded.duplicate());
+        badVersion.put(2, (byte) (ChunkserverOperationCodec.VERSION + 1)).flip();
+        assertUndecodable(badVersion);
+
+        for (int length = 5; length < encoded.remaining(); length += 7) {
+            ByteBuffer truncated = encoded.duplicate();
+            truncated.limit(length);
+            assertUndecodable(truncated);
+        }
+
+        // a string length running past the end of the entry
+        ByteBuffer badLength = ChunkserverOperationCodec.encode(ChunkserverOperation.createDelete("/dir/f"));
+        badLength.putInt(5, 1 << 20);
+        assertUndecodable(badLength);
+    }
+
+    private static void assertUndecodable(ByteBuffer entry) {
+        try {
+            ChunkserverOperationCodec.decode(entry);
+            fail("Decoded a malformed log entry");
+        } catch (CodecException expected) {
+        }
+    }
+}
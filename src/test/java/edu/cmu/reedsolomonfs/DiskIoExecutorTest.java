@@ -0,0 +1,59 @@
+package edu.cmu.reedsolomonfs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.Test;
+
+import com.codahale.metrics.MetricRegistry;
+
+import edu.cmu.reedsolomonfs.server.Chunkserver.DiskIoExecutor;
+
+/**
+ * Unit test for the per-disk executor of chunk writes.
+ */
+public class DiskIoExecutorTest {
+
+    @Test
+    public void testWritesRunInOrder() throws Exception {
+        MetricRegistry registry = new MetricRegistry();
+        List<Integer> order = new ArrayList<>();
+        List<CompletableFuture<Void>> writes = new ArrayList<>();
+        try (DiskIoExecutor executor = new DiskIoExecutor("disk", 4, registry)) {
+            // more writes than the queue holds, so submitting blocks on the way
+            for (int i = 0; i < 100; i++) {
+                final int writeIdx = i;
+                writes.add(executor.submit(() -> order.add(writeIdx)));
+            }
+            CompletableFuture.allOf(writes.toArray(new CompletableFuture[0])).get();
+        }
+        for (int i = 0; i < 100; i++)
+            assertEquals(i, (int) order.get(i));
+        assertEquals(100, registry.timer("disk.write-latency").getCount());
+        assertEquals(0, registry.getGauges().get("disk.queue-depth").getValue());
+    }
+
+    @Test
+    public void testFailedWriteFailsItsFuture() throws Exception {
+        try (DiskIoExecutor executor = new DiskIoExecutor("disk", 4, new MetricRegistry())) {
+            CompletableFuture<Void> failed = executor.submit(() -> {
+                throw new IOException("disk full");
+            });
+            try {
+                failed.get();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+            assertTrue(failed.isCompletedExceptionally());
+            // the disk thread goes on with later writes
+            executor.submit(() -> {
+            }).get();
+        }
+    }
+}
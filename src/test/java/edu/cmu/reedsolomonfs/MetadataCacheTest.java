@@ -0,0 +1,105 @@
+package edu.cmu.reedsolomonfs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import edu.cmu.reedsolomonfs.client.MetadataCache;
+import edu.cmu.reedsolomonfs.client.StripeCache;
+import edu.cmu.reedsolomonfs.server.MasterserverOutter.GRPCMetadata;
+import edu.cmu.reedsolomonfs.server.MasterserverOutter.MetadataChangesResponse;
+
+/**
+ * Unit test for the client's copy of the master's file metadata.
+ */
+public class MetadataCacheTest {
+
+    private static GRPCMetadata file(String filePath, long fileVersion) {
+        return GRPCMetadata.newBuilder().setFilePath(filePath).setFileVersion(fileVersion).build();
+    }
+
+    private static MetadataChangesResponse.Builder changes(long epoch) {
+        return MetadataChangesResponse.newBuilder().setEpoch(epoch);
+    }
+
+    @Test
+    public void testChangesAndSnapshotsOutOfOrder() {
+        MetadataCache cache = new MetadataCache();
+        assertTrue(cache.isStale(60000));
+        cache.applySnapshot(Arrays.asList(file("/a", 10), file("/b", 10)), 10);
+        cache.applyChanges(changes(12).addChanged(file("/a", 12)).addDeletedFilePaths("/b").build());
+        assertEquals(12, cache.getEpoch());
+        assertFalse(cache.isStale(60000));
+
+        // refreshes from before the cache's epoch that arrive late are ignored
+        cache.applyChanges(changes(11).addChanged(file("/b", 11)).build());
+        cache.applySnapshot(Arrays.asList(file("/a", 10), file("/b", 10)), 10);
+        assertEquals(12, cache.getEpoch());
+        assertEquals(Long.valueOf(12), cache.getFileVersion("/a"));
+        assertNull(cache.get("/b"));
+        assertEquals(Arrays.asList("/a"), cache.getFilePaths());
+
+        // a newer snapshot replaces everything
+        cache.applySnapshot(Arrays.asList(file("/c", 13)), 13);
+        assertEquals(Arrays.asList("/c"), cache.getFilePaths());
+    }
+
+    @Test
+    public void testFullChangesReplaceTheCache() {
+        MetadataCache cache = new MetadataCache();
+        cache.applySnapshot(Arrays.asList(file("/a", 20), file("/b", 20)), 20);
+        // a restarted master answers with every file, even at an epoch the
+        // cache has moved past
+        cache.applyChanges(changes(5).setFull(true).addChanged(file("/c", 5)).build());
+        assertEquals(5, cache.getEpoch());
+        assertEquals(Arrays.asList("/c"), cache.getFilePaths());
+        assertNull(cache.get("/a"));
+    }
+
+    @Test
+    public void testWrittenFilesHaveNoVersionUntilRefreshed() {
+        MetadataCache cache = new MetadataCache();
+        cache.applySnapshot(Arrays.asList(file("/a", 10), file("/b", 10)), 10);
+        cache.invalidate("/a");
+        assertNull(cache.getFileVersion("/a"));
+        assertNotNull(cache.get("/a"));
+        assertEquals(Long.valueOf(10), cache.getFileVersion("/b"));
+
+        // changes not touching the file leave it unversioned
+        cache.applyChanges(changes(11).addChanged(file("/b", 11)).build());
+        assertNull(cache.getFileVersion("/a"));
+        cache.applyChanges(changes(12).addChanged(file("/a", 12)).build());
+        assertEquals(Long.valueOf(12), cache.getFileVersion("/a"));
+
+        // a snapshot brings every version
+        cache.invalidate("/b");
+        cache.applySnapshot(Arrays.asList(file("/a", 12), file("/b", 13)), 13);
+        assertEquals(Long.valueOf(13), cache.getFileVersion("/b"));
+    }
+
+    @Test
+    public void testNewerVersionHidesCachedStripes() throws InterruptedException {
+        MetadataCache cache = new MetadataCache();
+        StripeCache stripes = new StripeCache(4L * ConfigVariables.FILE_SIZE_MULTIPLE);
+        cache.applySnapshot(Arrays.asList(file("/a", 10)), 10);
+        Long fileVersion = cache.getFileVersion("/a", 60000);
+        stripes.put("/a", fileVersion, 0, new byte[ConfigVariables.FILE_SIZE_MULTIPLE]);
+        assertNotNull(stripes.get("/a", cache.getFileVersion("/a", 60000), 0));
+
+        // another client wrote the file
+        cache.applyChanges(changes(12).addChanged(file("/a", 12)).build());
+        assertEquals(Long.valueOf(12), cache.getFileVersion("/a", 60000));
+        assertNull(stripes.get("/a", cache.getFileVersion("/a", 60000), 0));
+
+        // metadata older than the age allowed gives no version to cache under
+        Thread.sleep(5);
+        assertNull(cache.getFileVersion("/a", 1));
+        assertEquals(Long.valueOf(12), cache.getFileVersion("/a"));
+    }
+}
@@ -1,9 +1,14 @@
 package edu.cmu.reedsolomonfs;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
 
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -12,8 +17,13 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import edu.cmu.reedsolomon.ByteOutputInputVectorCodingLoop;
+import edu.cmu.reedsolomon.InputOutputByteTableCodingLoop;
+import edu.cmu.reedsolomon.ParallelCodingLoop;
+import edu.cmu.reedsolomon.ReedSolomon;
 import edu.cmu.reedsolomonfs.client.ReedSolomonDecoder;
 import edu.cmu.reedsolomonfs.client.ReedSolomonEncoder;
+import edu.cmu.reedsolomonfs.datatype.FileMetadataHelper;
 
 import java.util.Arrays;
 import java.util.Random;
@@ -92,6 +102,284 @@ public class ReedSolomonTest {
         assertTrue(Arrays.equals(encoder.getFileData(), decoder.getFileData()));
     }
 
+    @Test
+    public void testVectorCodingLoopMatchesTableLoop() {
+        assumeTrue(ReedSolomon.isVectorCodingLoopAvailable());
+        ReedSolomon tableCodec = new ReedSolomon(ConfigVariables.DATA_SHARD_COUNT,
+                ConfigVariables.PARITY_SHARD_COUNT, new InputOutputByteTableCodingLoop());
+        ReedSolomon vectorCodec = new ReedSolomon(ConfigVariables.DATA_SHARD_COUNT,
+                ConfigVariables.PARITY_SHARD_COUNT, new ByteOutputInputVectorCodingLoop());
+        // first MB of every shard, plus a few bytes so the scalar tail is exercised too
+        int shardSize = Math.min(encoder.getShards()[0].length, MB + 7);
+        byte[][] shards = copyShards(encoder.getShards(), shardSize);
+
+        byte[][] tableShards = copyShards(shards, shardSize);
+        byte[][] vectorShards = copyShards(shards, shardSize);
+        tableCodec.encodeParity(tableShards, 3, shardSize - 10);
+        vectorCodec.encodeParity(vectorShards, 3, shardSize - 10);
+        for (int i = 0; i < shards.length; i++) {
+            assertArrayEquals(tableShards[i], vectorShards[i]);
+        }
+        assertTrue(vectorCodec.isParityCorrect(shards, 0, shardSize));
+        assertTrue(vectorCodec.isParityCorrect(vectorShards, 3, shardSize - 10));
+
+        boolean[] shardPresent = new boolean[shards.length];
+        Arrays.fill(shardPresent, true);
+        shardPresent[0] = false;
+        shardPresent[ConfigVariables.DATA_SHARD_COUNT] = false;
+        byte[][] decodedShards = copyShards(shards, shardSize);
+        decodedShards[0] = new byte[shardSize];
+        decodedShards[ConfigVariables.DATA_SHARD_COUNT] = new byte[shardSize];
+        vectorCodec.decodeMissing(decodedShards, shardPresent, 0, shardSize);
+        for (int i = 0; i < shards.length; i++) {
+            assertArrayEquals(shards[i], decodedShards[i]);
+        }
+    }
+
+    @Test
+    public void testByteBufferApiMatchesArrayApi() {
+        // first 64 KB of every shard, plus a few bytes so the scalar tail is exercised too
+        int shardSize = Math.min(encoder.getShards()[0].length, 64 * 1024 + 7);
+        byte[][] shards = copyShards(encoder.getShards(), shardSize);
+        byte[][] expectedShards = copyShards(shards, shardSize);
+        ReedSolomon arrayCodec = new ReedSolomon(ConfigVariables.DATA_SHARD_COUNT,
+                ConfigVariables.PARITY_SHARD_COUNT, new InputOutputByteTableCodingLoop());
+        arrayCodec.encodeParity(expectedShards, 3, shardSize - 10);
+
+        ReedSolomon[] codecs = ReedSolomon.isVectorCodingLoopAvailable()
+                ? new ReedSolomon[] { arrayCodec, new ReedSolomon(ConfigVariables.DATA_SHARD_COUNT,
+                        ConfigVariables.PARITY_SHARD_COUNT, new ByteOutputInputVectorCodingLoop()) }
+                : new ReedSolomon[] { arrayCodec };
+        for (ReedSolomon codec : codecs) {
+            for (boolean direct : new boolean[] { false, true }) {
+                ByteBuffer[] buffers = toBuffers(shards, direct);
+                codec.encodeParity(buffers, 3, shardSize - 10);
+                for (int i = 0; i < shards.length; i++) {
+                    assertArrayEquals(expectedShards[i], toArray(buffers[i]));
+                }
+                assertTrue(codec.isParityCorrect(toBuffers(shards, direct), 0, shardSize));
+
+                // present shards are read-only views, as handed out by the log entry codec and gRPC
+                boolean[] shardPresent = new boolean[shards.length];
+                Arrays.fill(shardPresent, true);
+                shardPresent[1] = false;
+                shardPresent[ConfigVariables.DATA_SHARD_COUNT + 1] = false;
+                ByteBuffer[] decoded = toBuffers(shards, direct);
+                for (int i = 0; i < decoded.length; i++) {
+                    decoded[i] = shardPresent[i] ? decoded[i].asReadOnlyBuffer()
+                            : direct ? ByteBuffer.allocateDirect(shardSize) : ByteBuffer.allocate(shardSize);
+                }
+                codec.decodeMissing(decoded, shardPresent, 0, shardSize);
+                for (int i = 0; i < shards.length; i++) {
+                    assertArrayEquals(shards[i], toArray(decoded[i]));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testParallelCodingLoopMatchesSerialLoop() {
+        int shardSize = Math.min(encoder.getShards()[0].length, MB + 7);
+        byte[][] shards = copyShards(encoder.getShards(), shardSize);
+        ReedSolomon serialCodec = new ReedSolomon(ConfigVariables.DATA_SHARD_COUNT,
+                ConfigVariables.PARITY_SHARD_COUNT, new InputOutputByteTableCodingLoop());
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            // small stripes so the range is split many times, at offsets that are not aligned
+            ReedSolomon parallelCodec = new ReedSolomon(ConfigVariables.DATA_SHARD_COUNT,
+                    ConfigVariables.PARITY_SHARD_COUNT,
+                    new ParallelCodingLoop(new InputOutputByteTableCodingLoop(), pool, 1000));
+            byte[][] serialShards = copyShards(shards, shardSize);
+            byte[][] parallelShards = copyShards(shards, shardSize);
+            serialCodec.encodeParity(serialShards, 3, shardSize - 10);
+            parallelCodec.encodeParity(parallelShards, 3, shardSize - 10);
+            for (int i = 0; i < shards.length; i++) {
+                assertArrayEquals(serialShards[i], parallelShards[i]);
+            }
+            assertTrue(parallelCodec.isParityCorrect(shards, 0, shardSize));
+            assertTrue(parallelCodec.isParityCorrect(shards, 0, shardSize, new byte[shardSize]));
+            parallelShards[ConfigVariables.DATA_SHARD_COUNT][shardSize - 1] ^= 1;
+            assertFalse(parallelCodec.isParityCorrect(parallelShards, 0, shardSize));
+
+            boolean[] shardPresent = new boolean[shards.length];
+            Arrays.fill(shardPresent, true);
+            shardPresent[2] = false;
+            shardPresent[3] = false;
+            byte[][] decodedShards = copyShards(shards, shardSize);
+            decodedShards[2] = new byte[shardSize];
+            decodedShards[3] = new byte[shardSize];
+            parallelCodec.decodeMissing(decodedShards, shardPresent, 0, shardSize);
+            for (int i = 0; i < shards.length; i++) {
+                assertArrayEquals(shards[i], decodedShards[i]);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testParityDeltaMatchesReencode() {
+        ReedSolomon codec = ReedSolomon.create(ConfigVariables.DATA_SHARD_COUNT, ConfigVariables.PARITY_SHARD_COUNT);
+        int shardSize = 4 * ConfigVariables.BLOCK_SIZE;
+        byte[][] shards = copyShards(encoder.getShards(), shardSize);
+        codec.encodeParity(shards, 0, shardSize);
+
+        // overwrite part of the second block of data shard 2
+        int dataShardIdx = 2;
+        int blockStart = ConfigVariables.BLOCK_SIZE;
+        byte[] oldBlock = Arrays.copyOfRange(shards[dataShardIdx], blockStart, blockStart + ConfigVariables.BLOCK_SIZE);
+        byte[] newBlock = oldBlock.clone();
+        byte[] newBytes = generateRandomFileData(300);
+        System.arraycopy(newBytes, 0, newBlock, 123, newBytes.length);
+
+        byte[][] parityDeltas = new byte[ConfigVariables.PARITY_SHARD_COUNT][ConfigVariables.BLOCK_SIZE];
+        codec.encodeParityDelta(dataShardIdx, oldBlock, newBlock, parityDeltas, 0, ConfigVariables.BLOCK_SIZE);
+        byte[][] patchedShards = copyShards(shards, shardSize);
+        System.arraycopy(newBlock, 0, patchedShards[dataShardIdx], blockStart, ConfigVariables.BLOCK_SIZE);
+        for (int i = 0; i < ConfigVariables.PARITY_SHARD_COUNT; i++) {
+            byte[] parityBlock = Arrays.copyOfRange(patchedShards[ConfigVariables.DATA_SHARD_COUNT + i], blockStart,
+                    blockStart + ConfigVariables.BLOCK_SIZE);
+            ReedSolomon.applyParityDelta(parityBlock, parityDeltas[i], 0, ConfigVariables.BLOCK_SIZE);
+            System.arraycopy(parityBlock, 0, patchedShards[ConfigVariables.DATA_SHARD_COUNT + i], blockStart,
+                    ConfigVariables.BLOCK_SIZE);
+        }
+
+        byte[][] reencodedShards = copyShards(patchedShards, shardSize);
+        codec.encodeParity(reencodedShards, 0, shardSize);
+        for (int i = 0; i < shards.length; i++) {
+            assertArrayEquals(reencodedShards[i], patchedShards[i]);
+        }
+
+        // the same overwrite, coded only over the changed bytes where they
+        // sit in the shards, into deltas as long as they are
+        int changedStart = blockStart + 123;
+        byte[] newShard = shards[dataShardIdx].clone();
+        System.arraycopy(newBytes, 0, newShard, changedStart, newBytes.length);
+        byte[][] shortDeltas = new byte[ConfigVariables.PARITY_SHARD_COUNT][newBytes.length];
+        codec.encodeParityDelta(dataShardIdx, shards[dataShardIdx], newShard, shortDeltas, changedStart,
+                newBytes.length);
+        byte[][] patchedInPlace = copyShards(shards, shardSize);
+        patchedInPlace[dataShardIdx] = newShard;
+        for (int i = 0; i < ConfigVariables.PARITY_SHARD_COUNT; i++)
+            ReedSolomon.applyParityDelta(patchedInPlace[ConfigVariables.DATA_SHARD_COUNT + i], shortDeltas[i],
+                    changedStart, newBytes.length);
+        for (int i = 0; i < shards.length; i++)
+            assertArrayEquals(reencodedShards[i], patchedInPlace[i]);
+    }
+
+    @Test
+    public void testDecodeSomeOnlyFillsWantedShards() {
+        ReedSolomon codec = ReedSolomon.create(ConfigVariables.DATA_SHARD_COUNT, ConfigVariables.PARITY_SHARD_COUNT);
+        int shardSize = 4 * ConfigVariables.BLOCK_SIZE;
+        byte[][] expected = copyShards(encoder.getShards(), shardSize);
+        codec.encodeParity(expected, 0, shardSize);
+
+        // lose data shard 1 and parity shard 5, but only want shard 5 back
+        boolean[] shardPresent = new boolean[ConfigVariables.TOTAL_SHARD_COUNT];
+        Arrays.fill(shardPresent, true);
+        shardPresent[1] = false;
+        shardPresent[5] = false;
+        boolean[] shardWanted = new boolean[ConfigVariables.TOTAL_SHARD_COUNT];
+        shardWanted[5] = true;
+        byte[][] shards = copyShards(expected, shardSize);
+        shards[1] = new byte[shardSize];
+        shards[5] = new byte[shardSize];
+        codec.decodeSome(shards, shardPresent, shardWanted, 0, shardSize);
+        assertArrayEquals(expected[5], shards[5]);
+        assertArrayEquals(new byte[shardSize], shards[1]);
+
+        // and with buffers, only the missing data shard
+        shardWanted = new boolean[ConfigVariables.TOTAL_SHARD_COUNT];
+        shardWanted[1] = true;
+        ByteBuffer[] buffers = toBuffers(expected, true);
+        buffers[1] = ByteBuffer.allocateDirect(shardSize);
+        buffers[5] = ByteBuffer.allocateDirect(shardSize);
+        codec.decodeSome(buffers, shardPresent, shardWanted, 0, shardSize);
+        assertArrayEquals(expected[1], toArray(buffers[1]));
+        assertArrayEquals(new byte[shardSize], toArray(buffers[5]));
+    }
+
+    @Test
+    public void testReadWithoutParityShards() {
+        // not a multiple of FILE_SIZE_MULTIPLE, so the last block is padded
+        byte[] fileData = generateRandomFileData(10 * KB + 123);
+        ReedSolomonEncoder smallEncoder = new ReedSolomonEncoder(fileData);
+        smallEncoder.encode();
+        int shardSize = smallEncoder.getShards()[0].length;
+
+        // only the data shards are read, nothing to decode
+        boolean[] shardPresent = new boolean[ConfigVariables.TOTAL_SHARD_COUNT];
+        byte[][] shards = copyShards(smallEncoder.getShards(), shardSize);
+        for (int i = 0; i < ConfigVariables.TOTAL_SHARD_COUNT; i++) {
+            shardPresent[i] = i < ConfigVariables.DATA_SHARD_COUNT;
+            if (!shardPresent[i])
+                shards[i] = new byte[shardSize];
+        }
+        assertArrayEquals(fileData, new ReedSolomonDecoder(shards, shardPresent, shardSize, fileData.length)
+                .getFileData());
+
+        // a data shard is replaced by a parity shard
+        shardPresent[2] = false;
+        shardPresent[ConfigVariables.DATA_SHARD_COUNT] = true;
+        shards = copyShards(smallEncoder.getShards(), shardSize);
+        shards[2] = new byte[shardSize];
+        assertArrayEquals(fileData, new ReedSolomonDecoder(shards, shardPresent, shardSize, fileData.length)
+                .getFileData());
+    }
+
+    @Test
+    public void testDecodeRangeFromCoveringStripes() {
+        byte[] fileData = generateRandomFileData(10 * ConfigVariables.FILE_SIZE_MULTIPLE + 123);
+        ReedSolomonEncoder smallEncoder = new ReedSolomonEncoder(fileData);
+        smallEncoder.encode();
+
+        // a range across three stripes, starting and ending inside blocks
+        int offset = 3 * ConfigVariables.FILE_SIZE_MULTIPLE + 2 * ConfigVariables.BLOCK_SIZE + 17;
+        int length = 2 * ConfigVariables.FILE_SIZE_MULTIPLE + 500;
+        int firstStripeIdx = FileMetadataHelper.stripeIdx(offset);
+        int stripeCnt = FileMetadataHelper.stripeIdx(offset + length - 1) - firstStripeIdx + 1;
+        assertTrue(FileMetadataHelper.isChunkInRange(firstStripeIdx * ConfigVariables.TOTAL_SHARD_COUNT, offset,
+                length));
+        assertFalse(FileMetadataHelper.isChunkInRange((firstStripeIdx + stripeCnt) * ConfigVariables.TOTAL_SHARD_COUNT,
+                offset, length));
+
+        // what the chunkservers answer, with the server of data shard 1 missing
+        boolean[] shardPresent = new boolean[ConfigVariables.TOTAL_SHARD_COUNT];
+        byte[][] shards = new byte[ConfigVariables.TOTAL_SHARD_COUNT][];
+        for (int i = 0; i < ConfigVariables.TOTAL_SHARD_COUNT; i++) {
+            shardPresent[i] = i != 1;
+            shards[i] = shardPresent[i]
+                    ? Arrays.copyOfRange(smallEncoder.getShards()[i], firstStripeIdx * ConfigVariables.BLOCK_SIZE,
+                            (firstStripeIdx + stripeCnt) * ConfigVariables.BLOCK_SIZE)
+                    : new byte[stripeCnt * ConfigVariables.BLOCK_SIZE];
+        }
+        assertArrayEquals(Arrays.copyOfRange(fileData, offset, offset + length),
+                ReedSolomonDecoder.decodeRange(shards, shardPresent, offset, length));
+    }
+
+    private static ByteBuffer[] toBuffers(byte[][] shards, boolean direct) {
+        ByteBuffer[] buffers = new ByteBuffer[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            buffers[i] = direct ? ByteBuffer.allocateDirect(shards[i].length) : ByteBuffer.allocate(shards[i].length);
+            buffers[i].put(shards[i]).clear();
+        }
+        return buffers;
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.limit()];
+        buffer.duplicate().clear().get(bytes);
+        return bytes;
+    }
+
+    private static byte[][] copyShards(byte[][] shards, int length) {
+        byte[][] copy = new byte[shards.length][];
+        for (int i = 0; i < shards.length; i++) {
+            copy[i] = Arrays.copyOf(shards[i], length);
+        }
+        return copy;
+    }
+
     public void compareDecodedAndOriginalFile() {
         try {
             decoder.decode();
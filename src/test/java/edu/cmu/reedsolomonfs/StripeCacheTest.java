@@ -0,0 +1,85 @@
+package edu.cmu.reedsolomonfs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import edu.cmu.reedsolomonfs.client.StripeCache;
+
+/**
+ * Unit test for the client's LRU cache of decoded stripes.
+ */
+public class StripeCacheTest {
+
+    private static byte[] stripe() {
+        return new byte[ConfigVariables.FILE_SIZE_MULTIPLE];
+    }
+
+    @Test
+    public void testLeastRecentlyUsedStripeIsEvicted() {
+        StripeCache cache = new StripeCache(3L * ConfigVariables.FILE_SIZE_MULTIPLE);
+        cache.put("/f", 0, 0, stripe());
+        cache.put("/f", 0, 1, stripe());
+        cache.put("/f", 0, 2, stripe());
+        // stripe 0 is used again, so stripe 1 is now the least recently used
+        assertNotNull(cache.get("/f", 0, 0));
+        cache.put("/f", 0, 3, stripe());
+        assertEquals(3, cache.size());
+        assertEquals(1, cache.getEvictionCnt());
+        assertNull(cache.get("/f", 0, 1));
+        assertNotNull(cache.get("/f", 0, 0));
+        assertNotNull(cache.get("/f", 0, 2));
+        assertNotNull(cache.get("/f", 0, 3));
+    }
+
+    @Test
+    public void testHitMissAndEvictionCounts() {
+        StripeCache cache = new StripeCache(ConfigVariables.FILE_SIZE_MULTIPLE);
+        byte[] stripe = stripe();
+        assertNull(cache.get("/f", 0, 0));
+        cache.put("/f", 0, 0, stripe);
+        assertSame(stripe, cache.get("/f", 0, 0));
+        // another version of the file is another stripe
+        assertNull(cache.get("/f", 1, 0));
+        cache.put("/f", 1, 0, stripe());
+        assertEquals(1, cache.getHitCnt());
+        assertEquals(2, cache.getMissCnt());
+        assertEquals(1, cache.getEvictionCnt());
+        assertEquals(1.0 / 3, cache.getHitRate(), 1e-9);
+    }
+
+    @Test
+    public void testInvalidateDropsEveryVersionOfOneFile() {
+        StripeCache cache = new StripeCache(8L * ConfigVariables.FILE_SIZE_MULTIPLE);
+        cache.put("/f", 0, 0, stripe());
+        cache.put("/f", 1, 0, stripe());
+        cache.put("/f", 1, 1, stripe());
+        cache.put("/g", 0, 0, stripe());
+        cache.invalidate("/f");
+        assertEquals(1, cache.size());
+        assertNull(cache.get("/f", 0, 0));
+        assertNull(cache.get("/f", 1, 1));
+        assertNotNull(cache.get("/g", 0, 0));
+        assertEquals(0, cache.getEvictionCnt());
+    }
+
+    @Test
+    public void testPutChecksStripeSize() {
+        StripeCache cache = new StripeCache(ConfigVariables.FILE_SIZE_MULTIPLE);
+        try {
+            cache.put("/f", 0, 0, new byte[ConfigVariables.FILE_SIZE_MULTIPLE - 1]);
+            fail("Cached a stripe of the wrong size");
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals(0, cache.size());
+
+        // a cache too small for one stripe holds none
+        StripeCache empty = new StripeCache(ConfigVariables.FILE_SIZE_MULTIPLE - 1);
+        empty.put("/f", 0, 0, stripe());
+        assertEquals(0, empty.size());
+    }
+}
@@ -0,0 +1,218 @@
+package edu.cmu.reedsolomonfs.server.Chunkserver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.cmu.reedsolomon.ReedSolomon;
+import edu.cmu.reedsolomonfs.ConfigVariables;
+import edu.cmu.reedsolomonfs.datatype.FileMetadata;
+import edu.cmu.reedsolomonfs.datatype.FileMetadataHelper;
+
+/**
+ * Unit test for the chunk writes of one chunkserver's state machine, applied
+ * without a cluster.
+ */
+public class ChunkserverStateMachineTest {
+
+    private static final int SERVER_IDX = 1;
+    // two chunks on every server
+    private static final int FILE_SIZE = 2 * ConfigVariables.FILE_SIZE_MULTIPLE - 1;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ChunkserverStateMachine fsm;
+
+    @Before
+    public void setUp() {
+        fsm = new ChunkserverStateMachine(SERVER_IDX, folder.getRoot().getPath() + "/");
+    }
+
+    private static byte[] shard(long seed) {
+        byte[] shard = new byte[2 * ConfigVariables.BLOCK_SIZE];
+        new Random(seed).nextBytes(shard);
+        return shard;
+    }
+
+    private static long checksum(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return crc.getValue();
+    }
+
+    private static long[] shardChecksums(long checksum) {
+        return shardChecksums(SERVER_IDX, checksum);
+    }
+
+    private static long[] shardChecksums(int serverIdx, long checksum) {
+        long[] shardChecksums = new long[ConfigVariables.TOTAL_SHARD_COUNT];
+        shardChecksums[serverIdx] = checksum;
+        return shardChecksums;
+    }
+
+    private List<String> chunkFileNames(FileMetadata metadata) {
+        return FileMetadataHelper.retrieveFileChunkPaths(metadata, SERVER_IDX);
+    }
+
+    /**
+     * Write a file whose shard on the server is given, as a staged write does
+     *
+     * @return the chunk file names of the file on the server
+     */
+    private static List<String> commit(ChunkserverStateMachine fsm, String filePath, byte[] shard)
+            throws IOException {
+        FileMetadata metadata = FileMetadataHelper.createFileMetadata(filePath, FILE_SIZE);
+        fsm.stageShard(filePath, "write-1", 0, shard);
+        fsm.commitStagedShard(metadata, shardChecksums(fsm.getServerIdx(), checksum(shard)), "write-1");
+        return FileMetadataHelper.retrieveFileChunkPaths(metadata, fsm.getServerIdx());
+    }
+
+    private boolean isStaged() throws IOException {
+        try (Stream<Path> files = Files.walk(folder.getRoot().toPath())) {
+            return files.anyMatch(path -> path.getFileName().toString().endsWith(".staged"));
+        }
+    }
+
+    @Test
+    public void testCommitIsIdempotent() throws IOException {
+        FileMetadata metadata = FileMetadataHelper.createFileMetadata("/dir/f", FILE_SIZE);
+        byte[] shard = shard(1);
+        fsm.stageShard("/dir/f", "write-1", 0, Arrays.copyOf(shard, 1500));
+        fsm.stageShard("/dir/f", "write-1", 1500, Arrays.copyOfRange(shard, 1500, shard.length));
+        fsm.commitStagedShard(metadata, shardChecksums(checksum(shard)), "write-1");
+
+        List<String> chunkFileNames = chunkFileNames(metadata);
+        assertEquals(2, chunkFileNames.size());
+        assertArrayEquals(Arrays.copyOf(shard, ConfigVariables.BLOCK_SIZE), fsm.readChunk(chunkFileNames.get(0)));
+        assertArrayEquals(Arrays.copyOfRange(shard, ConfigVariables.BLOCK_SIZE, shard.length),
+                fsm.readChunk(chunkFileNames.get(1)));
+        assertFalse(isStaged());
+        assertTrue(fsm.getMissingChunks().isEmpty());
+
+        // the commit replayed after a restart finds the shard in the chunk store
+        fsm.commitStagedShard(metadata, shardChecksums(checksum(shard)), "write-1");
+        assertArrayEquals(Arrays.copyOf(shard, ConfigVariables.BLOCK_SIZE), fsm.readChunk(chunkFileNames.get(0)));
+        assertTrue(fsm.getMissingChunks().isEmpty());
+        assertEquals(chunkFileNames, fsm.getStoredFileNameToChunks().get("/dir/f"));
+    }
+
+    @Test
+    public void testBadStagedShardIsListedMissing() throws IOException {
+        FileMetadata metadata = FileMetadataHelper.createFileMetadata("/dir/f", FILE_SIZE);
+        byte[] shard = shard(2);
+        fsm.stageShard("/dir/f", "write-1", 0, shard);
+        fsm.commitStagedShard(metadata, shardChecksums(checksum(shard)), "write-1");
+
+        // a later write of the file whose staged shard was corrupted
+        FileMetadata rewritten = new FileMetadata("/dir/f", FILE_SIZE, 1, metadata.getNodes(),
+                metadata.getLastChunkIdx());
+        byte[] corrupted = shard(3);
+        fsm.stageShard("/dir/f", "write-2", 0, corrupted);
+        corrupted[0] ^= 1;
+        fsm.commitStagedShard(rewritten, shardChecksums(checksum(corrupted)), "write-2");
+
+        // the file's chunks are dropped, so reads decode them elsewhere, and
+        // those of the committed version are left for the master to rebuild
+        for (String chunkFileName : chunkFileNames(metadata))
+            assertNull(fsm.readChunk(chunkFileName));
+        assertNull(fsm.getStoredFileNameToChunks().get("/dir/f"));
+        List<String> missing = fsm.getMissingChunks();
+        Collections.sort(missing);
+        assertEquals(chunkFileNames(rewritten), missing);
+        assertFalse(isStaged());
+    }
+
+    @Test
+    public void testMissingStagedShardIsListedMissing() throws IOException {
+        FileMetadata metadata = FileMetadataHelper.createFileMetadata("/dir/g", FILE_SIZE);
+        fsm.commitStagedShard(metadata, shardChecksums(checksum(shard(4))), "write-1");
+        List<String> missing = fsm.getMissingChunks();
+        Collections.sort(missing);
+        assertEquals(chunkFileNames(metadata), missing);
+
+        // once the file is deleted nothing of it is missing
+        fsm.deleteFile("/dir/g");
+        assertTrue(fsm.getMissingChunks().isEmpty());
+    }
+
+    @Test
+    public void testOverwriteDataChunkIsIdempotent() throws IOException {
+        byte[] shard = shard(5);
+        List<String> chunkFileNames = commit(fsm, "/dir/f", shard);
+        // block 5 is the data block of server 1 in the second stripe
+        byte[] newBlock = Arrays.copyOf(shard(6), ConfigVariables.BLOCK_SIZE);
+        long[] shardChecksums = shardChecksums(checksum(newBlock));
+        fsm.overwriteBlock("/dir/f", 5, ByteBuffer.wrap(newBlock), shardChecksums);
+        assertArrayEquals(newBlock, fsm.readChunk(chunkFileNames.get(1)));
+        assertArrayEquals(Arrays.copyOf(shard, ConfigVariables.BLOCK_SIZE), fsm.readChunk(chunkFileNames.get(0)));
+
+        // replayed, and with no change for this server
+        fsm.overwriteBlock("/dir/f", 5, ByteBuffer.wrap(newBlock), shardChecksums);
+        fsm.overwriteBlock("/dir/f", 6, null, shardChecksums);
+        assertArrayEquals(newBlock, fsm.readChunk(chunkFileNames.get(1)));
+        assertTrue(fsm.getMissingChunks().isEmpty());
+    }
+
+    @Test
+    public void testParityDeltaIsAppliedOnce() throws IOException {
+        int parityServerIdx = ConfigVariables.DATA_SHARD_COUNT;
+        ChunkserverStateMachine parityFsm = new ChunkserverStateMachine(parityServerIdx,
+                folder.getRoot().getPath() + "/");
+        byte[] shard = shard(7);
+        List<String> chunkFileNames = commit(parityFsm, "/dir/f", shard);
+        byte[] parityDelta = Arrays.copyOf(shard(8), ConfigVariables.BLOCK_SIZE);
+        byte[] patched = Arrays.copyOf(shard, ConfigVariables.BLOCK_SIZE);
+        ReedSolomon.applyParityDelta(patched, parityDelta, 0, ConfigVariables.BLOCK_SIZE);
+        long[] shardChecksums = shardChecksums(parityServerIdx, checksum(patched));
+
+        // block 2 is in the first stripe; XORing the delta in twice would undo it
+        parityFsm.overwriteBlock("/dir/f", 2, ByteBuffer.wrap(parityDelta), shardChecksums);
+        assertArrayEquals(patched, parityFsm.readChunk(chunkFileNames.get(0)));
+        parityFsm.overwriteBlock("/dir/f", 2, ByteBuffer.wrap(parityDelta), shardChecksums);
+        assertArrayEquals(patched, parityFsm.readChunk(chunkFileNames.get(0)));
+        assertTrue(parityFsm.getMissingChunks().isEmpty());
+    }
+
+    @Test
+    public void testOverwriteChecksumMismatchDropsChunk() throws IOException {
+        List<String> chunkFileNames = commit(fsm, "/dir/f", shard(9));
+        byte[] newBlock = Arrays.copyOf(shard(10), ConfigVariables.BLOCK_SIZE);
+        // the checksum the client expects is not what the chunk becomes
+        fsm.overwriteBlock("/dir/f", 1, ByteBuffer.wrap(newBlock), shardChecksums(checksum(newBlock) + 1));
+        assertNull(fsm.readChunk(chunkFileNames.get(0)));
+        assertNotNull(fsm.readChunk(chunkFileNames.get(1)));
+        assertEquals(Arrays.asList(chunkFileNames.get(0)), fsm.getMissingChunks());
+
+        // as is a chunk missing from the chunk store
+        fsm.overwriteBlock("/dir/f", 1, ByteBuffer.wrap(newBlock), shardChecksums(checksum(newBlock)));
+        assertNull(fsm.readChunk(chunkFileNames.get(0)));
+        assertEquals(Arrays.asList(chunkFileNames.get(0)), fsm.getMissingChunks());
+
+        try {
+            fsm.overwriteBlock("/dir/f", 5, ByteBuffer.wrap(new byte[10]), shardChecksums(0));
+            fail("Applied a malformed overwrite");
+        } catch (IOException expected) {
+        }
+    }
+}